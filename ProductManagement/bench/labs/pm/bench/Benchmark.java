@@ -0,0 +1,120 @@
+package labs.pm.bench;
+
+import labs.pm.data.ProductFileManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.IntConsumer;
+
+/**
+ * {@code Benchmark} is a small timing harness shared by the benchmarks
+ * of the Product Management System.
+ * <br>
+ * Each measurement runs a warm up pass first and then reports
+ * the average time of a single operation in nanoseconds.
+ * @version 1.0
+ * @author Ewa
+ */
+public final class Benchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+
+    /**
+     * Result of the last measurement, read by the caller
+     * so that the JIT can't drop the measured code
+     */
+    public static volatile Object sink;
+
+    private Benchmark() {
+    }
+
+    /**
+     * Benchmarks create thousands of throwaway products, so their catalog
+     * runs without the write ahead log, which would keep them for the next start
+     * @return the product manager
+     */
+    public static ProductFileManager catalog() {
+        System.setProperty("labs.pm.wal.enabled", "false");
+        return ProductFileManager.getInstance();
+    }
+
+    /**
+     * Measures an operation
+     * @param operations number of operations in one round
+     * @param operation code to measure, receives the index of the operation
+     * @return average time of a single operation in nanoseconds
+     */
+    public static double measure(int operations, IntConsumer operation) {
+        for (int round = 0; round < WARMUP_ROUNDS; round++)
+            run(operations, operation);
+
+        long total = 0;
+        for (int round = 0; round < MEASURED_ROUNDS; round++)
+            total += run(operations, operation);
+        return (double) total / ((long) operations * MEASURED_ROUNDS);
+    }
+
+    /**
+     * Measures an operation run by several threads at once, each thread
+     * runs all the operations of a round
+     * @param threads number of threads
+     * @param operations number of operations of one thread in one round
+     * @param operation code to measure, receives the index of the operation
+     * @return average time between two completed operations of all threads in nanoseconds
+     */
+    public static double measureConcurrent(int threads, int operations, IntConsumer operation) {
+        for (int round = 0; round < WARMUP_ROUNDS; round++)
+            runConcurrent(threads, operations, operation);
+
+        long total = 0;
+        for (int round = 0; round < MEASURED_ROUNDS; round++)
+            total += runConcurrent(threads, operations, operation);
+        return (double) total / ((long) operations * threads * MEASURED_ROUNDS);
+    }
+
+    private static long runConcurrent(int threads, int operations, IntConsumer operation) {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < operations; i++)
+                    operation.accept(i);
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        try {
+            for (Thread worker : workers)
+                worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    private static long run(int operations, IntConsumer operation) {
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++)
+            operation.accept(i);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Prints one result line
+     * @param name of the benchmark
+     * @param param parameter of the measurement, for example catalog size
+     * @param nanosPerOp average time of a single operation
+     */
+    public static void report(String name, Object param, double nanosPerOp) {
+        System.out.printf("%-40s %12s %12.1f ns/op %14.0f ops/s%n",
+                name, param, nanosPerOp, 1_000_000_000 / nanosPerOp);
+    }
+}
@@ -0,0 +1,203 @@
+package labs.pm.bench;
+
+import labs.pm.data.Product;
+import labs.pm.data.ProductFileManager;
+import labs.pm.data.ProductManagerException;
+import labs.pm.data.Rating;
+import labs.pm.data.RecordParser;
+import labs.pm.data.ResourceFormatter;
+import labs.pm.data.Review;
+import labs.pm.data.SnapshotCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * {@code BenchmarkSuite} measures the hot paths of the catalog on a synthetic
+ * catalog made by {@link CatalogGenerator}, each operation once on a single
+ * thread and once on several threads at the same time, and writes the
+ * results as JSON, so runs can be compared over time.
+ * <br>
+ * Arguments are {@code name=value} pairs, all optional:
+ * {@code size=100000} products, {@code alpha=1.2} and {@code maxReviews=10000}
+ * of the review counts, {@code seed=42}, {@code threads=4} of contended runs,
+ * {@code operations=200000} per round, {@code benchmarks=findProduct,...}
+ * to run only some benchmarks and {@code out=benchmark-results.json}.
+ * @version 1.0
+ * @author Ewa
+ */
+public class BenchmarkSuite {
+    private static final int FIRST_ID = 10_000_000;
+
+    private final Map<String, String> options;
+    private final List<Map<String, Object>> results = new ArrayList<>();
+
+    private BenchmarkSuite(Map<String, String> options) {
+        this.options = options;
+    }
+
+    /**
+     * @param args {@code name=value} options described in the class comment
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            options.put(option[0].trim(), (option.length > 1) ? option[1].trim() : "");
+        }
+        new BenchmarkSuite(options).run();
+    }
+
+    private int option(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private void run() throws IOException {
+        int size = option("size", 100_000);
+        int threads = option("threads", 4);
+        int operations = option("operations", 200_000);
+        double alpha = Double.parseDouble(options.getOrDefault("alpha", "1.2"));
+        List<String> selected = Arrays.asList(options.getOrDefault("benchmarks",
+                "findProduct,reviewProduct,parseProduct,parseReview,formatProduct,getDiscounts,dump,restore")
+                .split(","));
+
+        ProductFileManager pm = Benchmark.catalog();
+        CatalogGenerator generator = new CatalogGenerator(FIRST_ID, size, alpha,
+                option("maxReviews", 10_000), option("seed", 42));
+        long start = System.nanoTime();
+        long reviews = generator.generate(pm);
+        System.out.printf("generated %d products and %d reviews in %.1f s%n",
+                size, reviews, (System.nanoTime() - start) / 1e9);
+
+        Random random = new Random(option("seed", 42));
+        int[] ids = random.ints(operations, FIRST_ID, FIRST_ID + size).toArray();
+        String[] productRecords = new String[operations];
+        String[] reviewRecords = new String[operations];
+        for (int i = 0; i < operations; i++) {
+            productRecords[i] = (i % 2 == 0)
+                    ? "F, " + i + ", Cake " + i + ", " + (i % 100) + ".99, " + (i % 6) + ", 2019-09-09"
+                    : "D, " + i + ", Tea " + i + ", " + (i % 100) + ".49, " + (i % 6);
+            reviewRecords[i] = (i % 6) + ", Review number " + i;
+        }
+        ResourceFormatter formatter = new ResourceFormatter(Locale.UK);
+        Product[] products = pm.findProducts(product -> product.getId() >= FIRST_ID).toArray(new Product[0]);
+
+        Map<String, IntConsumer> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("findProduct", i -> {
+            try {
+                Benchmark.sink = pm.findProduct(ids[i]);
+            } catch (ProductManagerException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        benchmarks.put("reviewProduct", i ->
+                Benchmark.sink = pm.reviewProduct(ids[i], Rating.values()[1 + i % 5], "Benchmark review"));
+        benchmarks.put("parseProduct", i -> {
+            try {
+                Benchmark.sink = RecordParser.parseProduct(productRecords[i]);
+            } catch (ParseException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        benchmarks.put("parseReview", i -> {
+            try {
+                Benchmark.sink = RecordParser.parseReview(reviewRecords[i]);
+            } catch (ParseException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        benchmarks.put("formatProduct", i -> Benchmark.sink = formatter.formatProduct(products[i % products.length]));
+        benchmarks.put("getDiscounts", i -> Benchmark.sink = pm.getDiscounts());
+
+        benchmarks.forEach((name, benchmark) -> {
+            if (!selected.contains(name))
+                return;
+            record(name, 1, size, Benchmark.measure(operations, benchmark));
+            record(name, threads, size, Benchmark.measureConcurrent(threads, operations / threads, benchmark));
+        });
+
+        if (selected.contains("dump") || selected.contains("restore"))
+            measureSnapshot(pm, products, size);
+
+        Path out = Path.of(options.getOrDefault("out", "benchmark-results.json"));
+        Files.writeString(out, toJson(size, reviews, threads));
+        System.out.println("results written to " + out.toAbsolutePath());
+    }
+
+    private void measureSnapshot(ProductFileManager pm, Product[] products, int size) {
+        Map<Product, List<Review>> catalog = new LinkedHashMap<>();
+        for (Product product : products)
+            catalog.put(product, pm.findReviews(product.getId()));
+
+        byte[] snapshot = encode(catalog);
+        record("dump", 1, size, Benchmark.measure(1, i -> Benchmark.sink = encode(catalog)) / size);
+        record("restore", 1, size, Benchmark.measure(1, i -> {
+            try {
+                Map<Product, List<Review>> restored = new HashMap<>();
+                SnapshotCodec.read(new ByteArrayInputStream(snapshot), restored::put);
+                Benchmark.sink = restored;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }) / size);
+    }
+
+    private static byte[] encode(Map<Product, List<Review>> catalog) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (SnapshotCodec.Writer out = new SnapshotCodec.Writer(bytes)) {
+            for (Map.Entry<Product, List<Review>> entry : catalog.entrySet())
+                out.write(entry.getKey(), entry.getValue());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void record(String name, int threads, int size, double nanosPerOp) {
+        Benchmark.report(name + ", threads " + threads, size, nanosPerOp);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("benchmark", name);
+        result.put("threads", threads);
+        result.put("nsPerOp", nanosPerOp);
+        result.put("opsPerSecond", 1e9 / nanosPerOp);
+        results.add(result);
+    }
+
+    private String toJson(int size, long reviews, int threads) {
+        String resultsJson = results.stream()
+                .map(result -> result.entrySet().stream()
+                        .map(entry -> quote(entry.getKey()) + ": " + ((entry.getValue() instanceof String)
+                                ? quote((String) entry.getValue()) : entry.getValue().toString()))
+                        .collect(Collectors.joining(", ", "    {", "}")))
+                .collect(Collectors.joining(",\n", "[\n", "\n  ]"));
+        return "{\n"
+                + "  \"timestamp\": " + quote(Instant.now().toString()) + ",\n"
+                + "  \"java\": " + quote(System.getProperty("java.version")) + ",\n"
+                + "  \"processors\": " + Runtime.getRuntime().availableProcessors() + ",\n"
+                + "  \"products\": " + size + ",\n"
+                + "  \"reviews\": " + reviews + ",\n"
+                + "  \"contendedThreads\": " + threads + ",\n"
+                + "  \"results\": " + resultsJson + "\n"
+                + "}\n";
+    }
+
+    private static String quote(String text) {
+        return '"' + text.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
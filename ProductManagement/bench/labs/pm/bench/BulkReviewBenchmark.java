@@ -0,0 +1,63 @@
+package labs.pm.bench;
+
+import labs.pm.data.ProductFileManager;
+import labs.pm.data.Rating;
+import labs.pm.data.ReviewRequest;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * {@code BulkReviewBenchmark} compares the review throughput of single
+ * {@link ProductFileManager#reviewProduct(int, Rating, String) reviewProduct} calls
+ * with sequential and parallel
+ * {@link ProductFileManager#reviewProducts(java.util.Collection, boolean) reviewProducts}
+ * batches of random reviews.
+ * @version 1.0
+ * @author Ewa
+ */
+public class BulkReviewBenchmark {
+    private static final int FIRST_ID = 5_000_000;
+    private static final int PRODUCTS = 10_000;
+    private static final int REVIEWS = 100_000;
+
+    /**
+     * @param args batch sizes, 100, 1 000 and 10 000 by default
+     */
+    public static void main(String[] args) {
+        int[] batchSizes = (args.length > 0)
+                ? java.util.Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[] {100, 1_000, 10_000};
+
+        ProductFileManager pm = Benchmark.catalog();
+        for (int i = 0; i < PRODUCTS; i++)
+            pm.createProduct(FIRST_ID + i, "Juice " + i, BigDecimal.valueOf(2.49), Rating.NOT__RATED);
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<ReviewRequest> reviews = IntStream.range(0, REVIEWS)
+                .mapToObj(i -> new ReviewRequest(FIRST_ID + random.nextInt(PRODUCTS),
+                        Rating.values()[1 + random.nextInt(5)], "Review " + i))
+                .collect(Collectors.toList());
+
+        double single = Benchmark.measure(REVIEWS, i -> {
+            ReviewRequest review = reviews.get(i);
+            Benchmark.sink = pm.reviewProduct(review.getId(), review.getRating(), review.getComments());
+        });
+        Benchmark.report("reviewProduct", 1, single);
+
+        for (int batchSize : batchSizes) {
+            List<List<ReviewRequest>> batches = IntStream.range(0, REVIEWS / batchSize)
+                    .mapToObj(b -> reviews.subList(b * batchSize, (b + 1) * batchSize))
+                    .collect(Collectors.toList());
+            for (boolean parallel : new boolean[] {false, true}) {
+                double nanos = Benchmark.measure(batches.size(),
+                        b -> Benchmark.sink = pm.reviewProducts(batches.get(b), parallel));
+                Benchmark.report(parallel ? "reviewProducts parallel" : "reviewProducts",
+                        batchSize, nanos / batchSize);
+            }
+        }
+    }
+}
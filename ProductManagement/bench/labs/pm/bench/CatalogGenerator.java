@@ -0,0 +1,94 @@
+package labs.pm.bench;
+
+import labs.pm.data.ProductFileManager;
+import labs.pm.data.Rating;
+import labs.pm.data.ReviewRequest;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * {@code CatalogGenerator} fills the catalog with synthetic products and reviews.
+ * <br>
+ * Half of the products are food with best before dates in the next month,
+ * half are drinks, prices are from 0.50 to 20.00. The number of reviews of
+ * a product follows a Pareto distribution: most products have a few reviews,
+ * a few products have thousands, like a real shop. The same seed always
+ * generates the same catalog.
+ * @version 1.0
+ * @author Ewa
+ */
+public final class CatalogGenerator {
+    private static final int REVIEW_BATCH = 10_000;
+
+    private final int firstId;
+    private final int size;
+    private final double alpha;
+    private final int maxReviews;
+    private final long seed;
+
+    /**
+     * @param firstId id of the first product
+     * @param size number of products
+     * @param alpha shape of the Pareto distribution of review counts,
+     *              lower values give more skewed counts, 1.2 means 5 reviews per product on average
+     * @param maxReviews largest number of reviews of one product
+     * @param seed of the random generator
+     */
+    public CatalogGenerator(int firstId, int size, double alpha, int maxReviews, long seed) {
+        this.firstId = firstId;
+        this.size = size;
+        this.alpha = alpha;
+        this.maxReviews = maxReviews;
+        this.seed = seed;
+    }
+
+    public int getFirstId() {
+        return firstId;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Creates the products and their reviews, reviews are added in bulk
+     * @param pm catalog to fill
+     * @return number of generated reviews
+     */
+    public long generate(ProductFileManager pm) {
+        Random random = new Random(seed);
+        LocalDate today = LocalDate.now();
+        long reviews = 0;
+        List<ReviewRequest> batch = new ArrayList<>(REVIEW_BATCH);
+        for (int i = 0; i < size; i++) {
+            int id = firstId + i;
+            BigDecimal price = BigDecimal.valueOf(50 + random.nextInt(1951), 2);
+            if (i % 2 == 0)
+                pm.createProduct(id, "Cake " + i, price, Rating.NOT__RATED, today.plusDays(random.nextInt(30)));
+            else
+                pm.createProduct(id, "Tea " + i, price, Rating.NOT__RATED);
+
+            int count = reviewCount(random);
+            for (int r = 0; r < count; r++) {
+                batch.add(new ReviewRequest(id, Rating.values()[1 + random.nextInt(5)],
+                        "Review " + r + " of product " + id));
+                if (batch.size() == REVIEW_BATCH) {
+                    pm.reviewProducts(batch);
+                    batch.clear();
+                }
+            }
+            reviews += count;
+        }
+        pm.reviewProducts(batch);
+        return reviews;
+    }
+
+    private int reviewCount(Random random) {
+        double pareto = 1 / Math.pow(1 - random.nextDouble(), 1 / alpha);
+        return (int) Math.min(maxReviews, pareto - 1);
+    }
+}
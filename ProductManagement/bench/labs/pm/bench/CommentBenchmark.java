@@ -0,0 +1,130 @@
+package labs.pm.bench;
+
+import labs.pm.data.Product;
+import labs.pm.data.ProductFileManager;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+import labs.pm.data.SnapshotCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * {@code CommentBenchmark} measures the heap taken by reviews and the size of
+ * their snapshot per million reviews, with comments kept compact or as they are.
+ * <br>
+ * Half of the comments are stock phrases, a third are short comments of their
+ * own and the rest are long comments made of sentences of a product review.
+ * Each comment is a new string, as if parsed from a file. The heap is measured
+ * after a full collection, the snapshot is written in format version 1 and 2.
+ * @version 1.0
+ * @author Ewa
+ */
+public class CommentBenchmark {
+    private static final int FIRST_ID = 6_000_000;
+    private static final int REVIEWS_PER_PRODUCT = 10;
+    private static final String[] PHRASES = {
+            "Yet another review", "Rather weak tea", "Fine tea", "Good tea", "Perfect tea",
+            "Just add some lemon", "Not good at all", "Very nice cake", "Where is the chocolate!?",
+            "It's good, but I've expected more chocolate", "It's perfect with ice cream", "Not bad at all"};
+    private static final String[] SENTENCES = {
+            "I bought this for the whole family and everybody liked it.",
+            "The taste was a bit too sweet for me, but my kids loved it.",
+            "Delivery took longer than expected and the box was damaged.",
+            "The quality is good for the price, I would buy it again.",
+            "It tastes exactly like the one my grandmother used to make.",
+            "The packaging says it is fresh, but it was already stale.",
+            "Great with a cup of tea in the afternoon.",
+            "Not worth the money, there are better products in this shop.",
+            "The portion was smaller than on the picture.",
+            "I have been ordering it every week for a year now."};
+
+    /**
+     * @param args number of reviews, 1 000 000 by default, and true or false to
+     * keep comments compact, the configuration by default
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int size = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+        if (args.length > 1)
+            System.setProperty("labs.pm.comments.compact", args[1]);
+        ProductFileManager pm = Benchmark.catalog();
+        Random random = new Random(42);
+
+        long before = usedHeap();
+        Review[] reviews = new Review[size];
+        for (int i = 0; i < size; i++)
+            reviews[i] = new Review(Rating.values()[1 + i % 5], comment(random, i));
+        long after = usedHeap();
+        System.out.printf("comments compact %s, heap %.1f MB per million reviews%n",
+                System.getProperty("labs.pm.comments.compact", "as configured"),
+                (after - before) * 1e6 / size / (1 << 20));
+
+        Product[] products = new Product[(size + REVIEWS_PER_PRODUCT - 1) / REVIEWS_PER_PRODUCT];
+        for (int i = 0; i < products.length; i++)
+            products[i] = pm.createProduct(FIRST_ID + i, "Tea " + i, BigDecimal.valueOf(199, 2), Rating.THREE_STARS);
+        for (boolean shareComments : new boolean[] {false, true}) {
+            System.out.printf("snapshot version %d, %.1f MB per million reviews%n", shareComments ? 2 : 1,
+                    snapshotSize(products, reviews, shareComments) * 1e6 / size / (1 << 20));
+        }
+
+        Benchmark.report("new Review", size, Benchmark.measure(size,
+                i -> Benchmark.sink = new Review(reviews[i].getRating(), reviews[i].getComments())));
+        Benchmark.report("getComments", size, Benchmark.measure(size, i -> Benchmark.sink = reviews[i].getComments()));
+        Benchmark.sink = reviews;
+    }
+
+    /**
+     * @return comments of review {@code i}, always a new string
+     */
+    private static String comment(Random random, int i) {
+        int kind = random.nextInt(20);
+        if (kind < 10)
+            return new String(PHRASES[random.nextInt(PHRASES.length)].toCharArray());
+        if (kind < 17)
+            return "Review " + i + " of product " + (FIRST_ID + i / REVIEWS_PER_PRODUCT);
+        StringBuilder text = new StringBuilder("Order " + i + ".");
+        for (int sentence = 3 + random.nextInt(6); sentence > 0; sentence--)
+            text.append(' ').append(SENTENCES[random.nextInt(SENTENCES.length)]);
+        return text.toString();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long snapshotSize(Product[] products, Review[] reviews, boolean shareComments) {
+        long[] bytes = new long[1];
+        OutputStream counter = new OutputStream() {
+            @Override
+            public void write(int b) {
+                bytes[0]++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                bytes[0] += len;
+            }
+        };
+        try (SnapshotCodec.Writer out = new SnapshotCodec.Writer(counter, shareComments)) {
+            for (int i = 0; i < products.length; i++) {
+                int from = i * REVIEWS_PER_PRODUCT;
+                List<Review> productReviews = Arrays.asList(reviews)
+                        .subList(from, Math.min(from + REVIEWS_PER_PRODUCT, reviews.length));
+                out.write(products[i], productReviews);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes[0];
+    }
+}
@@ -0,0 +1,72 @@
+package labs.pm.bench;
+
+import labs.pm.data.ProductFileManager;
+import labs.pm.data.ProductManagerException;
+import labs.pm.data.Rating;
+
+import java.math.BigDecimal;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@code ConcurrencyBenchmark} measures the throughput of concurrent clients
+ * that review and look up random products, for a growing number of threads.
+ * Operations on different products don't block each other, so the
+ * throughput should grow with the number of threads.
+ * @version 1.0
+ * @author Ewa
+ */
+public class ConcurrencyBenchmark {
+    private static final int FIRST_ID = 3_000_000;
+    private static final int PRODUCTS = 100_000;
+    private static final long DURATION_MILLIS = 1_000;
+
+    /**
+     * @param args numbers of threads, 1 up to the number of processors by default
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int[] threadCounts = (args.length > 0)
+                ? java.util.Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : java.util.stream.IntStream.iterate(1, t -> t <= processors, t -> t * 2).toArray();
+
+        ProductFileManager pm = Benchmark.catalog();
+        for (int i = 0; i < PRODUCTS; i++)
+            pm.createProduct(FIRST_ID + i, "Tea " + i, BigDecimal.valueOf(1.99), Rating.NOT__RATED);
+
+        run(pm, 1);
+        for (int threads : threadCounts) {
+            long operations = run(pm, threads);
+            double nanos = DURATION_MILLIS * 1_000_000.0 / operations;
+            Benchmark.report("review and find, threads", threads, nanos);
+        }
+    }
+
+    private static long run(ProductFileManager pm, int threads) throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long end = System.currentTimeMillis() + DURATION_MILLIS;
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    while (System.currentTimeMillis() < end) {
+                        int id = FIRST_ID + random.nextInt(PRODUCTS);
+                        if (random.nextInt(4) == 0)
+                            Benchmark.sink = pm.reviewProduct(id, Rating.values()[random.nextInt(6)], "Review");
+                        else
+                            Benchmark.sink = pm.findProduct(id);
+                        operations.increment();
+                    }
+                } catch (ProductManagerException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        return operations.sum();
+    }
+}
@@ -0,0 +1,47 @@
+package labs.pm.bench;
+
+import labs.pm.data.ProductFileManager;
+import labs.pm.data.ProductManagerException;
+import labs.pm.data.Rating;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * {@code FindProductBenchmark} measures
+ * {@link ProductFileManager#findProduct(int) findProduct} latency
+ * while the catalog grows, the latency should stay flat.
+ * @version 1.0
+ * @author Ewa
+ */
+public class FindProductBenchmark {
+    private static final int FIRST_ID = 1_000_000;
+    private static final int LOOKUPS = 1_000_000;
+
+    /**
+     * @param args catalog sizes to measure, 1 000 up to 1 000 000 products by default
+     */
+    public static void main(String[] args) {
+        int[] sizes = (args.length > 0)
+                ? java.util.Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[] {1_000, 10_000, 100_000, 1_000_000};
+
+        ProductFileManager pm = Benchmark.catalog();
+        int created = 0;
+        for (int size : sizes) {
+            for (; created < size; created++)
+                pm.createProduct(FIRST_ID + created, "Product " + created,
+                        BigDecimal.valueOf(1.99), Rating.NOT__RATED);
+
+            int[] ids = ThreadLocalRandom.current().ints(LOOKUPS, FIRST_ID, FIRST_ID + size).toArray();
+            double nanos = Benchmark.measure(LOOKUPS, i -> {
+                try {
+                    Benchmark.sink = pm.findProduct(ids[i]);
+                } catch (ProductManagerException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            Benchmark.report("findProduct", size, nanos);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package labs.pm.bench;
+
+import labs.pm.data.Product;
+import labs.pm.data.ProductFileManager;
+import labs.pm.data.Rating;
+import labs.pm.data.ResourceFormatter;
+import labs.pm.data.Review;
+
+import java.math.BigDecimal;
+import java.text.MessageFormat;
+import java.time.LocalDate;
+import java.util.Locale;
+import java.util.ResourceBundle;
+
+/**
+ * {@code FormatterBenchmark} compares formatting of product and review lines
+ * by {@link ResourceFormatter} with the {@link MessageFormat#format(String, Object...)}
+ * calls it replaced.
+ * @version 1.0
+ * @author Ewa
+ */
+public class FormatterBenchmark {
+    private static final int FIRST_ID = 4_000_000;
+    private static final int LINES = 100_000;
+
+    /**
+     * @param args witch is not used
+     */
+    public static void main(String[] args) {
+        ProductFileManager pm = Benchmark.catalog();
+        Product[] products = new Product[LINES];
+        Review[] reviews = new Review[LINES];
+        for (int i = 0; i < LINES; i++) {
+            products[i] = pm.createProduct(FIRST_ID + i, "Cake " + i, BigDecimal.valueOf(199 + i % 300, 2),
+                    Rating.values()[i % 6], LocalDate.of(2019, 9, 9).plusDays(i % 60));
+            reviews[i] = new Review(Rating.values()[i % 6], "Review number " + i);
+        }
+
+        ResourceFormatter formatter = new ResourceFormatter(Locale.UK);
+        ResourceBundle resources = formatter.getResources();
+        java.text.NumberFormat moneyFormat = formatter.getMoneyFormat();
+
+        for (int i = 0; i < 10; i++) {
+            String expected = MessageFormat.format(resources.getString("product"), products[i].getName(),
+                    moneyFormat.format(products[i].getPrice()), products[i].getRating().getStars(),
+                    formatter.getDateFormat().format(products[i].getBestBefore()));
+            if (!expected.equals(formatter.formatProduct(products[i])))
+                throw new IllegalStateException(expected + " != " + formatter.formatProduct(products[i]));
+        }
+
+        Benchmark.report("product line MessageFormat", LINES, Benchmark.measure(LINES, i ->
+                Benchmark.sink = MessageFormat.format(resources.getString("product"), products[i].getName(),
+                        moneyFormat.format(products[i].getPrice()), products[i].getRating().getStars(),
+                        formatter.getDateFormat().format(products[i].getBestBefore()))));
+        StringBuilder out = new StringBuilder();
+        Benchmark.report("product line appendProduct", LINES, Benchmark.measure(LINES, i -> {
+            out.setLength(0);
+            Benchmark.sink = formatter.appendProduct(out, products[i]);
+        }));
+        Benchmark.report("review line MessageFormat", LINES, Benchmark.measure(LINES, i ->
+                Benchmark.sink = MessageFormat.format(resources.getString("review"),
+                        reviews[i].getRating().getStars(), reviews[i].getComments())));
+        Benchmark.report("review line appendReview", LINES, Benchmark.measure(LINES, i -> {
+            out.setLength(0);
+            Benchmark.sink = formatter.appendReview(out, reviews[i]);
+        }));
+    }
+}
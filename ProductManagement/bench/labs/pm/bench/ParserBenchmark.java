@@ -0,0 +1,71 @@
+package labs.pm.bench;
+
+import labs.pm.data.RecordParser;
+
+import java.math.BigDecimal;
+import java.text.MessageFormat;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.util.ResourceBundle;
+
+/**
+ * {@code ParserBenchmark} compares {@link RecordParser} with the
+ * {@link MessageFormat#parse(String) MessageFormat} based parsing of
+ * product and review records it replaced.
+ * @version 1.0
+ * @author Ewa
+ */
+public class ParserBenchmark {
+    private static final int RECORDS = 200_000;
+
+    /**
+     * @param args witch is not used
+     */
+    public static void main(String[] args) {
+        ResourceBundle config = ResourceBundle.getBundle("labs.pm.data.config");
+        MessageFormat productFormat = new MessageFormat(config.getString("product.data.format"));
+        MessageFormat reviewFormat = new MessageFormat(config.getString("review.data.format"));
+
+        String[] products = new String[RECORDS];
+        String[] reviews = new String[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            products[i] = (i % 2 == 0)
+                    ? "F, " + i + ", Cake " + i + ", " + (i % 100) + ".99, " + (i % 6) + ", 2019-09-09"
+                    : "D, " + i + ", Tea " + i + ", " + (i % 100) + ".49, " + (i % 6) + ", 2019-09-19";
+            reviews[i] = (i % 6) + ", Review number " + i;
+        }
+
+        Benchmark.report("product MessageFormat", RECORDS, Benchmark.measure(RECORDS, i -> {
+            try {
+                Object[] values = productFormat.parse(products[i]);
+                Benchmark.sink = new Object[] {values[0], Integer.parseInt((String) values[1]), values[2],
+                        BigDecimal.valueOf(Double.parseDouble((String) values[3])),
+                        Integer.parseInt((String) values[4]), LocalDate.parse((String) values[5])};
+            } catch (ParseException e) {
+                throw new IllegalStateException(e);
+            }
+        }));
+        Benchmark.report("product RecordParser", RECORDS, Benchmark.measure(RECORDS, i -> {
+            try {
+                Benchmark.sink = RecordParser.parseProduct(products[i]);
+            } catch (ParseException e) {
+                throw new IllegalStateException(e);
+            }
+        }));
+        Benchmark.report("review MessageFormat", RECORDS, Benchmark.measure(RECORDS, i -> {
+            try {
+                Object[] values = reviewFormat.parse(reviews[i]);
+                Benchmark.sink = new Object[] {Integer.parseInt((String) values[0]), values[1]};
+            } catch (ParseException e) {
+                throw new IllegalStateException(e);
+            }
+        }));
+        Benchmark.report("review RecordParser", RECORDS, Benchmark.measure(RECORDS, i -> {
+            try {
+                Benchmark.sink = RecordParser.parseReview(reviews[i]);
+            } catch (ParseException e) {
+                throw new IllegalStateException(e);
+            }
+        }));
+    }
+}
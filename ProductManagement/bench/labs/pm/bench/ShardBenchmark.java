@@ -0,0 +1,169 @@
+package labs.pm.bench;
+
+import labs.pm.app.ShardNode;
+import labs.pm.data.ProductManager;
+import labs.pm.data.ProductManagerException;
+import labs.pm.data.Rating;
+import labs.pm.data.ReviewRequest;
+import labs.pm.data.ShardedProductManager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+/**
+ * {@code ShardBenchmark} measures the throughput of a {@link ShardedProductManager}
+ * as shards are added, with the same synthetic catalog and load for each number of shards.
+ * <br>
+ * Shards run as {@link ShardNode} processes on this machine, started with the
+ * java command and class or module path of the benchmark, or in this process.
+ * Arguments are {@code name=value} pairs, all optional:
+ * {@code shards=1,2,4} numbers of shards to measure, {@code mode=process} or
+ * {@code inprocess}, {@code size=20000} products, {@code threads=8} client threads
+ * and {@code operations=20000} per thread and round.
+ * @version 1.0
+ * @author Ewa
+ */
+public class ShardBenchmark {
+    private static final int FIRST_ID = 10_000_000;
+    private static final int REVIEW_BATCH = 1000;
+
+    /**
+     * @param args {@code name=value} options described in the class comment
+     */
+    public static void main(String[] args) throws IOException, ProductManagerException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            options.put(option[0].trim(), (option.length > 1) ? option[1].trim() : "");
+        }
+        System.setProperty("labs.pm.wal.enabled", "false");
+        boolean inProcess = options.getOrDefault("mode", "process").equals("inprocess");
+        int size = Integer.parseInt(options.getOrDefault("size", "20000"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "8"));
+        int operations = Integer.parseInt(options.getOrDefault("operations", "20000"));
+
+        for (String count : options.getOrDefault("shards", "1,2,4").split(",")) {
+            int shards = Integer.parseInt(count.trim());
+            List<Process> nodes = new ArrayList<>();
+            try {
+                ShardedProductManager pm = inProcess ? ShardedProductManager.inProcess(shards)
+                        : ShardedProductManager.connect(startNodes(shards, nodes));
+                try (pm) {
+                    fill(pm, size);
+                    measure(pm, shards, size, threads, operations);
+                }
+            } finally {
+                stopNodes(nodes);
+            }
+        }
+    }
+
+    /**
+     * Starts one {@link ShardNode} process per shard
+     * @return addresses of the shards, in the order of the shards
+     */
+    private static List<InetSocketAddress> startNodes(int shards, List<Process> nodes) throws IOException {
+        List<InetSocketAddress> addresses = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            List<String> command = new ArrayList<>(List.of(
+                    ProcessHandle.current().info().command().orElse("java"),
+                    "-Dlabs.pm.wal.enabled=false", "-Dlabs.pm.data.watch=false"));
+            String modulePath = System.getProperty("jdk.module.path");
+            if (modulePath != null)
+                command.addAll(List.of("-p", modulePath, "-m",
+                        ShardNode.class.getModule().getName() + "/" + ShardNode.class.getName()));
+            else
+                command.addAll(List.of("-cp", System.getProperty("java.class.path"), ShardNode.class.getName()));
+            command.addAll(List.of("shard=" + shard, "shards=" + shards, "port=0"));
+
+            Process node = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            nodes.add(node);
+            String ready = new BufferedReader(new InputStreamReader(node.getInputStream(), StandardCharsets.UTF_8))
+                    .readLine();
+            if (ready == null || !ready.startsWith("port "))
+                throw new IOException("Shard " + shard + " didn't start");
+            addresses.add(new InetSocketAddress("localhost", Integer.parseInt(ready.substring(5).trim())));
+        }
+        return addresses;
+    }
+
+    private static void stopNodes(List<Process> nodes) {
+        for (Process node : nodes) {
+            try {
+                node.getOutputStream().close();
+                node.waitFor();
+            } catch (IOException e) {
+                node.destroy();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                node.destroy();
+            }
+        }
+    }
+
+    /**
+     * Creates the products with a few reviews each, the same catalog for any number of shards
+     */
+    private static void fill(ProductManager pm, int size) throws ProductManagerException {
+        Random random = new Random(42);
+        LocalDate today = LocalDate.now();
+        List<ReviewRequest> batch = new ArrayList<>(REVIEW_BATCH);
+        for (int i = 0; i < size; i++) {
+            int id = FIRST_ID + i;
+            BigDecimal price = BigDecimal.valueOf(50 + random.nextInt(1951), 2);
+            if (i % 2 == 0)
+                pm.createProduct(id, "Cake " + i, price, Rating.NOT__RATED, today.plusDays(random.nextInt(30)));
+            else
+                pm.createProduct(id, "Tea " + i, price, Rating.NOT__RATED);
+            for (int r = random.nextInt(5); r > 0; r--) {
+                batch.add(new ReviewRequest(id, Rating.values()[1 + random.nextInt(5)], "Review of product " + id));
+                if (batch.size() == REVIEW_BATCH) {
+                    pm.reviewProducts(batch);
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty())
+            pm.reviewProducts(batch);
+    }
+
+    private static void measure(ProductManager pm, int shards, int size, int threads, int operations) {
+        int[] ids = new Random(7).ints(operations, FIRST_ID, FIRST_ID + size).toArray();
+        Map<String, IntConsumer> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("findProduct", i -> {
+            try {
+                Benchmark.sink = pm.findProduct(ids[i]);
+            } catch (ProductManagerException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        benchmarks.put("reviewProduct", i -> {
+            try {
+                Benchmark.sink = pm.reviewProduct(ids[i], Rating.values()[1 + i % 5], "Benchmark review");
+            } catch (ProductManagerException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        benchmarks.put("getDiscounts", i -> {
+            try {
+                Benchmark.sink = pm.getDiscounts();
+            } catch (ProductManagerException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        benchmarks.forEach((name, benchmark) -> Benchmark.report(name + ", shards " + shards, threads,
+                Benchmark.measureConcurrent(threads, operations / threads, benchmark)));
+    }
+}
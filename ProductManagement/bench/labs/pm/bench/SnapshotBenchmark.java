@@ -0,0 +1,100 @@
+package labs.pm.bench;
+
+import labs.pm.data.Product;
+import labs.pm.data.ProductFileManager;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+import labs.pm.data.SnapshotCodec;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@code SnapshotBenchmark} compares dump and restore throughput of
+ * {@link SnapshotCodec} with the Java serialization of the catalog map
+ * it replaced. Results are reported per catalog entry.
+ * @version 1.0
+ * @author Ewa
+ */
+public class SnapshotBenchmark {
+    private static final int FIRST_ID = 2_000_000;
+
+    /**
+     * @param args number of products and reviews per product, 100 000 and 5 by default
+     */
+    public static void main(String[] args) throws IOException {
+        int size = (args.length > 0) ? Integer.parseInt(args[0]) : 100_000;
+        int reviewsPerProduct = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+        ProductFileManager pm = Benchmark.catalog();
+        HashMap<Product, List<Review>> catalog = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            Product product = (i % 2 == 0)
+                    ? pm.createProduct(FIRST_ID + i, "Cake " + i, BigDecimal.valueOf(399 + i % 100, 2),
+                            Rating.FOUR_STARS, LocalDate.of(2019, 9, 9).plusDays(i % 30))
+                    : pm.createProduct(FIRST_ID + i, "Tea " + i, BigDecimal.valueOf(199 + i % 100, 2),
+                            Rating.THREE_STARS);
+            List<Review> reviews = new ArrayList<>();
+            for (int r = 0; r < reviewsPerProduct; r++)
+                reviews.add(new Review(Rating.values()[r % 6], "Review " + r + " of product " + i));
+            catalog.put(product, reviews);
+        }
+
+        byte[] serialized = serialize(catalog);
+        byte[] snapshot = encode(catalog);
+        System.out.printf("serialization %d bytes, snapshot %d bytes%n", serialized.length, snapshot.length);
+
+        Benchmark.report("dump serialization", size, Benchmark.measure(1, i -> {
+            try {
+                Benchmark.sink = serialize(catalog);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }) / size);
+        Benchmark.report("dump snapshot codec", size, Benchmark.measure(1, i -> {
+            try {
+                Benchmark.sink = encode(catalog);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }) / size);
+        Benchmark.report("restore serialization", size, Benchmark.measure(1, i -> {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+                Benchmark.sink = in.readObject();
+            } catch (IOException | ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        }) / size);
+        Benchmark.report("restore snapshot codec", size, Benchmark.measure(1, i -> {
+            try {
+                Map<Product, List<Review>> restored = new HashMap<>();
+                SnapshotCodec.read(new ByteArrayInputStream(snapshot), restored::put);
+                Benchmark.sink = restored;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }) / size);
+    }
+
+    private static byte[] serialize(HashMap<Product, List<Review>> catalog) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(catalog);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encode(Map<Product, List<Review>> catalog) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (SnapshotCodec.Writer out = new SnapshotCodec.Writer(bytes)) {
+            for (Map.Entry<Product, List<Review>> entry : catalog.entrySet())
+                out.write(entry.getKey(), entry.getValue());
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,19 @@
+package labs.pm.app;
+
+import labs.pm.data.ProductFileManager;
+
+/**
+ * {@code ImportStore} is an application that imports products and reviews
+ * from the data and reports folders into the consolidated product store.
+ * @version 1.0
+ * @author Ewa
+ */
+public class ImportStore {
+
+    /**
+     * @param args witch is not used
+     */
+    public static void main(String[] args) {
+        ProductFileManager.getInstance().writeStore();
+    }
+}
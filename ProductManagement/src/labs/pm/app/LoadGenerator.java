@@ -0,0 +1,213 @@
+package labs.pm.app;
+
+import labs.pm.data.LatencyHistogram;
+import labs.pm.data.ProductFileManager;
+import labs.pm.data.ProductManagerException;
+import labs.pm.data.Rating;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@code LoadGenerator} runs many {@link Shop} clients against the catalog for
+ * a given time and reports the throughput and latency percentiles of each operation.
+ * <br>
+ * Arguments are {@code name=value} pairs, all optional:
+ * <br>
+ *      {@code clients=100} number of concurrent clients,
+ * <br>
+ *      {@code duration=10} seconds of the measured run, after {@code warmup=2} seconds,
+ * <br>
+ *      {@code mix=discount:1,review:1,report:1,find:0} weights of the operations,
+ * <br>
+ *      {@code ids=101-109} range of product ids the clients use,
+ * <br>
+ *      {@code distribution=uniform} or {@code zipf} with exponent {@code zipf=1.0},
+ *      where a few ids get most of the requests,
+ * <br>
+ *      {@code threads=platform} or {@code virtual}, virtual threads need Java 21,
+ * <br>
+ *      {@code wal=true} or {@code false} to run without the write ahead log.
+ * @version 1.0
+ * @author Ewa
+ */
+public class LoadGenerator {
+    private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+    private static final String[] OPERATIONS = {"discount", "review", "report", "find"};
+
+    private final ProductFileManager pm;
+    private final String[] languageTags;
+    private final int[] mix;
+    private final int mixTotal;
+    private final int firstId;
+    private final double[] zipf;
+    private final int products;
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    private LoadGenerator(ProductFileManager pm, Map<String, String> options) {
+        this.pm = pm;
+        this.languageTags = ProductFileManager.getSupportedLocales().toArray(new String[0]);
+        this.mix = parseMix(options.getOrDefault("mix", "discount:1,review:1,report:1,find:0"));
+        this.mixTotal = Arrays.stream(mix).sum();
+        if (mixTotal <= 0)
+            throw new IllegalArgumentException("Operation mix has no operations");
+
+        String[] ids = options.getOrDefault("ids", "101-109").split("-");
+        this.firstId = Integer.parseInt(ids[0].trim());
+        this.products = Integer.parseInt(ids[ids.length - 1].trim()) - firstId + 1;
+        this.zipf = options.getOrDefault("distribution", "uniform").equals("zipf")
+                ? zipfDistribution(products, Double.parseDouble(options.getOrDefault("zipf", "1.0")))
+                : null;
+        for (String operation : OPERATIONS)
+            latencies.put(operation, new LatencyHistogram());
+    }
+
+    /**
+     * @param args {@code name=value} options described in the class comment
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            options.put(option[0].trim(), (option.length > 1) ? option[1].trim() : "");
+        }
+        if (options.containsKey("wal"))
+            System.setProperty("labs.pm.wal.enabled", options.get("wal"));
+
+        int clients = Integer.parseInt(options.getOrDefault("clients", "100"));
+        long warmup = Long.parseLong(options.getOrDefault("warmup", "2"));
+        long duration = Long.parseLong(options.getOrDefault("duration", "10"));
+        LoadGenerator generator = new LoadGenerator(ProductFileManager.getInstance(), options);
+
+        ExecutorService executor = newExecutor(options.getOrDefault("threads", "platform"), clients);
+        AtomicInteger clientCount = new AtomicInteger(0);
+        for (int i = 0; i < clients; i++)
+            executor.execute(() -> generator.client("Client" + clientCount.incrementAndGet()));
+
+        TimeUnit.SECONDS.sleep(warmup);
+        generator.measuring = true;
+        long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(duration);
+        generator.measuring = false;
+        long elapsed = System.nanoTime() - start;
+        generator.running = false;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        System.out.printf("%d clients on %s threads, %d s%n", clients, options.getOrDefault("threads", "platform"), duration);
+        generator.report(elapsed);
+    }
+
+    /**
+     * Creates virtual threads through reflection, so the generator still
+     * compiles and runs on Java 17 with platform threads
+     */
+    private static ExecutorService newExecutor(String threads, int clients) {
+        if (threads.equals("virtual")) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                logger.log(Level.WARNING, "Virtual threads are not available, running platform threads");
+            }
+        }
+        return Executors.newFixedThreadPool(clients);
+    }
+
+    private static int[] parseMix(String text) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String part : text.split(",")) {
+            String[] weight = part.split(":");
+            int operation = Arrays.asList(OPERATIONS).indexOf(weight[0].trim());
+            if (operation < 0)
+                throw new IllegalArgumentException("Unknown operation " + weight[0]);
+            weights[operation] = Integer.parseInt(weight[1].trim());
+        }
+        return weights;
+    }
+
+    /**
+     * @return cumulative probabilities of the ranks of a Zipf distribution
+     */
+    private static double[] zipfDistribution(int size, double exponent) {
+        double[] cumulative = new double[size];
+        double sum = 0;
+        for (int rank = 0; rank < size; rank++) {
+            sum += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < size; rank++)
+            cumulative[rank] /= sum;
+        return cumulative;
+    }
+
+    private int nextId(ThreadLocalRandom random) {
+        if (zipf == null)
+            return firstId + random.nextInt(products);
+        int rank = Arrays.binarySearch(zipf, random.nextDouble());
+        return firstId + Math.min((rank < 0) ? -rank - 1 : rank, products - 1);
+    }
+
+    private int nextOperation(ThreadLocalRandom random) {
+        int pick = random.nextInt(mixTotal);
+        int operation = 0;
+        while (pick >= mix[operation])
+            pick -= mix[operation++];
+        return operation;
+    }
+
+    /**
+     * Loop of one client, the same operations as the clients of {@link Shop}
+     */
+    private void client(String clientId) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running) {
+            int operation = nextOperation(random);
+            int productId = nextId(random);
+            String languageTag = languageTags[random.nextInt(languageTags.length)];
+            long start = System.nanoTime();
+            try {
+                switch (operation) {
+                    case 0:
+                        pm.getDiscount(languageTag);
+                        break;
+                    case 1:
+                        pm.reviewProduct(productId, Rating.FOUR_STARS, "Yet another review");
+                        break;
+                    case 2:
+                        pm.printProductReportAsync(productId, languageTag, clientId).join();
+                        break;
+                    default:
+                        pm.findProduct(productId);
+                }
+            } catch (ProductManagerException e) {
+                logger.log(Level.FINE, e.getMessage());
+            }
+            if (measuring)
+                latencies.get(OPERATIONS[operation]).record(System.nanoTime() - start);
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        System.out.printf("%-10s %10s %12s %10s %10s %10s %10s%n",
+                "operation", "count", "ops/s", "p50 us", "p99 us", "p999 us", "max us");
+        latencies.forEach((operation, histogram) -> {
+            long count = histogram.getCount();
+            if (count > 0)
+                System.out.printf("%-10s %10d %12.0f %10.1f %10.1f %10.1f %10.1f%n", operation, count,
+                        count * 1e9 / elapsedNanos, histogram.getPercentile(50) / 1e3,
+                        histogram.getPercentile(99) / 1e3, histogram.getPercentile(99.9) / 1e3,
+                        histogram.getMax() / 1e3);
+        });
+    }
+}
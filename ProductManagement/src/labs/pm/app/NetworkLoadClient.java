@@ -0,0 +1,215 @@
+package labs.pm.app;
+
+import labs.pm.data.CatalogClient;
+import labs.pm.data.LatencyHistogram;
+import labs.pm.data.ProductManagerException;
+import labs.pm.data.ProductQuery;
+import labs.pm.data.ProductSort;
+import labs.pm.data.Rating;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@code NetworkLoadClient} runs many connections against a {@link ShopServer}
+ * for a given time and reports the requests per second and latency percentiles
+ * of each operation.
+ * <br>
+ * Arguments are {@code name=value} pairs, all optional:
+ * <br>
+ *      {@code host=localhost} and {@code port=7070} of the server,
+ * <br>
+ *      {@code connections=50} number of connections, each on its own thread,
+ * <br>
+ *      {@code pipeline=1} requests a connection sends before it reads their responses,
+ * <br>
+ *      {@code duration=10} seconds of the measured run, after {@code warmup=2} seconds,
+ * <br>
+ *      {@code mix=discount:1,review:1,report:1,find:1,list:0} weights of the operations,
+ * <br>
+ *      {@code ids=101-109} range of product ids the connections use.
+ * <br>
+ * The latency of a request is measured from the moment its batch is sent
+ * to the moment its response is read.
+ * @version 1.0
+ * @author Ewa
+ */
+public class NetworkLoadClient {
+    private static final Logger logger = Logger.getLogger(NetworkLoadClient.class.getName());
+    private static final String[] OPERATIONS = {"discount", "review", "report", "find", "list"};
+    private static final String[] LANGUAGE_TAGS = {"en-GB", "en-US", "fr-FR", "ru-RU", "zh-CN", "pl-PL"};
+
+    private final String host;
+    private final int port;
+    private final int pipeline;
+    private final int[] mix;
+    private final int mixTotal;
+    private final int firstId;
+    private final int products;
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+    private final LongAdder failures = new LongAdder();
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    private NetworkLoadClient(Map<String, String> options) {
+        this.host = options.getOrDefault("host", "localhost");
+        this.port = Integer.parseInt(options.getOrDefault("port", "7070"));
+        this.pipeline = Integer.parseInt(options.getOrDefault("pipeline", "1"));
+        this.mix = parseMix(options.getOrDefault("mix", "discount:1,review:1,report:1,find:1,list:0"));
+        this.mixTotal = Arrays.stream(mix).sum();
+        if (mixTotal <= 0 || pipeline < 1)
+            throw new IllegalArgumentException("Operation mix has no operations or pipeline is less than 1");
+
+        String[] ids = options.getOrDefault("ids", "101-109").split("-");
+        this.firstId = Integer.parseInt(ids[0].trim());
+        this.products = Integer.parseInt(ids[ids.length - 1].trim()) - firstId + 1;
+        for (String operation : OPERATIONS)
+            latencies.put(operation, new LatencyHistogram());
+    }
+
+    /**
+     * @param args {@code name=value} options described in the class comment
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            options.put(option[0].trim(), (option.length > 1) ? option[1].trim() : "");
+        }
+        int connections = Integer.parseInt(options.getOrDefault("connections", "50"));
+        long warmup = Long.parseLong(options.getOrDefault("warmup", "2"));
+        long duration = Long.parseLong(options.getOrDefault("duration", "10"));
+        NetworkLoadClient client = new NetworkLoadClient(options);
+
+        List<Thread> threads = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            Thread thread = new Thread(client::connection, "load-connection-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+
+        TimeUnit.SECONDS.sleep(warmup);
+        client.measuring = true;
+        long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(duration);
+        client.measuring = false;
+        long elapsed = System.nanoTime() - start;
+        client.running = false;
+        for (Thread thread : threads)
+            thread.join();
+
+        System.out.printf("%d connections, pipeline %d, %d s%n", connections, client.pipeline, duration);
+        client.report(elapsed);
+    }
+
+    private static int[] parseMix(String text) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String part : text.split(",")) {
+            String[] weight = part.split(":");
+            int operation = Arrays.asList(OPERATIONS).indexOf(weight[0].trim());
+            if (operation < 0)
+                throw new IllegalArgumentException("Unknown operation " + weight[0]);
+            weights[operation] = Integer.parseInt(weight[1].trim());
+        }
+        return weights;
+    }
+
+    private int nextOperation(ThreadLocalRandom random) {
+        int pick = random.nextInt(mixTotal);
+        int operation = 0;
+        while (pick >= mix[operation])
+            pick -= mix[operation++];
+        return operation;
+    }
+
+    /**
+     * Loop of one connection, sends a batch of {@code pipeline} requests
+     * and reads their responses
+     */
+    private void connection() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int[] operations = new int[pipeline];
+        try (CatalogClient client = new CatalogClient(host, port)) {
+            while (running) {
+                for (int i = 0; i < pipeline; i++) {
+                    operations[i] = nextOperation(random);
+                    int productId = firstId + random.nextInt(products);
+                    String languageTag = LANGUAGE_TAGS[random.nextInt(LANGUAGE_TAGS.length)];
+                    switch (operations[i]) {
+                        case 0:
+                            client.sendGetDiscount(languageTag);
+                            break;
+                        case 1:
+                            client.sendReviewProduct(productId, Rating.FOUR_STARS, "Yet another review");
+                            break;
+                        case 2:
+                            client.sendGetReport(productId, languageTag);
+                            break;
+                        case 3:
+                            client.sendFindProduct(productId);
+                            break;
+                        default:
+                            client.sendFindProducts(ProductQuery.all(), ProductSort.RATING_DESCENDING, 0, 10);
+                    }
+                }
+                long start = System.nanoTime();
+                client.flush();
+
+                for (int i = 0; i < pipeline; i++) {
+                    try {
+                        switch (operations[i]) {
+                            case 0:
+                                client.readDiscount();
+                                break;
+                            case 2:
+                                client.readReport();
+                                break;
+                            case 4:
+                                client.readProducts();
+                                break;
+                            default:
+                                client.readProduct();
+                        }
+                    } catch (ProductManagerException e) {
+                        failures.increment();
+                    }
+                    if (measuring)
+                        latencies.get(OPERATIONS[operations[i]]).record(System.nanoTime() - start);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Connection failed " + e.getMessage(), e);
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        System.out.printf("%-10s %10s %12s %10s %10s %10s %10s%n",
+                "operation", "count", "req/s", "p50 us", "p99 us", "p999 us", "max us");
+        LatencyHistogram all = new LatencyHistogram();
+        latencies.forEach((operation, histogram) -> {
+            all.add(histogram);
+            print(operation, histogram, elapsedNanos);
+        });
+        print("all", all, elapsedNanos);
+        System.out.println("failed requests " + failures.sum());
+    }
+
+    private static void print(String name, LatencyHistogram histogram, long elapsedNanos) {
+        long count = histogram.getCount();
+        if (count > 0)
+            System.out.printf("%-10s %10d %12.0f %10.1f %10.1f %10.1f %10.1f%n", name, count,
+                    count * 1e9 / elapsedNanos, histogram.getPercentile(50) / 1e3,
+                    histogram.getPercentile(99) / 1e3, histogram.getPercentile(99.9) / 1e3,
+                    histogram.getMax() / 1e3);
+    }
+}
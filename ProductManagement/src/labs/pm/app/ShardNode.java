@@ -0,0 +1,47 @@
+package labs.pm.app;
+
+import labs.pm.data.ProductFileManager;
+import labs.pm.data.ShardServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@code ShardNode} is an application that serves one shard of a partitioned
+ * catalog to a {@link labs.pm.data.ShardedProductManager} in another process.
+ * <br>
+ * Arguments are {@code name=value} pairs: {@code shard=0} index of the shard,
+ * {@code shards=1} number of shards and {@code port=0} to listen on, 0 picks a
+ * free port. The node prints {@code port <number>} once it serves the shard and
+ * stops when its standard input is closed, so it stops with the process that
+ * started it.
+ * @version 1.0
+ * @author Ewa
+ */
+public class ShardNode {
+
+    /**
+     * @param args {@code name=value} options described in the class comment
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            options.put(option[0].trim(), (option.length > 1) ? option[1].trim() : "");
+        }
+        System.setProperty("labs.pm.shard.index", options.getOrDefault("shard", "0"));
+        System.setProperty("labs.pm.shard.count", options.getOrDefault("shards", "1"));
+
+        try (ShardServer server = new ShardServer(Integer.parseInt(options.getOrDefault("port", "0")),
+                ProductFileManager.getInstance())) {
+            System.out.println("port " + server.getPort());
+            System.out.flush();
+            InputStream in = System.in;
+            while (in.read() >= 0) {
+                // runs until the standard input is closed
+            }
+        }
+    }
+}
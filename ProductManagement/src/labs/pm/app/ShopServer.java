@@ -0,0 +1,33 @@
+package labs.pm.app;
+
+import labs.pm.data.CatalogServer;
+import labs.pm.data.ProductFileManager;
+
+import java.io.IOException;
+
+/**
+ * {@code ShopServer} is an application that serves the catalog to remote
+ * clients through a {@link CatalogServer} until the process is stopped.
+ * @version 1.0
+ * @author Ewa
+ */
+public class ShopServer {
+
+    /**
+     * @param args optional {@code port=<number>}, the port of the configuration by default
+     */
+    public static void main(String[] args) throws IOException {
+        ProductFileManager pm = ProductFileManager.getInstance();
+        CatalogServer server = (args.length > 0 && args[0].startsWith("port="))
+                ? new CatalogServer(Integer.parseInt(args[0].substring(5).trim()), pm)
+                : new CatalogServer(pm);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException e) {
+                System.err.println("Error closing server " + e.getMessage());
+            }
+        }, "shop-server-shutdown"));
+        System.out.println("Shop server listening on port " + server.getPort());
+    }
+}
@@ -0,0 +1,192 @@
+package labs.pm.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@code CatalogClient} is a connection to a {@link CatalogServer}.
+ * <br>
+ * Each operation has a method that sends the request and waits for its response.
+ * To pipeline requests, callers send any number of them with the {@code send}
+ * methods, {@link #flush()} them and read their responses with the {@code read}
+ * methods in the order the requests were sent. A client is used by one thread
+ * at a time.
+ * @version 1.0
+ * @author Ewa
+ */
+public class CatalogClient implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream request = new ByteArrayOutputStream(256);
+    private final DataOutputStream requestOut = new DataOutputStream(request);
+
+    /**
+     * Connects to a server
+     * @param host of the server
+     * @param port of the server
+     * @throws IOException if the server can't be reached
+     */
+    public CatalogClient(String host, int port) throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+    }
+
+    public void sendFindProduct(int id) throws IOException {
+        requestOut.writeByte(CatalogProtocol.FIND_PRODUCT);
+        requestOut.writeInt(id);
+        send();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the query has a filter, filters can't be sent
+     */
+    public void sendFindProducts(ProductQuery query, ProductSort sort, int offset, int limit) throws IOException {
+        if (query.getFilter() != null)
+            throw new IllegalArgumentException("Query filters can't be sent to the server");
+        requestOut.writeByte(CatalogProtocol.FIND_PRODUCTS);
+        ShardProtocol.writeQuery(requestOut, query);
+        ShardProtocol.writeSort(requestOut, sort);
+        requestOut.writeInt(offset);
+        requestOut.writeInt(limit);
+        send();
+    }
+
+    public void sendReviewProduct(int id, Rating rating, String comments) throws IOException {
+        requestOut.writeByte(CatalogProtocol.REVIEW_PRODUCT);
+        requestOut.writeInt(id);
+        requestOut.writeByte(rating.ordinal());
+        SnapshotCodec.writeString(requestOut, comments);
+        send();
+    }
+
+    public void sendGetDiscount(String languageTag) throws IOException {
+        requestOut.writeByte(CatalogProtocol.GET_DISCOUNT);
+        SnapshotCodec.writeString(requestOut, languageTag);
+        send();
+    }
+
+    public void sendGetReport(int id, String languageTag) throws IOException {
+        requestOut.writeByte(CatalogProtocol.GET_REPORT);
+        requestOut.writeInt(id);
+        SnapshotCodec.writeString(requestOut, languageTag);
+        send();
+    }
+
+    /**
+     * Writes the frame of the request built in the request buffer
+     */
+    private void send() throws IOException {
+        out.writeInt(request.size());
+        request.writeTo(out);
+        request.reset();
+    }
+
+    /**
+     * Sends all requests written so far to the server
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Reads the header of the next response
+     * @return number of bytes of the result
+     * @throws ProductManagerException with the message of the server if the request failed
+     */
+    private int readStatus() throws IOException, ProductManagerException {
+        int length = in.readInt();
+        byte status = in.readByte();
+        if (status == CatalogProtocol.FAILED)
+            throw new ProductManagerException(SnapshotCodec.readString(in));
+        if (status != CatalogProtocol.OK)
+            throw new IOException("Unknown response status " + status);
+        return length - 1;
+    }
+
+    /**
+     * Reads the response of a lookup or a review
+     */
+    public Product readProduct() throws IOException, ProductManagerException {
+        readStatus();
+        return ShardProtocol.readProduct(in);
+    }
+
+    public List<Product> readProducts() throws IOException, ProductManagerException {
+        readStatus();
+        return ShardProtocol.readProducts(in);
+    }
+
+    /**
+     * @return formatted total discount per rating
+     */
+    public Map<String, String> readDiscount() throws IOException, ProductManagerException {
+        readStatus();
+        int count = in.readInt();
+        Map<String, String> discount = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++)
+            discount.put(SnapshotCodec.readString(in), SnapshotCodec.readString(in));
+        return discount;
+    }
+
+    /**
+     * @return text of the report
+     */
+    public String readReport() throws IOException, ProductManagerException {
+        byte[] report = new byte[readStatus()];
+        in.readFully(report);
+        return new String(report, StandardCharsets.UTF_8);
+    }
+
+    public Product findProduct(int id) throws IOException, ProductManagerException {
+        sendFindProduct(id);
+        flush();
+        return readProduct();
+    }
+
+    public List<Product> findProducts(ProductQuery query, ProductSort sort, int offset, int limit)
+            throws IOException, ProductManagerException {
+        sendFindProducts(query, sort, offset, limit);
+        flush();
+        return readProducts();
+    }
+
+    public Product reviewProduct(int id, Rating rating, String comments) throws IOException, ProductManagerException {
+        sendReviewProduct(id, rating, comments);
+        flush();
+        return readProduct();
+    }
+
+    public Map<String, String> getDiscount(String languageTag) throws IOException, ProductManagerException {
+        sendGetDiscount(languageTag);
+        flush();
+        return readDiscount();
+    }
+
+    public String getReport(int id, String languageTag) throws IOException, ProductManagerException {
+        sendGetReport(id, languageTag);
+        flush();
+        return readReport();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
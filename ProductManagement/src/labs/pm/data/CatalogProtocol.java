@@ -0,0 +1,32 @@
+package labs.pm.data;
+
+/**
+ * {@code CatalogProtocol} is the binary protocol between a {@link CatalogClient}
+ * and a {@link CatalogServer}.
+ * <br>
+ * Every request and response is a frame of an int length followed by that many
+ * bytes. A request frame is an operation byte and its arguments, a response frame
+ * is a status byte followed by the result or, when the request failed, by the
+ * message of the failure. Products, queries and strings are written as by
+ * {@link ShardProtocol}. A report is sent as its UTF-8 bytes, the rest of its frame.
+ * <br>
+ * Clients may send any number of requests without waiting for responses, the
+ * server answers them in the order they were sent.
+ * @version 1.0
+ * @author Ewa
+ */
+final class CatalogProtocol {
+    static final byte FIND_PRODUCT = 1;
+    static final byte FIND_PRODUCTS = 2;
+    static final byte REVIEW_PRODUCT = 3;
+    static final byte GET_DISCOUNT = 4;
+    static final byte GET_REPORT = 5;
+
+    static final byte OK = 0;
+    static final byte FAILED = 1;
+
+    static final int LENGTH_SIZE = 4;
+
+    private CatalogProtocol() {
+    }
+}
@@ -0,0 +1,517 @@
+package labs.pm.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@code CatalogServer} serves the catalog to remote {@link CatalogClient}s over
+ * {@link CatalogProtocol} on non-blocking sockets.
+ * <br>
+ * An acceptor thread hands new connections to {@code server.selector.threads}
+ * selector loops in turn, each loop serves all its connections on one thread.
+ * A loop reads all complete requests a connection has sent, answers lookups and
+ * discounts right away and passes queries, which may scan the catalog, reviews,
+ * which wait for the write ahead log, and reports, which may be rendered and
+ * written, to a pool of {@code server.worker.threads} workers. Responses are written in the order of
+ * the requests, all responses that are ready are gathered into one write.
+ * Reports are sent from their files by {@link FileChannel#transferTo}, so the
+ * bytes of a report file are not copied through the heap, and a report file is
+ * written again only when the report changes. A replaced report file is deleted
+ * once no response is sending it.
+ * <br>
+ * At most {@code server.max.pipelined} requests of a connection wait for their
+ * responses, the server stops reading a connection that has sent more until
+ * they are written.
+ * @version 1.0
+ * @author Ewa
+ */
+public class CatalogServer implements Closeable {
+    private static final Logger logger = Logger.getLogger(CatalogServer.class.getName());
+
+    private final ProductFileManager pm;
+    private final ServerSocketChannel serverChannel;
+    private final Loop[] loops;
+    private final ExecutorService workers;
+    private final int maxRequestBytes;
+    private final int maxPipelined;
+    private final int batchBytes;
+    private volatile boolean running = true;
+
+    /**
+     * Response frame, followed by the bytes of a report file for reports
+     */
+    private static final class Reply {
+        private final byte[] frame;
+        private final FileChannel file;
+        private final Path path;
+        private final long fileSize;
+
+        private Reply(byte[] frame, FileChannel file, Path path, long fileSize) {
+            this.frame = frame;
+            this.file = file;
+            this.path = path;
+            this.fileSize = fileSize;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Payload {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Connection state, used only by the thread of its loop
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final Loop loop;
+        private final Deque<CompletableFuture<Reply>> pending = new ArrayDeque<>();
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(8 * 1024);
+        private ByteBuffer out = ByteBuffer.allocate(batchBytes).flip();
+        private FileChannel file;
+        private Path filePath;
+        private long filePosition;
+        private long fileEnd;
+        private boolean blocked;
+
+        private Connection(SocketChannel channel, Loop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+    }
+
+    /**
+     * Selector loop serving a share of the connections
+     */
+    private final class Loop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> completed = new ConcurrentLinkedQueue<>();
+
+        private Loop() throws IOException {
+            selector = Selector.open();
+        }
+
+        private void add(SocketChannel channel) {
+            accepted.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Called by the thread that completed a response of the connection
+         */
+        private void completed(Connection connection) {
+            completed.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Error selecting connections " + e.getMessage(), e);
+                    break;
+                }
+                for (SocketChannel channel = accepted.poll(); channel != null; channel = accepted.poll()) {
+                    Connection connection = new Connection(channel, this);
+                    try {
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    } catch (ClosedChannelException e) {
+                        close(connection);
+                    }
+                }
+                for (Connection connection = completed.poll(); connection != null; connection = completed.poll()) {
+                    if (connection.key.isValid())
+                        serve(connection, false);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid())
+                        serve((Connection) key.attachment(), key.isReadable());
+                }
+            }
+            for (SelectionKey key : selector.keys())
+                close((Connection) key.attachment());
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Error closing selector " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Starts the server on {@code server.port}
+     * @param pm catalog to serve
+     * @throws IOException if the port can't be opened
+     */
+    public CatalogServer(ProductFileManager pm) throws IOException {
+        this(Integer.parseInt(ResourceBundle.getBundle("labs.pm.data.config").getString("server.port").trim()), pm);
+    }
+
+    /**
+     * Starts the server on {@code server.selector.threads} selector threads,
+     * 0 means one per processor, and {@code server.worker.threads} worker threads
+     * @param port to listen on, 0 picks a free port
+     * @param pm catalog to serve
+     * @throws IOException if the port can't be opened
+     */
+    public CatalogServer(int port, ProductFileManager pm) throws IOException {
+        ResourceBundle config = ResourceBundle.getBundle("labs.pm.data.config");
+        this.pm = pm;
+        this.maxRequestBytes = Integer.parseInt(config.getString("server.max.request.bytes").trim());
+        this.maxPipelined = Integer.parseInt(config.getString("server.max.pipelined").trim());
+        this.batchBytes = Integer.parseInt(config.getString("server.batch.bytes").trim());
+        int selectors = Integer.parseInt(config.getString("server.selector.threads").trim());
+        int workerThreads = Integer.parseInt(config.getString("server.worker.threads").trim());
+        this.workers = Executors.newFixedThreadPool(workerThreads, task -> {
+            Thread thread = new Thread(task, "catalog-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        loops = new Loop[(selectors > 0) ? selectors : Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop();
+            new Thread(loops[i], "catalog-selector-" + i).start();
+        }
+        new Thread(this::accept, "catalog-acceptor").start();
+        logger.log(Level.INFO, "Catalog server listening on port " + getPort());
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void accept() {
+        int next = 0;
+        try {
+            while (running) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].add(channel);
+                next = (next + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            if (running)
+                logger.log(Level.SEVERE, "Error accepting connections " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads new requests, writes ready responses and updates the interest of the connection
+     */
+    private void serve(Connection connection, boolean readable) {
+        try {
+            if (readable && connection.channel.read(connection.in) < 0) {
+                close(connection);
+                return;
+            }
+            boolean limited;
+            do {
+                limited = parse(connection);
+                flush(connection);
+            } while (limited && connection.pending.size() < maxPipelined);
+
+            int ops = (connection.pending.size() < maxPipelined) ? SelectionKey.OP_READ : 0;
+            connection.key.interestOps(connection.blocked ? ops | SelectionKey.OP_WRITE : ops);
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.FINE, "Connection closed " + e.getMessage());
+            close(connection);
+        }
+    }
+
+    /**
+     * Starts answering all complete requests in the input buffer
+     * @return true if requests are left in the buffer because too many are pending
+     */
+    private boolean parse(Connection connection) throws IOException {
+        ByteBuffer in = connection.in.flip();
+        try {
+            while (in.remaining() >= CatalogProtocol.LENGTH_SIZE) {
+                int length = in.getInt(in.position());
+                if (length < 1 || length > maxRequestBytes)
+                    throw new IOException("Request of " + length + " bytes");
+                if (in.remaining() < CatalogProtocol.LENGTH_SIZE + length)
+                    break;
+                if (connection.pending.size() >= maxPipelined)
+                    return true;
+
+                int start = in.position() + CatalogProtocol.LENGTH_SIZE;
+                in.position(start + length);
+                CompletableFuture<Reply> reply = answer(new DataInputStream(
+                        new ByteArrayInputStream(in.array(), in.arrayOffset() + start, length)));
+                connection.pending.add(reply);
+                if (!reply.isDone())
+                    reply.whenComplete((done, e) -> connection.loop.completed(connection));
+            }
+            return false;
+        } finally {
+            in.compact();
+            if (in.position() >= CatalogProtocol.LENGTH_SIZE) {
+                int frame = CatalogProtocol.LENGTH_SIZE + in.getInt(0);
+                if (frame > in.capacity() && frame <= CatalogProtocol.LENGTH_SIZE + maxRequestBytes)
+                    connection.in = ByteBuffer.allocate(frame).put(in.flip());
+            }
+        }
+    }
+
+    /**
+     * Writes ready responses in the order of the requests until the socket
+     * can't take more, the bytes of a report file are transferred after its frame
+     */
+    private void flush(Connection connection) throws IOException {
+        while (true) {
+            if (connection.out.hasRemaining()) {
+                connection.channel.write(connection.out);
+                if (connection.out.hasRemaining()) {
+                    connection.blocked = true;
+                    return;
+                }
+            }
+            if (connection.file != null) {
+                long sent = connection.file.transferTo(connection.filePosition,
+                        connection.fileEnd - connection.filePosition, connection.channel);
+                connection.filePosition += sent;
+                if (connection.filePosition < connection.fileEnd) {
+                    if (sent == 0 && connection.filePosition >= connection.file.size())
+                        throw new IOException("Report file is shorter than its response");
+                    connection.blocked = true;
+                    return;
+                }
+                closeFile(connection.file, connection.filePath);
+                connection.file = null;
+            }
+            if (!batch(connection)) {
+                connection.blocked = false;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gathers responses that are ready into the output buffer, up to
+     * {@code server.batch.bytes} or a report
+     * @return false if no response is ready
+     */
+    private boolean batch(Connection connection) {
+        ByteBuffer out = connection.out.clear();
+        while (!connection.pending.isEmpty() && connection.pending.peek().isDone()) {
+            Reply reply = connection.pending.peek().join();
+            if (out.position() > 0 && out.remaining() < reply.frame.length)
+                break;
+            connection.pending.poll();
+            if (out.remaining() < reply.frame.length)
+                out = connection.out = ByteBuffer.allocate(reply.frame.length).put(out.flip());
+            out.put(reply.frame);
+            if (reply.file != null) {
+                connection.file = reply.file;
+                connection.filePath = reply.path;
+                connection.filePosition = 0;
+                connection.fileEnd = reply.fileSize;
+                break;
+            }
+        }
+        out.flip();
+        return out.hasRemaining();
+    }
+
+    private void close(Connection connection) {
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing connection " + e.getMessage());
+        }
+        if (connection.file != null) {
+            closeFile(connection.file, connection.filePath);
+            connection.file = null;
+        }
+        for (CompletableFuture<Reply> reply : connection.pending)
+            reply.thenAccept(done -> closeFile(done.file, done.path));
+        connection.pending.clear();
+    }
+
+    /**
+     * Closes a report file and releases it, so it can be deleted once it is replaced
+     */
+    private void closeFile(FileChannel file, Path path) {
+        if (file == null)
+            return;
+        try {
+            file.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing report file " + e.getMessage());
+        }
+        pm.releaseReportFile(path);
+    }
+
+    /**
+     * Answers one request, lookups and discounts on the calling selector thread,
+     * queries, reviews and reports on a worker. The request is read from its buffered
+     * frame, so no string of it can be longer than the bytes left in the frame.
+     * @return future completed with the response, never exceptionally
+     */
+    private CompletableFuture<Reply> answer(DataInputStream request) {
+        try {
+            switch (request.readByte()) {
+                case CatalogProtocol.FIND_PRODUCT: {
+                    Product product = pm.findProduct(request.readInt());
+                    return CompletableFuture.completedFuture(ok(out -> ShardProtocol.writeProduct(out, product)));
+                }
+                case CatalogProtocol.FIND_PRODUCTS: {
+                    ProductQuery query = ShardProtocol.readQuery(request);
+                    ProductSort sort = ShardProtocol.readSort(request);
+                    int offset = request.readInt();
+                    int limit = request.readInt();
+                    return CompletableFuture.supplyAsync(() -> {
+                        List<Product> products = pm.findProducts(query, sort, offset, limit);
+                        return ok(out -> ShardProtocol.writeProducts(out, products));
+                    }, workers).exceptionally(e -> failed(e.getMessage()));
+                }
+                case CatalogProtocol.REVIEW_PRODUCT: {
+                    int id = request.readInt();
+                    Rating rating = Rateable.convert(request.readByte());
+                    String comments = SnapshotCodec.readString(request, request.available());
+                    return CompletableFuture.supplyAsync(() -> {
+                        Product product = pm.reviewProduct(id, rating, comments);
+                        return (product == null) ? failed("Product with id = " + id + " not reviewed")
+                                : ok(out -> ShardProtocol.writeProduct(out, product));
+                    }, workers).exceptionally(e -> failed(e.getMessage()));
+                }
+                case CatalogProtocol.GET_DISCOUNT: {
+                    String languageTag = SnapshotCodec.readString(request, request.available());
+                    Map<String, String> discount = pm.getDiscount(languageTag);
+                    return CompletableFuture.completedFuture(ok(out -> {
+                        out.writeInt(discount.size());
+                        for (Map.Entry<String, String> entry : discount.entrySet()) {
+                            SnapshotCodec.writeString(out, entry.getKey());
+                            SnapshotCodec.writeString(out, entry.getValue());
+                        }
+                    }));
+                }
+                case CatalogProtocol.GET_REPORT: {
+                    int id = request.readInt();
+                    return report(id, SnapshotCodec.readString(request, request.available()), true);
+                }
+                default:
+                    return CompletableFuture.completedFuture(failed("Unknown operation"));
+            }
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(failed("Malformed request " + e.getMessage()));
+        } catch (ProductManagerException | RuntimeException e) {
+            return CompletableFuture.completedFuture(failed(e.getMessage()));
+        }
+    }
+
+    /**
+     * Opens the report file of a product, a file replaced by a newer report
+     * before it was opened is looked up once more
+     */
+    private CompletableFuture<Reply> report(int id, String languageTag, boolean retry) {
+        return CompletableFuture.supplyAsync(() -> pm.getReportFile(id, languageTag), workers)
+                .thenCompose(written -> written)
+                .thenCompose(file -> {
+                    if (file == null)
+                        return CompletableFuture.completedFuture(failed("Product with id = " + id + " not found!"));
+                    try {
+                        return CompletableFuture.completedFuture(reportReply(file));
+                    } catch (NoSuchFileException e) {
+                        pm.releaseReportFile(file);
+                        return retry ? report(id, languageTag, false)
+                                : CompletableFuture.completedFuture(failed("Report of product " + id + " not found"));
+                    } catch (IOException e) {
+                        pm.releaseReportFile(file);
+                        return CompletableFuture.completedFuture(failed("Error reading report " + e.getMessage()));
+                    }
+                })
+                .exceptionally(e -> failed("Error writing report " + e.getMessage()));
+    }
+
+    private static Reply reportReply(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        long size = channel.size();
+        if (size >= Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException("Report file " + file + " is too large");
+        }
+        byte[] frame = ByteBuffer.allocate(CatalogProtocol.LENGTH_SIZE + 1)
+                .putInt((int) size + 1).put(CatalogProtocol.OK).array();
+        return new Reply(frame, channel, file, size);
+    }
+
+    private static Reply ok(Payload payload) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0);
+            out.writeByte(CatalogProtocol.OK);
+            payload.write(out);
+        } catch (IOException e) {
+            return failed("Error writing response " + e.getMessage());
+        }
+        byte[] frame = bytes.toByteArray();
+        ByteBuffer.wrap(frame).putInt(0, frame.length - CatalogProtocol.LENGTH_SIZE);
+        return new Reply(frame, null, null, 0);
+    }
+
+    private static Reply failed(String message) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0);
+            out.writeByte(CatalogProtocol.FAILED);
+            SnapshotCodec.writeString(out, String.valueOf(message));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] frame = bytes.toByteArray();
+        ByteBuffer.wrap(frame).putInt(0, frame.length - CatalogProtocol.LENGTH_SIZE);
+        return new Reply(frame, null, null, 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (Loop loop : loops)
+            loop.selector.wakeup();
+        workers.shutdown();
+    }
+}
@@ -0,0 +1,226 @@
+package labs.pm.data;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.ResourceBundle;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@code CommentStore} keeps the comments of reviews in a compact form.
+ * <br>
+ * Comments shorter than {@code comments.compress.length} characters are kept as
+ * strings, longer ones as UTF-8 bytes, compressed by an LZ77 block compression
+ * of the LZ4 kind when {@code comments.compression} is true and that makes them
+ * smaller. Equal comments of either form share one instance through an intern
+ * table of {@code comments.intern.size} slots, a comment takes over the slot of
+ * its hash, so the table never grows and keeps the comments seen most recently.
+ * Stored bytes are decoded each time the comments are read.
+ * <br>
+ * When {@code comments.compact} is false, or the {@code labs.pm.comments.compact}
+ * system property is false, comments are kept as they are.
+ * @version 1.0
+ * @author Ewa
+ */
+final class CommentStore {
+    private static final byte RAW = 0;
+    private static final byte LZ = 1;
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 10;
+    private static final int SKIP_BITS = 5;
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final boolean compact;
+    private static final int compressLength;
+    private static final boolean compression;
+    private static final AtomicReferenceArray<Object> table;
+    private static final ThreadLocal<int[]> matchPositions = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+
+    static {
+        ResourceBundle config = ResourceBundle.getBundle("labs.pm.data.config");
+        compact = Boolean.parseBoolean(
+                System.getProperty("labs.pm.comments.compact", config.getString("comments.compact")).trim());
+        compressLength = Integer.parseInt(config.getString("comments.compress.length").trim());
+        compression = Boolean.parseBoolean(config.getString("comments.compression").trim());
+        int size = Integer.highestOneBit(Math.max(1, Integer.parseInt(config.getString("comments.intern.size").trim())));
+        table = new AtomicReferenceArray<>(compact ? size : 0);
+    }
+
+    private CommentStore() {
+    }
+
+    /**
+     * @param comments text of a review
+     * @return the shared string of short comments or the bytes of long ones
+     */
+    static Object encode(String comments) {
+        if (!compact || comments == null)
+            return comments;
+        int slot = slot(comments.hashCode());
+        Object shared = table.get(slot);
+        if (comments.length() < compressLength) {
+            if (comments.equals(shared))
+                return shared;
+            table.set(slot, comments);
+            return comments;
+        }
+        byte[] bytes = toBytes(comments);
+        if (shared instanceof byte[] && Arrays.equals(bytes, (byte[]) shared))
+            return shared;
+        table.set(slot, bytes);
+        return bytes;
+    }
+
+    /**
+     * @param comments encoded by {@link #encode(String)}
+     * @return text of the comments
+     */
+    static String decode(Object comments) {
+        if (!(comments instanceof byte[]))
+            return (String) comments;
+        byte[] bytes = (byte[]) comments;
+        if (bytes[0] == RAW)
+            return new String(bytes, 1, bytes.length - 1, StandardCharsets.UTF_8);
+
+        int position = 1;
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = bytes[position++];
+            length |= (b & 0x7F) << shift;
+            if (b >= 0)
+                break;
+        }
+        return new String(decompress(bytes, position, length), StandardCharsets.UTF_8);
+    }
+
+    private static int slot(int hash) {
+        hash *= 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (table.length() - 1);
+    }
+
+    /**
+     * @return a tag followed by the UTF-8 bytes or by their length and compressed block
+     */
+    private static byte[] toBytes(String comments) {
+        byte[] utf8 = comments.getBytes(StandardCharsets.UTF_8);
+        if (compression) {
+            byte[] compressed = compress(utf8);
+            if (compressed != null)
+                return compressed;
+        }
+        byte[] bytes = new byte[utf8.length + 1];
+        bytes[0] = RAW;
+        System.arraycopy(utf8, 0, bytes, 1, utf8.length);
+        return bytes;
+    }
+
+    /**
+     * Compresses bytes into a block of sequences, each a token byte with the
+     * number of literals and the match length in its halves, the literals and
+     * the two byte offset of a match, as in LZ4. Lengths of 15 continue in
+     * following bytes. The last sequence has only literals. Like LZ4 the search
+     * steps faster over bytes without matches. The hash table of positions is kept
+     * per thread and not cleared, a stale position is a candidate like any other
+     * because its bytes are compared before it is used.
+     * @return tagged block or null if it isn't smaller than the bytes
+     */
+    private static byte[] compress(byte[] src) {
+        byte[] dst = new byte[src.length + src.length / 255 + 16];
+        int[] positions = matchPositions.get();
+        int out = 0;
+        dst[out++] = LZ;
+        int length = src.length;
+        for (; (length & ~0x7F) != 0; length >>>= 7)
+            dst[out++] = (byte) ((length & 0x7F) | 0x80);
+        dst[out++] = (byte) length;
+
+        int anchor = 0;
+        int i = 0;
+        int misses = 1 << SKIP_BITS;
+        while (i + MIN_MATCH <= src.length) {
+            int word = readInt(src, i);
+            int hash = (word * 0x9E3779B1) >>> (32 - HASH_BITS);
+            int candidate = positions[hash];
+            positions[hash] = i;
+            if (candidate >= i || i - candidate > MAX_OFFSET || readInt(src, candidate) != word) {
+                i += misses++ >>> SKIP_BITS;
+                continue;
+            }
+            misses = 1 << SKIP_BITS;
+            int match = MIN_MATCH;
+            while (i + match < src.length && src[candidate + match] == src[i + match])
+                match++;
+            out = writeSequence(dst, out, src, anchor, i - anchor, match - MIN_MATCH);
+            dst[out++] = (byte) (i - candidate);
+            dst[out++] = (byte) ((i - candidate) >>> 8);
+            i += match;
+            anchor = i;
+        }
+        out = writeSequence(dst, out, src, anchor, src.length - anchor, 0);
+        return (out <= src.length) ? Arrays.copyOf(dst, out) : null;
+    }
+
+    private static int writeSequence(byte[] dst, int out, byte[] src, int from, int literals, int match) {
+        dst[out++] = (byte) ((Math.min(literals, 15) << 4) | Math.min(match, 15));
+        out = writeLength(dst, out, literals);
+        System.arraycopy(src, from, dst, out, literals);
+        out += literals;
+        return writeLength(dst, out, match);
+    }
+
+    private static int writeLength(byte[] dst, int out, int length) {
+        if (length < 15)
+            return out;
+        for (length -= 15; length >= 255; length -= 255)
+            dst[out++] = (byte) 255;
+        dst[out++] = (byte) length;
+        return out;
+    }
+
+    private static byte[] decompress(byte[] src, int position, int length) {
+        byte[] dst = new byte[length];
+        int out = 0;
+        while (position < src.length) {
+            int token = src[position++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    b = src[position++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            System.arraycopy(src, position, dst, out, literals);
+            position += literals;
+            out += literals;
+            if (position == src.length)
+                break;
+
+            int match = token & 0x0F;
+            if (match == 15) {
+                int b;
+                do {
+                    b = src[position++] & 0xFF;
+                    match += b;
+                } while (b == 255);
+            }
+            int offset = (src[position++] & 0xFF) | (src[position++] & 0xFF) << 8;
+            match += MIN_MATCH;
+            if (offset >= match) {
+                System.arraycopy(dst, out - offset, dst, out, match);
+                out += match;
+            } else {
+                for (int end = out + match; out < end; out++)
+                    dst[out] = dst[out - offset];
+            }
+        }
+        return dst;
+    }
+
+    private static int readInt(byte[] bytes, int i) {
+        return (int) INTS.get(bytes, i);
+    }
+}
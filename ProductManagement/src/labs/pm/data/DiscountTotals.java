@@ -0,0 +1,113 @@
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@code DiscountTotals} keeps the total discount of the catalog per {@link Rating}.
+ * <br>
+ * Discounts depend on the time, so the totals are kept for the time independent
+ * parts: the full discount of all drinks, given during the happy hour, and the full
+ * discount of food per best before date, given on that day. Totals are exact decimal
+ * sums, so no discount can overflow them, a query adds the food total of today and,
+ * during the happy hour, the drinks total, so it takes O(number of ratings).
+ * <br>
+ * When a query sees a new day, totals of the days before it are dropped,
+ * their food will never be discounted again.
+ * @version 1.0
+ * @author Ewa
+ */
+class DiscountTotals {
+    private static final int RATINGS = Rating.values().length;
+
+    private final long[] products = new long[RATINGS];
+    private final BigDecimal[] drinkDiscounts = newTotals();
+    private final Map<LocalDate, BigDecimal[]> foodDiscounts = new HashMap<>();
+    private LocalDate today;
+
+    /**
+     * Builds the totals of all products of the catalog
+     * @param index primary index of the catalog
+     * @return new totals
+     */
+    static DiscountTotals of(ProductIndex index) {
+        DiscountTotals totals = new DiscountTotals();
+        index.products().forEach(product -> totals.update(product, 1));
+        return totals;
+    }
+
+    synchronized void add(Product product) {
+        update(product, 1);
+    }
+
+    synchronized void remove(Product product) {
+        update(product, -1);
+    }
+
+    synchronized void replace(Product oldProduct, Product newProduct) {
+        update(oldProduct, -1);
+        update(newProduct, 1);
+    }
+
+    synchronized void clear() {
+        Arrays.fill(products, 0);
+        Arrays.fill(drinkDiscounts, BigDecimal.ZERO);
+        foodDiscounts.clear();
+    }
+
+    private static BigDecimal[] newTotals() {
+        BigDecimal[] totals = new BigDecimal[RATINGS];
+        Arrays.fill(totals, BigDecimal.ZERO);
+        return totals;
+    }
+
+    private void update(Product product, int sign) {
+        int rating = product.getRating().ordinal();
+        BigDecimal discount = (sign < 0) ? product.getFullDiscount().negate() : product.getFullDiscount();
+        products[rating] += sign;
+
+        if (product instanceof Food) {
+            LocalDate bestBefore = product.getBestBefore();
+            if (today != null && bestBefore.isBefore(today))
+                return;
+            BigDecimal[] food = foodDiscounts.computeIfAbsent(bestBefore, date -> newTotals());
+            food[rating] = food[rating].add(discount);
+        } else {
+            drinkDiscounts[rating] = drinkDiscounts[rating].add(discount);
+        }
+    }
+
+    /**
+     * Calculates the total discount for each rating that has products
+     * @param date current date
+     * @param time current time
+     * @return exact total discount per rating
+     */
+    synchronized Map<Rating, BigDecimal> getTotals(LocalDate date, LocalTime time) {
+        if (!date.equals(today)) {
+            if (today == null || date.isAfter(today))
+                foodDiscounts.keySet().removeIf(bestBefore -> bestBefore.isBefore(date));
+            today = date;
+        }
+
+        BigDecimal[] food = foodDiscounts.get(date);
+        boolean happyHour = Drink.isHappyHour(time);
+        Map<Rating, BigDecimal> totals = new EnumMap<>(Rating.class);
+        for (Rating rating : Rating.values()) {
+            int i = rating.ordinal();
+            if (products[i] > 0) {
+                BigDecimal total = (food == null) ? BigDecimal.ZERO : food[i];
+                if (happyHour)
+                    total = total.add(drinkDiscounts[i]);
+                totals.put(rating, total.setScale(2, RoundingMode.HALF_UP));
+            }
+        }
+        return totals;
+    }
+}
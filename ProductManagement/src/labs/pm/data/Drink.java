@@ -11,9 +11,17 @@ public final class Drink extends Product {
 
     @Override
     public BigDecimal getDiscount() {
-        LocalTime now = LocalTime.now();
-        return (now.isAfter(LocalTime.of(16,30)) &&
-                now.isBefore(LocalTime.of(17,30)) ? super.getDiscount() : BigDecimal.ZERO);
+        return isHappyHour(LocalTime.now()) ? super.getDiscount() : BigDecimal.ZERO;
+    }
+
+    /**
+     * Drinks are discounted between 16:30 and 17:30
+     * @param time to check
+     * @return true if drinks are discounted at given time
+     */
+    static boolean isHappyHour(LocalTime time) {
+        return time.isAfter(LocalTime.of(16,30)) &&
+                time.isBefore(LocalTime.of(17,30));
     }
 
     @Override
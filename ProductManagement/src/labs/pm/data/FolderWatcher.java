@@ -0,0 +1,124 @@
+package labs.pm.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@code FolderWatcher} reports files created, changed or deleted in a few folders
+ * in batches, on its own thread.
+ * <br>
+ * After the first event of a batch the watcher keeps collecting events until the
+ * folders are quiet for the debounce time or the batch is as old as the longest
+ * delay, so a file written in many steps or many files dropped at once make one
+ * batch, and each file is reported once per batch. Only files accepted by the
+ * filter are reported, an event of any other file neither starts a batch nor
+ * wakes the receiver. When the watch service loses events the watcher reports
+ * the whole content of the folders instead.
+ * @version 1.0
+ * @author Ewa
+ */
+class FolderWatcher implements Closeable {
+    private static final Logger logger = Logger.getLogger(FolderWatcher.class.getName());
+
+    private final WatchService service;
+    private final long debounceMillis;
+    private final long maxDelayMillis;
+    private final Predicate<Path> filter;
+    private final Consumer<Set<Path>> changes;
+    private final Runnable overflow;
+
+    /**
+     * Starts watching the folders
+     * @param folders folders to watch
+     * @param debounceMillis quiet time that ends a batch
+     * @param maxDelayMillis longest time from the first event of a batch to its report
+     * @param filter accepts the files to report
+     * @param changes receives each batch of created, changed or deleted files
+     * @param overflow called instead when events were lost
+     * @throws IOException if a folder can't be watched
+     */
+    FolderWatcher(Collection<Path> folders, long debounceMillis, long maxDelayMillis, Predicate<Path> filter,
+                  Consumer<Set<Path>> changes, Runnable overflow) throws IOException {
+        this.service = FileSystems.getDefault().newWatchService();
+        this.debounceMillis = debounceMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.filter = filter;
+        this.changes = changes;
+        this.overflow = overflow;
+        for (Path folder : folders)
+            folder.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+        Thread watcher = new Thread(this::run, "folder-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Set<Path> batch = new LinkedHashSet<>();
+                boolean lost = collect(key, batch);
+                if (!lost && batch.isEmpty())
+                    continue;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+                long remaining;
+                while ((remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0
+                        && (key = service.poll(Math.min(debounceMillis, remaining), TimeUnit.MILLISECONDS)) != null)
+                    lost |= collect(key, batch);
+
+                try {
+                    if (lost)
+                        overflow.run();
+                    else
+                        changes.accept(batch);
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Error processing changed files " + e.getMessage(), e);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            logger.log(Level.FINE, "Folder watcher stopped");
+        }
+    }
+
+    /**
+     * Adds the accepted files of the events of a key to a batch
+     * @return true if events were lost
+     */
+    private boolean collect(WatchKey key, Set<Path> batch) {
+        boolean lost = false;
+        Path folder = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                lost = true;
+            } else {
+                Path file = folder.resolve((Path) event.context());
+                if (filter.test(file))
+                    batch.add(file);
+            }
+        }
+        key.reset();
+        return lost;
+    }
+
+    @Override
+    public void close() throws IOException {
+        service.close();
+    }
+}
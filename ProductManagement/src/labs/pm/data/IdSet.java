@@ -0,0 +1,101 @@
+package labs.pm.data;
+
+import java.util.function.IntConsumer;
+
+/**
+ * {@code IdSet} is a set of product ids kept in an open addressing
+ * table of primitive ints, so ids are not boxed.
+ * <br>
+ * The set is not thread safe.
+ * @version 1.0
+ * @author Ewa
+ */
+class IdSet {
+    private static final int MIN_CAPACITY = 8;
+
+    private int[] ids = new int[MIN_CAPACITY];
+    private boolean[] used = new boolean[MIN_CAPACITY];
+    private int size;
+
+    private int slot(int id, int mask) {
+        int hash = id * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    boolean add(int id) {
+        if ((size + 1) * 4 > ids.length * 3)
+            resize(ids.length << 1);
+        int mask = ids.length - 1;
+        int i = slot(id, mask);
+        while (used[i]) {
+            if (ids[i] == id)
+                return false;
+            i = (i + 1) & mask;
+        }
+        ids[i] = id;
+        used[i] = true;
+        size++;
+        return true;
+    }
+
+    boolean contains(int id) {
+        int mask = ids.length - 1;
+        for (int i = slot(id, mask); used[i]; i = (i + 1) & mask) {
+            if (ids[i] == id)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes an id, following entries of the probe sequence are
+     * shifted back so no tombstones are left in the table
+     */
+    boolean remove(int id) {
+        int mask = ids.length - 1;
+        int i = slot(id, mask);
+        while (used[i] && ids[i] != id)
+            i = (i + 1) & mask;
+        if (!used[i])
+            return false;
+
+        int gap = i;
+        for (int j = (gap + 1) & mask; used[j]; j = (j + 1) & mask) {
+            int home = slot(ids[j], mask);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                ids[gap] = ids[j];
+                gap = j;
+            }
+        }
+        used[gap] = false;
+        size--;
+        return true;
+    }
+
+    private void resize(int capacity) {
+        int[] oldIds = ids;
+        boolean[] oldUsed = used;
+        ids = new int[capacity];
+        used = new boolean[capacity];
+        size = 0;
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldUsed[i])
+                add(oldIds[i]);
+        }
+    }
+
+    void forEach(IntConsumer action) {
+        for (int i = 0; i < ids.length; i++) {
+            if (used[i])
+                action.accept(ids[i]);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -0,0 +1,68 @@
+package labs.pm.data;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@code LoadStatistics} collects counters of a single bulk load
+ * of the data folder. Counters are updated concurrently by the
+ * loader threads.
+ * @version 1.0
+ * @author Ewa
+ */
+class LoadStatistics {
+    private final long start = System.nanoTime();
+    private final LongAdder productFiles = new LongAdder();
+    private final LongAdder reviewFiles = new LongAdder();
+    private final LongAdder badLines = new LongAdder();
+    private final LongAdder failedFiles = new LongAdder();
+    private volatile long end;
+
+    void productFileLoaded() {
+        productFiles.increment();
+    }
+
+    void reviewFileLoaded() {
+        reviewFiles.increment();
+    }
+
+    void badLine() {
+        badLines.increment();
+    }
+
+    void fileFailed() {
+        failedFiles.increment();
+    }
+
+    void finish() {
+        end = System.nanoTime();
+    }
+
+    long getFiles() {
+        return productFiles.sum() + reviewFiles.sum();
+    }
+
+    long getBadLines() {
+        return badLines.sum();
+    }
+
+    long getFailedFiles() {
+        return failedFiles.sum();
+    }
+
+    double getSeconds() {
+        return ((end == 0 ? System.nanoTime() : end) - start) / 1_000_000_000.0;
+    }
+
+    double getFilesPerSecond() {
+        double seconds = getSeconds();
+        return (seconds > 0) ? getFiles() / seconds : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Loaded %d product files and %d review files in %.3f s (%.0f files/s), "
+                        + "%d bad lines, %d failed files",
+                productFiles.sum(), reviewFiles.sum(), getSeconds(), getFilesPerSecond(),
+                getBadLines(), getFailedFiles());
+    }
+}
@@ -0,0 +1,241 @@
+package labs.pm.data;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@code Metrics} keeps the counters and latency timers of the catalog.
+ * <br>
+ * A {@link Timer} counts calls and their latencies in a {@link LatencyHistogram},
+ * a {@link Counter} counts events, both are built on lock free adders. Timers and
+ * counters are created once and kept in fields of the instrumented class, so
+ * recording doesn't look anything up. When metrics are disabled timers don't
+ * even read the clock, recording is a single branch on a final field.
+ * <br>
+ * The metrics are a {@link DynamicMBean} with {@code <timer>.count},
+ * {@code <timer>.meanMicros}, {@code <timer>.p50Micros}, {@code <timer>.p99Micros},
+ * {@code <timer>.p999Micros}, {@code <timer>.maxMicros} and {@code <counter>}
+ * attributes and a {@code reset} operation, {@link #toString()} is the text dump.
+ * @version 1.0
+ * @author Ewa
+ */
+public class Metrics implements DynamicMBean {
+    private final boolean enabled;
+    private final Map<String, Timer> timers = new ConcurrentSkipListMap<>();
+    private final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+
+    /**
+     * Measures latencies of one operation
+     */
+    public static final class Timer {
+        private final boolean enabled;
+        private final LongAdder totalNanos = new LongAdder();
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        private Timer(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @return start time to pass to {@link #stop(long)}, 0 when metrics are disabled
+         */
+        public long start() {
+            return enabled ? System.nanoTime() : 0;
+        }
+
+        /**
+         * Records the latency of an operation
+         * @param start time returned by {@link #start()}
+         */
+        public void stop(long start) {
+            if (enabled)
+                record(System.nanoTime() - start);
+        }
+
+        public void record(long nanos) {
+            if (enabled) {
+                totalNanos.add(nanos);
+                histogram.record(nanos);
+            }
+        }
+
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        public double getMeanMicros() {
+            long count = getCount();
+            return (count == 0) ? 0 : totalNanos.sum() / 1e3 / count;
+        }
+
+        public double getPercentileMicros(double percentile) {
+            return histogram.getPercentile(percentile) / 1e3;
+        }
+
+        public double getMaxMicros() {
+            return histogram.getMax() / 1e3;
+        }
+
+        private void reset() {
+            totalNanos.reset();
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Counts events
+     */
+    public static final class Counter {
+        private final boolean enabled;
+        private final LongAdder count = new LongAdder();
+
+        private Counter(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public void increment() {
+            if (enabled)
+                count.increment();
+        }
+
+        public void add(long events) {
+            if (enabled)
+                count.add(events);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+    }
+
+    public Metrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param name of the timer
+     * @return the timer with given name, created on first use
+     */
+    public Timer timer(String name) {
+        return timers.computeIfAbsent(name, key -> new Timer(enabled));
+    }
+
+    /**
+     * @param name of the counter
+     * @return the counter with given name, created on first use
+     */
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, key -> new Counter(enabled));
+    }
+
+    public void reset() {
+        timers.values().forEach(Timer::reset);
+        counters.values().forEach(counter -> counter.count.reset());
+    }
+
+    /**
+     * @return one line per timer with its count and latencies in microseconds,
+     * and one line per counter
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        timers.forEach((name, timer) -> {
+            if (timer.getCount() > 0)
+                text.append(String.format("%-28s count %10d  mean %10.1f  p50 %10.1f  p99 %10.1f  p999 %10.1f  max %10.1f us%n",
+                        name, timer.getCount(), timer.getMeanMicros(), timer.getPercentileMicros(50),
+                        timer.getPercentileMicros(99), timer.getPercentileMicros(99.9), timer.getMaxMicros()));
+        });
+        counters.forEach((name, counter) ->
+                text.append(String.format("%-28s %10d%n", name, counter.getCount())));
+        return text.toString();
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Counter counter = counters.get(attribute);
+        if (counter != null)
+            return counter.getCount();
+
+        int dot = attribute.lastIndexOf('.');
+        Timer timer = (dot < 0) ? null : timers.get(attribute.substring(0, dot));
+        if (timer != null) {
+            switch (attribute.substring(dot + 1)) {
+                case "count": return timer.getCount();
+                case "meanMicros": return timer.getMeanMicros();
+                case "p50Micros": return timer.getPercentileMicros(50);
+                case "p99Micros": return timer.getPercentileMicros(99);
+                case "p999Micros": return timer.getPercentileMicros(99.9);
+                case "maxMicros": return timer.getMaxMicros();
+                default:
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // unknown attributes are left out of the list
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        if ("reset".equals(actionName)) {
+            reset();
+            return null;
+        }
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : timers.keySet()) {
+            attributes.add(new MBeanAttributeInfo(name + ".count", "long", "Number of calls", true, false, false));
+            for (String latency : new String[] {"meanMicros", "p50Micros", "p99Micros", "p999Micros", "maxMicros"})
+                attributes.add(new MBeanAttributeInfo(name + "." + latency, "double", "Latency in microseconds",
+                        true, false, false));
+        }
+        for (String name : counters.keySet())
+            attributes.add(new MBeanAttributeInfo(name, "long", "Number of events", true, false, false));
+
+        return new MBeanInfo(Metrics.class.getName(), "Metrics of the product catalog",
+                attributes.toArray(new MBeanAttributeInfo[0]), null,
+                new MBeanOperationInfo[] {new MBeanOperationInfo("reset", "Resets all metrics",
+                        new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)},
+                null);
+    }
+}
@@ -114,6 +114,16 @@ public abstract class Product implements Rateable<Product>, Serializable {
      * value of the discount
      */
     public BigDecimal getDiscount () {
+        return getFullDiscount();
+    }
+
+    /**
+     * Calculates the discount a product gets when it is discounted,
+     * regardless of the current date and time
+     * @return a {@link java.math.BigDecimal BigDecimal}
+     * value of the discount
+     */
+    BigDecimal getFullDiscount () {
         return price.multiply(DISCOUNT_RATE).setScale(2, RoundingMode.HALF_UP);
     }
 
@@ -0,0 +1,350 @@
+package labs.pm.data;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * {@code ProductColumns} keeps the products of a {@link ProductIndex} in
+ * primitive columns, one row per product.
+ * <br>
+ * A product takes a type and a rating byte, the unscaled price as a long
+ * with a scale byte, the best before date as an epoch day and a reference
+ * to its name, 19 bytes instead of the product, price, date and name
+ * objects. Names are kept once in a shared heap of UTF-8 bytes, so products
+ * with the same name share it. {@link #get(int, int)} creates a product from
+ * the columns on each call.
+ * <br>
+ * Each row has a version that is odd while the row is written, a lookup that
+ * runs concurrently with a new product or rating in the same row reads the
+ * row again until it reads one version, so it sees either the old or the new
+ * product. Names of removed products stay in the heap until the columns are
+ * rebuilt.
+ * @version 1.0
+ * @author Ewa
+ */
+class ProductColumns {
+    private static final byte FOOD = 1;
+    private static final byte DRINK = 2;
+    private static final Rating[] RATINGS = Rating.values();
+    private static final VarHandle VERSION_ROW = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final BigInteger MAX_PRICE = BigInteger.valueOf(Long.MAX_VALUE);
+
+    private byte[] types;
+    private byte[] ratings;
+    private long[] prices;
+    private byte[] priceScales;
+    private int[] bestBefore;
+    private int[] names;
+    private int[] versions;
+    private final Names nameHeap = new Names();
+
+    ProductColumns(int capacity) {
+        versions = new int[capacity];
+        types = new byte[capacity];
+        ratings = new byte[capacity];
+        prices = new long[capacity];
+        priceScales = new byte[capacity];
+        bestBefore = new int[capacity];
+        names = new int[capacity];
+    }
+
+    /**
+     * Grows the columns to hold rows up to the given capacity
+     */
+    void resize(int capacity) {
+        versions = Arrays.copyOf(versions, capacity);
+        types = Arrays.copyOf(types, capacity);
+        ratings = Arrays.copyOf(ratings, capacity);
+        prices = Arrays.copyOf(prices, capacity);
+        priceScales = Arrays.copyOf(priceScales, capacity);
+        bestBefore = Arrays.copyOf(bestBefore, capacity);
+        names = Arrays.copyOf(names, capacity);
+    }
+
+    /**
+     * @param row of the product
+     * @param id of the product
+     * @return new product made of the columns of the row
+     */
+    Product get(int row, int id) {
+        byte type;
+        byte rating;
+        long price;
+        byte scale;
+        int day;
+        int name;
+        int version;
+        do {
+            version = beginRead(row);
+            type = types[row];
+            rating = ratings[row];
+            price = prices[row];
+            scale = priceScales[row];
+            day = bestBefore[row];
+            name = names[row];
+        } while (!endRead(row, version));
+
+        BigDecimal productPrice = BigDecimal.valueOf(price, scale);
+        return (type == FOOD)
+                ? new Food(id, nameHeap.get(name), productPrice, RATINGS[rating], LocalDate.ofEpochDay(day))
+                : new Drink(id, nameHeap.get(name), productPrice, RATINGS[rating]);
+    }
+
+    /**
+     * @return even version of the row, waits while the row is written
+     */
+    private int beginRead(int row) {
+        int version;
+        while (((version = (int) VERSION_ROW.getAcquire(versions, row)) & 1) != 0)
+            Thread.onSpinWait();
+        return version;
+    }
+
+    /**
+     * @return true if the row wasn't written since {@link #beginRead(int)} returned the version
+     */
+    private boolean endRead(int row, int version) {
+        VarHandle.loadLoadFence();
+        return (int) VERSION_ROW.getOpaque(versions, row) == version;
+    }
+
+    /**
+     * Writes a product into the columns of a row, callers don't write one row concurrently
+     * @throws IllegalArgumentException if the price doesn't fit a long with a scale of a byte
+     */
+    void set(int row, Product product) {
+        BigDecimal price = product.getPrice();
+        if (price.scale() < Byte.MIN_VALUE || price.scale() > Byte.MAX_VALUE
+                || price.unscaledValue().abs().compareTo(MAX_PRICE) > 0)
+            throw new IllegalArgumentException("Price " + price + " of product " + product.getId()
+                    + " can't be kept in columns");
+
+        int name = nameHeap.add(product.getName());
+        int version = versions[row];
+        VERSION_ROW.setOpaque(versions, row, version + 1);
+        VarHandle.storeStoreFence();
+        prices[row] = price.unscaledValue().longValue();
+        priceScales[row] = (byte) price.scale();
+        names[row] = name;
+        if (product instanceof Food) {
+            types[row] = FOOD;
+            bestBefore[row] = (int) product.getBestBefore().toEpochDay();
+        } else {
+            types[row] = DRINK;
+        }
+        ratings[row] = (byte) product.getRating().ordinal();
+        VERSION_ROW.setRelease(versions, row, version + 2);
+    }
+
+    /**
+     * Moves a row, callers hold the lock that excludes lookups
+     */
+    void move(int from, int to) {
+        versions[to] = versions[from];
+        types[to] = types[from];
+        ratings[to] = ratings[from];
+        prices[to] = prices[from];
+        priceScales[to] = priceScales[from];
+        bestBefore[to] = bestBefore[from];
+        names[to] = names[from];
+    }
+
+    /**
+     * Checks the criteria of a query that are kept in columns,
+     * without creating the product
+     * @param row of the product
+     * @param query criteria of the products
+     * @param bounds price bounds of the query converted by {@link PriceBounds}
+     * @return false if the product doesn't match the query,
+     * true if it may match and has to be tested by the whole query
+     */
+    boolean matches(int row, ProductQuery query, PriceBounds bounds) {
+        byte type;
+        byte rating;
+        long price;
+        byte scale;
+        int day;
+        int version;
+        do {
+            version = beginRead(row);
+            type = types[row];
+            rating = ratings[row];
+            price = prices[row];
+            scale = priceScales[row];
+            day = bestBefore[row];
+        } while (!endRead(row, version));
+
+        if (query.getRating() != null && rating != query.getRating().ordinal())
+            return false;
+        if (query.getType() != null && !query.getType().isAssignableFrom((type == FOOD) ? Food.class : Drink.class))
+            return false;
+        if (query.getBestBefore() != null && (type != FOOD || day != query.getBestBefore().toEpochDay()))
+            return false;
+        return bounds == null || bounds.contains(price, scale);
+    }
+
+    /**
+     * Price range of a query in unscaled values of one scale, converted again
+     * only when a product has a different scale than the one before it
+     */
+    static final class PriceBounds {
+        private final BigDecimal minPrice;
+        private final BigDecimal maxPrice;
+        private int scale = Integer.MIN_VALUE;
+        private long min;
+        private long max;
+
+        PriceBounds(ProductQuery query) {
+            this.minPrice = query.getMinPrice();
+            this.maxPrice = query.getMaxPrice();
+        }
+
+        boolean contains(long price, int priceScale) {
+            if (priceScale != scale) {
+                scale = priceScale;
+                min = (minPrice == null) ? Long.MIN_VALUE : unscaled(minPrice, scale, RoundingMode.CEILING);
+                max = (maxPrice == null) ? Long.MAX_VALUE : unscaled(maxPrice, scale, RoundingMode.FLOOR);
+            }
+            return price >= min && price <= max;
+        }
+
+        private static long unscaled(BigDecimal bound, int scale, RoundingMode rounding) {
+            BigInteger value = bound.setScale(scale, rounding).unscaledValue();
+            if (value.compareTo(MAX_PRICE) > 0)
+                return Long.MAX_VALUE;
+            if (value.compareTo(MAX_PRICE.negate()) < 0)
+                return Long.MIN_VALUE;
+            return value.longValue();
+        }
+    }
+
+    /**
+     * Heap of distinct names in UTF-8, each a varint length followed by its bytes.
+     * Names are found by an open addressing table of their offsets. Lookups don't
+     * lock, a name missing from the table is added under the lock of the heap.
+     */
+    private static final class Names {
+        private static final VarHandle ENTRY = MethodHandles.arrayElementVarHandle(int[].class);
+
+        private volatile byte[] heap = new byte[1024];
+        private volatile int[] table = new int[64];
+        private int heapSize;
+        private int count;
+
+        /**
+         * @return offset of the name in the heap
+         */
+        int add(String name) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            int offset = find(table, bytes);
+            return (offset >= 0) ? offset : insert(bytes);
+        }
+
+        String get(int offset) {
+            byte[] names = heap;
+            int length = length(names, offset);
+            return new String(names, offset + lengthSize(length), length, StandardCharsets.UTF_8);
+        }
+
+        private static int slot(byte[] bytes, int mask) {
+            int hash = Arrays.hashCode(bytes) * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+
+        private int find(int[] entries, byte[] bytes) {
+            int mask = entries.length - 1;
+            for (int i = slot(bytes, mask); ; i = (i + 1) & mask) {
+                int entry = (int) ENTRY.getAcquire(entries, i);
+                if (entry == 0)
+                    return -1;
+                if (equals(entry - 1, bytes))
+                    return entry - 1;
+            }
+        }
+
+        private synchronized int insert(byte[] bytes) {
+            int offset = find(table, bytes);
+            if (offset >= 0)
+                return offset;
+
+            byte[] names = heap;
+            if (heapSize + bytes.length + 5 > names.length)
+                names = Arrays.copyOf(names, Math.max(names.length * 2, heapSize + bytes.length + 5));
+            offset = heapSize;
+            int length = bytes.length;
+            while (length >= 0x80) {
+                names[heapSize++] = (byte) (length | 0x80);
+                length >>>= 7;
+            }
+            names[heapSize++] = (byte) length;
+            System.arraycopy(bytes, 0, names, heapSize, bytes.length);
+            heapSize += bytes.length;
+            heap = names;
+
+            if (++count * 4 > table.length * 3)
+                rehash();
+            int[] entries = table;
+            int mask = entries.length - 1;
+            int i = slot(bytes, mask);
+            while (entries[i] != 0)
+                i = (i + 1) & mask;
+            ENTRY.setRelease(entries, i, offset + 1);
+            return offset;
+        }
+
+        private void rehash() {
+            int[] entries = new int[table.length * 2];
+            int mask = entries.length - 1;
+            for (int entry : table) {
+                if (entry == 0)
+                    continue;
+                int i = slot(name(entry - 1), mask);
+                while (entries[i] != 0)
+                    i = (i + 1) & mask;
+                entries[i] = entry;
+            }
+            table = entries;
+        }
+
+        private boolean equals(int offset, byte[] bytes) {
+            byte[] names = heap;
+            int length = length(names, offset);
+            int start = offset + lengthSize(length);
+            return Arrays.equals(names, start, start + length, bytes, 0, bytes.length);
+        }
+
+        private byte[] name(int offset) {
+            byte[] names = heap;
+            int length = length(names, offset);
+            int start = offset + lengthSize(length);
+            return Arrays.copyOfRange(names, start, start + length);
+        }
+
+        private static int length(byte[] names, int offset) {
+            int length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = names[offset++];
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return length;
+        }
+
+        private static int lengthSize(int length) {
+            int size = 1;
+            while (length >= 0x80) {
+                length >>>= 7;
+                size++;
+            }
+            return size;
+        }
+    }
+}
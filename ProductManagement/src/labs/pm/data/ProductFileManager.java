@@ -1,35 +1,121 @@
 package labs.pm.data;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.math.BigDecimal;
-import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.text.MessageFormat;
 import java.text.ParseException;
 import java.time.LocalDate;
-import java.time.format.DateTimeParseException;
+import java.time.LocalTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
-
-public class ProductFileManager implements ProductManager {
-    private Map<Product, List<Review>> products = new HashMap<>();
+import java.util.stream.Stream;
+
+/**
+ * {@code ProductFileManager} keeps the catalog in memory and loads it from files.
+ * <br>
+ * The catalog lock guards the structure of the catalog, it is taken exclusively
+ * only to add products and to load, dump or restore the whole catalog, all other
+ * operations share it. The reviews, rating aggregate and rating of a product are
+ * guarded by one of {@code lock.stripes} product locks chosen by the product id,
+ * so operations on different products don't block each other. Reports and
+ * snapshots only share the product lock while they copy the reviews.
+ * @version 1.0
+ * @author Ewa
+ */
+public class ProductFileManager implements ProductManager, Closeable {
+    private ProductIndex index = new ProductIndex();
+    private SecondaryIndexes secondaryIndexes = new SecondaryIndexes();
+    private TextIndex textIndex = new TextIndex();
+    private DiscountTotals discountTotals = new DiscountTotals();
+    private volatile LoadStatistics lastLoad;
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     private final Lock writeLock = lock.writeLock();
     private final Lock readLock = lock.readLock();
     private static final Logger logger = Logger.getLogger(ProductManager.class.getName());
     private final ResourceBundle config = ResourceBundle.getBundle("labs.pm.data.config");
-    private final MessageFormat productFormat = new MessageFormat(config.getString("product.data.format"));
-    private final MessageFormat reviewFormat = new MessageFormat(config.getString("review.data.format"));
+    private final boolean columnar = System.getProperty("labs.pm.catalog.storage",
+            config.getString("catalog.storage")).trim().equals("columnar");
+    private final Metrics metrics = new Metrics(Boolean.parseBoolean(
+            System.getProperty("labs.pm.metrics.enabled", config.getString("metrics.enabled").trim())));
+    private final Metrics.Timer readLockWait = metrics.timer("lock.catalog.read.wait");
+    private final Metrics.Timer writeLockWait = metrics.timer("lock.catalog.write.wait");
+    private final Metrics.Timer productLockWait = metrics.timer("lock.product.wait");
+    private final Metrics.Timer loadTimer = metrics.timer("load");
+    private final Metrics.Timer dumpTimer = metrics.timer("dump");
+    private final Metrics.Timer restoreTimer = metrics.timer("restore");
+    private final Metrics.Timer reloadTimer = metrics.timer("reload");
+    private final Metrics.Timer checkpointTimer = metrics.timer("checkpoint");
+    private final Metrics.Timer writeStoreTimer = metrics.timer("writeStore");
+    private final Metrics.Timer syncTimer = metrics.timer("wal.sync");
+    private final Metrics.Timer createProductTimer = metrics.timer("createProduct");
+    private final Metrics.Timer reviewProductTimer = metrics.timer("reviewProduct");
+    private final Metrics.Timer reviewProductsTimer = metrics.timer("reviewProducts");
+    private final Metrics.Timer findProductTimer = metrics.timer("findProduct");
+    private final Metrics.Timer findProductsTimer = metrics.timer("findProducts");
+    private final Metrics.Timer findReviewsTimer = metrics.timer("findReviews");
+    private final Metrics.Timer streamReviewsTimer = metrics.timer("streamReviews");
+    private final Metrics.Timer getDiscountsTimer = metrics.timer("getDiscounts");
+    private final Metrics.Timer printProductReportTimer = metrics.timer("printProductReport");
+    private final Metrics.Timer printProductsTimer = metrics.timer("printProducts");
+    private final Metrics.Timer reportFileTimer = metrics.timer("getReportFile");
+    private final Metrics.Timer searchProductsTimer = metrics.timer("searchProducts");
+    private final Metrics.Counter loadedFiles = metrics.counter("load.files");
+    private final Metrics.Counter badLines = metrics.counter("load.badLines");
+    private final Metrics.Counter failedFiles = metrics.counter("load.failedFiles");
+    private final Metrics.Counter productsNotFound = metrics.counter("productsNotFound");
+    private final Metrics.Counter reloadedProducts = metrics.counter("reload.products");
+    private final ReadWriteLock[] productLocks = Stream.generate(ReentrantReadWriteLock::new)
+            .limit(Integer.parseInt(config.getString("lock.stripes").trim())).toArray(ReadWriteLock[]::new);
+    private final ReportCache reportCache = new ReportCache(
+            Integer.parseInt(config.getString("report.cache.products").trim()));
+    private final ReportWriter reportWriter = new ReportWriter(
+            Integer.parseInt(config.getString("report.writer.threads").trim()),
+            Integer.parseInt(config.getString("report.queue.size").trim()),
+            Integer.parseInt(config.getString("report.batch.size").trim()),
+            metrics.timer("report.write"));
+    private final Map<String, ReportFile> reportFiles = new ConcurrentHashMap<>();
+    private final Map<Path, ReportFile> reportFilePaths = new ConcurrentHashMap<>();
+    private final AtomicLong reportFileGeneration = new AtomicLong();
     private final Path reportsFolder = Path.of(config.getString("reports.folder"));
     private final Path dataFolder = Path.of(config.getString("data.folder"));
     private final Path tempFolder = Path.of(config.getString("temp.folder"));
+    private final int shard;
+    private final ShardRing ring;
+    private final Path storeFolder;
+    private final Path storeProductsFile;
+    private final Path storeReviewsFile;
+    private ProductStore store;
+    private final ReviewLog reviewLog;
+    private final Path checkpointFile;
+    private WriteAheadLog wal;
+    private final FolderWatcher watcher;
+    private boolean dumped;
+    private volatile boolean reloaded;
+    private final Set<Path> pendingReload = new LinkedHashSet<>();
+    private static final int SNAPSHOT_BATCH = 1024;
     private static final Map<String, ResourceFormatter> formatters =
             Map.of("en-GB", new ResourceFormatter(Locale.UK),
                     "en-US", new ResourceFormatter(Locale.US),
@@ -38,14 +124,295 @@ public class ProductFileManager implements ProductManager {
                     "zh-CN", new ResourceFormatter(Locale.CHINA),
                     "pl-PL", new ResourceFormatter(new Locale("pl", "PL")) );
 
-    private static final ProductFileManager pm = new ProductFileManager();
-
+    /**
+     * The catalog of this process, created on first use, so shards created by
+     * {@link #newShard(int, int)} don't load it. It is the whole catalog or, when
+     * {@code shard.count} is more than 1, the catalog of shard {@code shard.index},
+     * the {@code labs.pm.shard.index} and {@code labs.pm.shard.count} system
+     * properties override the configuration.
+     */
+    private static final class Instance {
+        private static final ProductFileManager pm;
+
+        static {
+            ResourceBundle config = ResourceBundle.getBundle("labs.pm.data.config");
+            pm = new ProductFileManager(
+                    Integer.parseInt(System.getProperty("labs.pm.shard.index", config.getString("shard.index")).trim()),
+                    Integer.parseInt(System.getProperty("labs.pm.shard.count", config.getString("shard.count")).trim()));
+        }
+    }
 
-    private ProductFileManager() {
+    /**
+     * Creates the catalog of one shard, or the whole catalog when there is one shard.
+     * A shard loads only the products the {@link ShardRing} assigns to it and keeps
+     * its store, checkpoint and logs in its own {@code shard-<index>} subfolder
+     * of the store folder.
+     * @param shard index of the shard
+     * @param shards number of shards
+     */
+    private ProductFileManager(int shard, int shards) {
+        if (shard < 0 || shard >= shards)
+            throw new IllegalArgumentException("Shard " + shard + " is not one of " + shards + " shards");
+        this.shard = shard;
+        this.ring = (shards > 1) ? ShardedProductManager.newRing(shards) : null;
+        storeFolder = (ring == null) ? Path.of(config.getString("store.folder"))
+                : Path.of(config.getString("store.folder"), "shard-" + shard);
+        storeProductsFile = storeFolder.resolve(config.getString("store.products.file"));
+        storeReviewsFile = storeFolder.resolve(config.getString("store.reviews.file"));
+        checkpointFile = storeFolder.resolve(config.getString("checkpoint.file"));
+        reviewLog = openReviewLog();
         loadAllData();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::closeStore, "product-store-shutdown"));
+        openWriteAheadLog();
+        publishMetrics();
+        watcher = watchDataFolders();
+    }
+
+    /**
+     * Applies product and review files dropped into the data and reports folders to
+     * the running catalog when {@code data.watch} is true, the {@code labs.pm.data.watch}
+     * system property overrides the configuration. Changed product and reviews files
+     * are collected into batches by a {@link FolderWatcher}, reports written into the
+     * reports folder are ignored.
+     * @return the watcher or null when the folders are not watched
+     */
+    private FolderWatcher watchDataFolders() {
+        if (!Boolean.parseBoolean(System.getProperty("labs.pm.data.watch", config.getString("data.watch").trim())))
+            return null;
+        try {
+            return new FolderWatcher(List.of(dataFolder, reportsFolder),
+                    Long.parseLong(config.getString("data.watch.debounce.millis").trim()),
+                    Long.parseLong(config.getString("data.watch.max.delay.millis").trim()),
+                    this::isWatchedFile, this::reloadFiles, this::reloadAllFiles);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error watching data folders, changed files are not loaded " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Registers the metrics as the {@code labs.pm:type=Metrics} MBean and logs
+     * them every {@code metrics.dump.seconds}, nothing is published
+     * when metrics are disabled
+     */
+    private void publishMetrics() {
+        if (!metrics.isEnabled())
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName((ring == null) ? "labs.pm:type=Metrics" : "labs.pm:type=Metrics,shard=" + shard));
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Metrics can't be registered " + e.getMessage());
+        }
+
+        long seconds = Long.parseLong(config.getString("metrics.dump.seconds").trim());
+        if (seconds > 0) {
+            ScheduledExecutorService dumps = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumps.scheduleWithFixedDelay(() -> logger.log(Level.INFO, "Metrics" + System.lineSeparator() + metrics),
+                    seconds, seconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * @return counters and latencies of the catalog operations, lock waits and load, dump and restore
+     */
+    public Metrics getMetrics() {
+        return metrics;
     }
 
-    private List<Review> loadReviews (Product product) {
+    /**
+     * Takes a lock and records how long it waited for it
+     */
+    private static void lock(Lock lock, Metrics.Timer waits) {
+        long start = waits.start();
+        lock.lock();
+        waits.stop(start);
+    }
+
+    /**
+     * Replays the write ahead log on top of the loaded catalog and opens it for
+     * new changes when {@code wal.enabled} is true, the {@code labs.pm.wal.enabled}
+     * system property overrides the configuration. Checkpoints are scheduled
+     * every {@code wal.checkpoint.seconds}.
+     */
+    private void openWriteAheadLog() {
+        if (!isWalEnabled())
+            return;
+        int[] replayed = new int[3];
+        try {
+            Files.createDirectories(storeFolder);
+            wal = WriteAheadLog.open(storeFolder.resolve(config.getString("wal.file")),
+                    Long.parseLong(config.getString("wal.sync.micros").trim()),
+                    new WriteAheadLog.Replay() {
+                        @Override
+                        public void product(Product product) {
+                            if (addProduct(product))
+                                replayed[0]++;
+                        }
+
+                        @Override
+                        public void review(int id, int number, Review review) {
+                            Product product = index.get(id);
+                            if (product == null) {
+                                logger.log(Level.WARNING, "Replayed review of unknown product " + id);
+                            } else if (index.getReviewCount(id) < number) {
+                                reviewProduct(product, List.of(review));
+                                replayed[1]++;
+                            }
+                        }
+
+                        @Override
+                        public void reload(Product product, List<Review> reviews) {
+                            if (!reloadProduct(product, reviews))
+                                addReloadedProduct(product, keepReviews(product.getId(), reviews));
+                            replayed[2]++;
+                        }
+
+                        @Override
+                        public void remove(int id) {
+                            if (removeProduct(id))
+                                replayed[2]++;
+                        }
+                    });
+            logger.log(Level.INFO, "Replayed " + replayed[0] + " products, " + replayed[1] + " reviews and "
+                    + replayed[2] + " reloaded or removed products");
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error opening write ahead log, changes are not durable " + e.getMessage(), e);
+            return;
+        }
+
+        long seconds = Long.parseLong(config.getString("wal.checkpoint.seconds").trim());
+        if (seconds > 0) {
+            ScheduledExecutorService checkpoints = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            checkpoints.scheduleWithFixedDelay(this::checkpoint, seconds, seconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private boolean isWalEnabled() {
+        return Boolean.parseBoolean(System.getProperty("labs.pm.wal.enabled", config.getString("wal.enabled").trim()));
+    }
+
+    /**
+     * Writes the catalog into the checkpoint snapshot and drops the write ahead log
+     * the snapshot contains. Nothing is written while the log is empty, no reload
+     * failed to be logged since the last checkpoint and no previous log is left
+     * over. The log is rotated under the write lock, the snapshot is written while
+     * the catalog keeps changing, changes it catches are skipped when the new log
+     * is replayed.
+     */
+    public synchronized void checkpoint() {
+        if (wal == null || dumped)
+            return;
+        long start = checkpointTimer.start();
+        try {
+            if (wal.size() <= WriteAheadLog.HEADER_SIZE && !reloaded && !wal.hasPrevious())
+                return;
+            try {
+                lock(writeLock, writeLockWait);
+                wal.rotate();
+            } finally {
+                writeLock.unlock();
+            }
+            writeSnapshot(checkpointFile);
+            wal.dropPrevious();
+            reloaded = false;
+            logger.log(Level.INFO, "Checkpoint written to " + checkpointFile);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error writing checkpoint " + e.getMessage(), e);
+        } finally {
+            checkpointTimer.stop(start);
+        }
+    }
+
+    /**
+     * Waits until a change is durable, a change that can't be written stays in memory
+     * @return false if the change can't be written, callers then report it as failed
+     */
+    private boolean sync(long sequence) {
+        long start = syncTimer.start();
+        try {
+            wal.sync(sequence);
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Change is not durable " + e.getMessage(), e);
+            return false;
+        } finally {
+            syncTimer.stop(start);
+        }
+    }
+
+    /**
+     * Creates the review log when {@code reviews.storage} is {@code log},
+     * the log is rebuilt from the loaded catalog on each start
+     * and when a dumped catalog is restored
+     * @return the log or null when reviews are kept on the heap
+     */
+    private ReviewLog openReviewLog() {
+        if (!config.getString("reviews.storage").trim().equals("log"))
+            return null;
+        try {
+            Files.createDirectories(storeFolder);
+            return ReviewLog.create(storeFolder.resolve(config.getString("reviews.log.file")),
+                    Integer.parseInt(config.getString("reviews.cache.size").trim()));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error creating review log, reviews are kept in memory " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return empty reviews of a new product
+     */
+    private List<Review> newReviews(int id) {
+        return (reviewLog == null) ? new ArrayList<>() : reviewLog.newReviews(id);
+    }
+
+    /**
+     * Drops the reviews of a cleared catalog from the review log, if there is one,
+     * callers hold the catalog write lock
+     */
+    private void clearReviewLog() {
+        if (reviewLog == null)
+            return;
+        try {
+            reviewLog.clear();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error truncating review log " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Moves loaded reviews into the review log, if there is one
+     * @return reviews to keep in the catalog
+     */
+    private List<Review> keepReviews(int id, List<Review> reviews) {
+        if (reviewLog == null || reviews == null)
+            return reviews;
+        try {
+            return reviewLog.keep(id, reviews);
+        } catch (UncheckedIOException e) {
+            logger.log(Level.SEVERE, "Error writing reviews to review log " + e.getMessage(), e);
+            return reviews;
+        }
+    }
+
+    /**
+     * Copies reviews for a snapshot or the store, reviews
+     * kept in the review log are read without filling its cache
+     */
+    private static List<Review> copyReviews(List<Review> reviews) {
+        return reviews.stream().collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    private List<Review> loadReviews (Product product, LoadStatistics statistics) {
         List<Review> reviews = null;
         Path file = reportsFolder.resolve(
                 MessageFormat.format(config.getString("reviews.data.file"), product.getId()));
@@ -54,89 +421,272 @@ public class ProductFileManager implements ProductManager {
             reviews = new ArrayList<>();
         } else {
             try {
-                reviews = Files.lines(file, Charset.forName("UTF-8"))
-                        .map(text -> parseReview(text)).filter(review -> review != null)
-                        .collect(Collectors.toList());
+                List<Review> parsed = new ArrayList<>();
+                RecordParser.parseReviews(RecordParser.decode(Files.readAllBytes(file)), parsed::add, text -> {
+                    statistics.badLine();
+                    logger.log(Level.WARNING, "Error parsing review: " + text);
+                });
+                reviews = parsed;
+                statistics.reviewFileLoaded();
             } catch (IOException ex) {
+                statistics.fileFailed();
                 logger.log(Level.WARNING,"Error loading reviews " + ex.getMessage());
             }
         }
         return reviews;
     }
 
-
+    /**
+     * Loads all products and their reviews, from the checkpoint when the write
+     * ahead log is enabled and there is a checkpoint, from the consolidated store
+     * when there is one, otherwise from the data and reports folders.
+     * <br>
+     * The rating of each reviewed product is taken from the aggregate of its reviews.
+     * The complete catalog is published under the write lock
+     * in one step, so readers never see a partially loaded catalog.
+     */
     private void loadAllData() {
+        long start = loadTimer.start();
+        LoadStatistics statistics = new LoadStatistics();
+        Map<Product, List<Review>> loaded = (isWalEnabled() && Files.exists(checkpointFile)) ? loadCheckpoint(statistics)
+                : ProductStore.exists(storeProductsFile, storeReviewsFile) ? loadStore(statistics)
+                : loadFiles(statistics);
+        ProductIndex catalogIndex = new ProductIndex(loaded.size(), columnar);
+        loaded.forEach((product, reviews) -> {
+            catalogIndex.put(product, reviews);
+            Rating rating = catalogIndex.getAverageRating(product.getId());
+            if (catalogIndex.getReviewCount(product.getId()) > 0 && rating != product.getRating())
+                catalogIndex.replace(product.applyRating(rating));
+        });
+        SecondaryIndexes catalogSecondaryIndexes = SecondaryIndexes.of(catalogIndex);
+        TextIndex catalogTextIndex = TextIndex.of(catalogIndex);
+        DiscountTotals catalogDiscountTotals = DiscountTotals.of(catalogIndex);
+
+        lock(writeLock, writeLockWait);
+        try {
+            index = catalogIndex;
+            secondaryIndexes = catalogSecondaryIndexes;
+            textIndex = catalogTextIndex;
+            discountTotals = catalogDiscountTotals;
+            reportCache.clear();
+        } finally {
+            writeLock.unlock();
+        }
+
+        statistics.finish();
+        lastLoad = statistics;
+        loadTimer.stop(start);
+        loadedFiles.add(statistics.getFiles());
+        badLines.add(statistics.getBadLines());
+        failedFiles.add(statistics.getFailedFiles());
+        logger.log(Level.INFO, statistics.toString());
+        logger.log(Level.INFO, "Indexed " + catalogTextIndex.size() + " words in "
+                + catalogTextIndex.compressedBytes() + " bytes of posting lists");
+    }
+
+    private Map<Product, List<Review>> loadCheckpoint(LoadStatistics statistics) {
+        Map<Product, List<Review>> catalog = new HashMap<>();
+        try (InputStream in = Files.newInputStream(checkpointFile)) {
+            SnapshotCodec.read(in, (product, reviews) -> catalog.put(product, keepReviews(product.getId(), reviews)));
+            statistics.productFileLoaded();
+        } catch (IOException e) {
+            statistics.fileFailed();
+            logger.log(Level.SEVERE, "Error loading checkpoint " + e.getMessage(), e);
+        }
+        return catalog;
+    }
+
+    /**
+     * Loads the catalog from the consolidated store, or from the data and reports
+     * folders when the store can't be opened. A torn last review is cut off the
+     * review log, the store stays open for new reviews.
+     */
+    private Map<Product, List<Review>> loadStore(LoadStatistics statistics) {
+        Map<Product, List<Review>> catalog = new HashMap<>();
         try {
-            writeLock.lock();
-            products = Files.list(dataFolder)
-                    .filter(file -> file.getFileName().toString().startsWith("product"))
-                    .map(file -> loadProduct(file))
-                    .filter(product -> product != null)
-                    .collect(Collectors.toMap(product -> product, product -> loadReviews(product)));
+            store = ProductStore.open(storeProductsFile, storeReviewsFile);
+        } catch (IOException e) {
+            statistics.fileFailed();
+            logger.log(Level.SEVERE, "Error opening store, loading the data folders " + e.getMessage(), e);
+            return loadFiles(statistics);
+        }
+        if (store.getTruncated() > 0) {
+            statistics.badLine();
+            logger.log(Level.WARNING, "Cut a torn review of " + store.getTruncated() + " bytes off the store");
+        }
+        try {
+            ProductIndex storeIndex = new ProductIndex(store.size(), false);
+            for (int record = 0; record < store.size(); record++) {
+                Product product = store.product(record);
+                List<Review> reviews = newReviews(product.getId());
+                catalog.put(product, reviews);
+                storeIndex.put(product, reviews);
+            }
+            statistics.productFileLoaded();
+
+            store.forEachReview((id, review) -> {
+                List<Review> reviews = storeIndex.getReviews(id);
+                if (reviews != null)
+                    reviews.add(review);
+                else
+                    statistics.badLine();
+            });
+            statistics.reviewFileLoaded();
+        } catch (IOException e) {
+            statistics.fileFailed();
+            logger.log(Level.SEVERE, "Error loading store " + e.getMessage(), e);
+        }
+        return catalog;
+    }
+
+    /**
+     * Parses all product and review files in parallel on a pool of
+     * {@code load.threads} threads into a private map.
+     */
+    private Map<Product, List<Review>> loadFiles(LoadStatistics statistics) {
+        Map<Product, List<Review>> loaded = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(getLoadThreads());
+
+        try (Stream<Path> files = Files.list(dataFolder)) {
+            files.filter(file -> file.getFileName().toString().startsWith("product") && ownsFile(file))
+                    .forEach(file -> executor.execute(() -> {
+                        Product product = loadProduct(file, statistics);
+                        if (product != null && owns(product.getId()) && loaded.putIfAbsent(product,
+                                keepReviews(product.getId(), loadReviews(product, statistics))) != null)
+                            logger.log(Level.WARNING, "Duplicate product " + product.getId() + " in " + file);
+                    }));
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Error loading data" + e.getMessage(), e);
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, "Sth wrong with lock " + e.getMessage(), e);
         } finally {
-            writeLock.unlock();
+            executor.shutdown();
+        }
+
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.log(Level.SEVERE, "Loading data interrupted", e);
         }
+        return loaded;
     }
 
-    private Product loadProduct (Path file) {
-        Product product = null;
+    /**
+     * Imports the current catalog into the consolidated store,
+     * next start of the application loads the catalog from the store
+     * instead of the data and reports folders.
+     * <br>
+     * The store is written under the write lock, so no review is appended to the
+     * log of the replaced store after the catalog is copied, and the new store
+     * takes its place for the reviews that follow.
+     */
+    public void writeStore() {
+        long start = writeStoreTimer.start();
+        Map<Product, List<Review>> catalog = new HashMap<>();
+        lock(writeLock, writeLockWait);
         try {
-            writeLock.lock();
-            product = parseProduct(Files.lines(dataFolder.resolve(file), Charset.forName("UTF-8")).findFirst().orElseThrow());
+            for (Product product : index.products())
+                catalog.put(product, copyReviews(index.getReviews(product.getId())));
+
+            Files.createDirectories(storeFolder);
+            ProductStore.write(storeProductsFile, storeReviewsFile, catalog);
+            logger.log(Level.INFO, "Imported " + catalog.size() + " products into " + storeFolder);
+            closeStore();
+            store = ProductStore.open(storeProductsFile, storeReviewsFile);
         } catch (IOException e) {
-            logger.log(Level.WARNING, "Error loading product", e.getMessage());
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, "Sth wrong with lock " + e.getMessage(), e);
+            logger.log(Level.SEVERE, "Error writing store " + e.getMessage(), e);
         } finally {
             writeLock.unlock();
+            writeStoreTimer.stop(start);
         }
-
-        return product;
     }
 
-    private Review parseReview (String text) {
-        Review review = null;
+    /**
+     * Stops watching the data folders and closes the review log of the consolidated
+     * store, reviews are no longer appended to it
+     */
+    @Override
+    public void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Error closing folder watcher " + e.getMessage(), e);
+            }
+        }
+        lock(writeLock, writeLockWait);
         try {
-            Object[] values = reviewFormat.parse(text);
-            review = new Review(Rateable.convert(Integer.parseInt((String) values[0])), (String) values[1]);
+            closeStore();
+        } finally {
+            writeLock.unlock();
+        }
+    }
 
-        } catch (ParseException | NumberFormatException pex) {
-            logger.log(Level.WARNING, "Error parsing review: " + text + " " + pex.getMessage());
+    private void closeStore() {
+        if (store == null)
+            return;
+        try {
+            store.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error closing store " + e.getMessage(), e);
         }
-        return review;
+        store = null;
     }
 
-    private Product parseProduct(String text) {
+    /**
+     * @return false if the name of a product file shows that its product belongs to another shard
+     */
+    private boolean ownsFile(Path file) {
+        Integer id = (ring == null) ? null : fileId(config.getString("product.data.file"), file);
+        return id == null || owns(id);
+    }
+
+    private int getLoadThreads() {
+        int threads = Integer.parseInt(config.getString("load.threads").trim());
+        return (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    private Product loadProduct (Path file, LoadStatistics statistics) {
         Product product = null;
         try {
-            Object[] values = productFormat.parse(text);
-            int id = Integer.parseInt((String) values[1]);
-            String name = (String) values [2];
-            BigDecimal price = BigDecimal.valueOf(Double.parseDouble((String) values[3]));
-            Rating rating = Rateable.convert(Integer.parseInt((String) values[4]));
-
-            switch ((String) values[0]) {
-                case "D":
-                    product = new Drink(id, name, price, rating);
-                    break;
-                case "F":
-                    LocalDate bestBefore = LocalDate.parse((String) values[5]);
-                    product = new Food(id, name, price, rating, bestBefore);
-                    break;
-            }
+            CharBuffer text = RecordParser.decode(Files.readAllBytes(dataFolder.resolve(file)));
+            int end = 0;
+            while (end < text.length() && text.charAt(end) != '\n')
+                end++;
+            product = parseProduct(text, end);
+            if (product == null)
+                statistics.badLine();
+            statistics.productFileLoaded();
+        } catch (IOException e) {
+            statistics.fileFailed();
+            logger.log(Level.WARNING, "Error loading product " + file + " " + e.getMessage());
+        }
 
-        } catch (ParseException | NumberFormatException | DateTimeParseException pex) {
-            logger.log(Level.WARNING, "Error parsing product: " + text + " " + pex.getMessage());
+        return product;
+    }
+
+    private Product parseProduct(CharSequence text, int end) {
+        Product product = null;
+        try {
+            product = RecordParser.parseProduct(text, 0, end);
+        } catch (ParseException pex) {
+            logger.log(Level.WARNING, "Error parsing product: " + text.subSequence(0, end) + " " + pex.getMessage());
         }
         return product;
     }
 
 
-    private void dumpData() {
+    /**
+     * Writes the catalog into a snapshot in the temp folder and clears the catalog,
+     * {@link #restoreData()} brings it back. No checkpoint is written
+     * while the catalog is dumped.
+     * <br>
+     * The write lock is held from the start of the snapshot until the catalog is
+     * cleared, so no product or review added in between is cleared without
+     * being written. The review log is cleared with the catalog, the restore
+     * writes the reviews into it again.
+     */
+    private synchronized void dumpData() {
+        long start = dumpTimer.start();
         try {
             if (Files.notExists(tempFolder))
                 Files.createDirectory(tempFolder);
@@ -144,227 +694,1119 @@ public class ProductFileManager implements ProductManager {
             Path tempFile = tempFolder.resolve(
                     MessageFormat.format(config.getString("temp.file"), LocalDate.now()));
 
-            try (ObjectOutputStream out = new ObjectOutputStream(
-                    Files.newOutputStream(tempFile, StandardOpenOption.CREATE))) {
+            try {
+                lock(writeLock, writeLockWait);
+                writeSnapshot(tempFile);
+                index.clear();
+                secondaryIndexes.clear();
+                textIndex.clear();
+                discountTotals.clear();
+                reportCache.clear();
+                clearReviewLog();
+            } finally {
+                writeLock.unlock();
+            }
+            dumped = true;
+
+        } catch(Exception e) {
+            logger.log(Level.SEVERE, "Error dumping data " + e.getMessage(), e);
+        } finally {
+            dumpTimer.stop(start);
+        }
+    }
+
+    /**
+     * Streams the catalog into a snapshot file.
+     * <br>
+     * The read lock is held only while a batch of entries is copied, the batch
+     * is encoded outside the lock, unless the caller holds the write lock. The snapshot is written next to the target,
+     * synced and moved into place, so the target is always a complete snapshot.
+     * @param file target snapshot file
+     * @throws IOException if the snapshot can't be written
+     */
+    private void writeSnapshot(Path file) throws IOException {
+        Path partFile = file.resolveSibling(file.getFileName() + ".part");
+        List<Product> keys;
+        try {
+            lock(readLock, readLockWait);
+            keys = index.products();
+        } finally {
+            readLock.unlock();
+        }
 
+        try (SnapshotCodec.Writer out = new SnapshotCodec.Writer(Files.newOutputStream(partFile,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+            List<Product> batchProducts = new ArrayList<>(SNAPSHOT_BATCH);
+            List<List<Review>> batchReviews = new ArrayList<>(SNAPSHOT_BATCH);
+            for (int from = 0; from < keys.size(); from += SNAPSHOT_BATCH) {
                 try {
-                    readLock.lock();
-                    out.writeObject(products);
-                    products = new HashMap<>();
-                }  catch (Exception e) {
-                    logger.log(Level.SEVERE, "Sth wrong with lock " + e.getMessage(), e);
+                    lock(readLock, readLockWait);
+                    for (Product key : keys.subList(from, Math.min(from + SNAPSHOT_BATCH, keys.size()))) {
+                        Lock productLock = productLock(key.getId()).readLock();
+                        lock(productLock, productLockWait);
+                        try {
+                            Product product = index.get(key.getId());
+                            if (product != null) {
+                                batchProducts.add(product);
+                                batchReviews.add(copyReviews(index.getReviews(key.getId())));
+                            }
+                        } finally {
+                            productLock.unlock();
+                        }
+                    }
                 } finally {
                     readLock.unlock();
                 }
 
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "Error writing data " + e.getMessage(), e);
+                for (int i = 0; i < batchProducts.size(); i++)
+                    out.write(batchProducts.get(i), batchReviews.get(i));
+                batchProducts.clear();
+                batchReviews.clear();
             }
+        }
 
-        } catch(Exception e) {
-            logger.log(Level.SEVERE, "Error dumping data " + e.getMessage(), e);
+        try (FileChannel channel = FileChannel.open(partFile, StandardOpenOption.WRITE)) {
+            channel.force(true);
         }
+        Files.move(partFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
 
-    @SuppressWarnings("unchecked")
-    private void restoreData() {
-        try {
-            Path tempFile = Files.list(tempFolder)
+    /**
+     * Restores the catalog from the snapshot in the temp folder,
+     * the snapshot file is deleted once it is restored.
+     */
+    private synchronized void restoreData() {
+        long start = restoreTimer.start();
+        try (Stream<Path> files = Files.list(tempFolder)) {
+            Path tempFile = files
                     .filter(path -> path.getFileName().toString().endsWith("tmp"))
                     .findFirst().orElseThrow();
 
-            try (ObjectInputStream in = new ObjectInputStream(
-                    Files.newInputStream(tempFile, StandardOpenOption.DELETE_ON_CLOSE))) {
+            ProductIndex restoredIndex = new ProductIndex(0, columnar);
+            try (InputStream in = Files.newInputStream(tempFile)) {
+                SnapshotCodec.read(in, (product, reviews) ->
+                        restoredIndex.put(product, keepReviews(product.getId(), reviews)));
+            }
+            SecondaryIndexes restoredSecondaryIndexes = SecondaryIndexes.of(restoredIndex);
+            TextIndex restoredTextIndex = TextIndex.of(restoredIndex);
+            DiscountTotals restoredDiscountTotals = DiscountTotals.of(restoredIndex);
+
+            try {
+                lock(writeLock, writeLockWait);
+                index = restoredIndex;
+                secondaryIndexes = restoredSecondaryIndexes;
+                textIndex = restoredTextIndex;
+                discountTotals = restoredDiscountTotals;
+                reportCache.clear();
+            } finally {
+                writeLock.unlock();
+            }
+            dumped = false;
+            Files.delete(tempFile);
+            if (!pendingReload.isEmpty()) {
+                Set<Path> pending = new LinkedHashSet<>(pendingReload);
+                pendingReload.clear();
+                reloadFiles(pending);
+            }
+
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Error restoring data " + e.getMessage(), e);
+        } finally {
+            restoreTimer.stop(start);
+        }
+    }
+
 
+    /**
+     * Applies created, changed and deleted product and review files to the
+     * running catalog, so the cost of a reload depends on the number of
+     * changed files rather than the size of the catalog.
+     * <br>
+     * For each product with a changed file both its product and reviews files
+     * are parsed again outside of any lock, the files replace the product and
+     * its reviews as a full load would. A changed product is replaced under its
+     * product lock, new and deleted products are added and removed in one short
+     * section under the catalog write lock. A file that can't be parsed leaves
+     * its product as it is. Reviews that didn't change keep their entries in the
+     * review log, so reloads add to the log only the reviews that changed. Files
+     * changed while the catalog is dumped are applied once it is restored.
+     * With the write ahead log each reloaded product is logged with all its
+     * reviews and each removed product by its id, under the lock it was changed
+     * under, and the reload waits until the records are durable. A reload that
+     * can't be logged is written by the next checkpoint.
+     * @param files created, changed or deleted files of the data and reports folders
+     * @return number of added, changed and removed products
+     */
+    public synchronized int reloadFiles(Collection<Path> files) {
+        if (dumped) {
+            pendingReload.addAll(files);
+            return 0;
+        }
+        long start = reloadTimer.start();
+        Map<Integer, Path> productFiles = new TreeMap<>();
+        for (Path file : files) {
+            Integer id = dataFileId(file);
+            if (id != null && owns(id) && (dataFolder.equals(file.getParent()) || !productFiles.containsKey(id)))
+                productFiles.put(id, dataFolder.equals(file.getParent()) ? file : null);
+        }
+
+        LoadStatistics statistics = new LoadStatistics();
+        Map<Product, List<Review>> changed = new LinkedHashMap<>();
+        List<Integer> removed = new ArrayList<>();
+        productFiles.forEach((id, file) -> {
+            Path productFile = (file != null) ? file
+                    : dataFolder.resolve(MessageFormat.format(config.getString("product.data.file"), id));
+            if (Files.notExists(productFile)) {
+                if (file != null)
+                    removed.add(id);
+                return;
+            }
+            Product product = loadProduct(productFile, statistics);
+            List<Review> reviews = (product == null) ? null : loadReviews(product, statistics);
+            if (reviews != null)
+                changed.put(product, reviews);
+        });
+
+        Map<Product, List<Review>> added = new LinkedHashMap<>();
+        LongAccumulator sequence = new LongAccumulator(Math::max, 0);
+        try {
+            lock(readLock, readLockWait);
+            changed.forEach((product, reviews) -> {
+                Lock productLock = productLock(product.getId()).writeLock();
+                lock(productLock, productLockWait);
                 try {
-                    writeLock.lock();
-                    products = (HashMap) in.readObject();
-                }  catch (Exception e) {
-                    logger.log(Level.SEVERE, "Sth wrong with lock " + e.getMessage(), e);
+                    if (reloadProduct(product, reviews))
+                        logReload(product, reviews, sequence);
+                    else
+                        added.put(product, reviews);
                 } finally {
-                    writeLock.unlock();
+                    productLock.unlock();
                 }
+            });
+        } finally {
+            readLock.unlock();
+        }
 
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "Error with loading data from file " + e.getMessage(), e);
+        if (!added.isEmpty() || !removed.isEmpty()) {
+            added.replaceAll((product, reviews) -> keepReviews(product.getId(), reviews));
+            try {
+                lock(writeLock, writeLockWait);
+                added.forEach((product, reviews) -> {
+                    if (!reloadProduct(product, reviews))
+                        addReloadedProduct(product, reviews);
+                    logReload(product, reviews, sequence);
+                });
+                for (int id : removed) {
+                    if (removeProduct(id) && wal != null)
+                        sequence.accumulate(wal.appendRemoval(id));
+                }
+            } finally {
+                writeLock.unlock();
             }
+        }
+        if (sequence.get() > 0 && !sync(sequence.get()))
+            reloaded = true;
+
+        int count = changed.size() + removed.size();
+        reloadedProducts.add(count);
+        badLines.add(statistics.getBadLines());
+        failedFiles.add(statistics.getFailedFiles());
+        reloadTimer.stop(start);
+        logger.log(Level.INFO, "Reloaded " + changed.size() + " products, removed " + removed.size());
+        return count;
+    }
 
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, "Error restoring data " + e.getMessage(), e);
+    /**
+     * Logs a reloaded product with all its reviews to the write ahead log, if there is one,
+     * callers hold the lock that guarded its reload
+     */
+    private void logReload(Product product, List<Review> reviews, LongAccumulator sequence) {
+        if (wal != null)
+            sequence.accumulate(wal.appendReload(product, reviews));
+    }
+
+    /**
+     * Adds a reloaded product that is not in the catalog yet,
+     * callers hold the catalog write lock
+     */
+    private void addReloadedProduct(Product product, List<Review> reviews) {
+        index.put(product, reviews);
+        Product ratedProduct = ratedProduct(product);
+        index.replace(ratedProduct);
+        secondaryIndexes.add(ratedProduct);
+        textIndex.add(ratedProduct, reviews);
+        discountTotals.add(ratedProduct);
+        reportCache.invalidate(product.getId());
+    }
+
+    /**
+     * Removes a product whose files were deleted, callers hold the catalog write lock
+     * @return false if the product is not in the catalog
+     */
+    private boolean removeProduct(int id) {
+        Product product = index.get(id);
+        if (product == null)
+            return false;
+        textIndex.remove(product, index.getReviews(id));
+        index.remove(id);
+        secondaryIndexes.remove(product);
+        discountTotals.remove(product);
+        reportCache.invalidate(id);
+        return true;
+    }
+
+    /**
+     * Reloads all files of the data and reports folders,
+     * when the folder watcher lost track of the changed files
+     */
+    private void reloadAllFiles() {
+        List<Path> files = new ArrayList<>();
+        for (Path folder : List.of(dataFolder, reportsFolder)) {
+            try (Stream<Path> list = Files.list(folder)) {
+                list.forEach(files::add);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Error listing " + folder + " " + e.getMessage(), e);
+            }
         }
+        reloadFiles(files);
     }
 
+    /**
+     * Replaces an indexed product and its reviews with reloaded ones,
+     * callers hold the catalog lock and the lock of the product
+     * @return false if the product is not in the catalog
+     */
+    private boolean reloadProduct(Product product, List<Review> reviews) {
+        Product oldProduct = index.get(product.getId());
+        if (oldProduct == null)
+            return false;
+        List<Review> oldReviews = index.getReviews(product.getId());
+        if (reviews != oldReviews)
+            reviews = sameReviews(oldReviews, reviews) ? oldReviews : keepReviews(product.getId(), reviews);
+        if (!index.replace(product, reviews))
+            return false;
+        Product ratedProduct = ratedProduct(product);
+        index.replace(ratedProduct);
+        secondaryIndexes.replace(oldProduct, ratedProduct);
+        textIndex.replace(oldProduct, oldReviews, ratedProduct, reviews);
+        discountTotals.replace(oldProduct, ratedProduct);
+        reportCache.invalidate(product.getId());
+        return true;
+    }
+
+    /**
+     * @return whether both lists have the same reviews in the same order
+     */
+    private static boolean sameReviews(List<Review> oldReviews, List<Review> reviews) {
+        if (oldReviews.size() != reviews.size())
+            return false;
+        Iterator<Review> oldIterator = oldReviews.iterator();
+        for (Review review : reviews) {
+            Review oldReview = oldIterator.next();
+            if (oldReview.getRating() != review.getRating() || !oldReview.getComments().equals(review.getComments()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the product rated by the aggregate of its indexed reviews, if it has any
+     */
+    private Product ratedProduct(Product product) {
+        Rating rating = index.getAverageRating(product.getId());
+        return (index.getReviewCount(product.getId()) > 0 && rating != product.getRating())
+                ? product.applyRating(rating) : product;
+    }
+
+    /**
+     * @param file a file of the data or reports folder
+     * @return id of the product of a product or reviews file, null for any other file
+     */
+    private Integer dataFileId(Path file) {
+        return dataFolder.equals(file.getParent()) ? fileId(config.getString("product.data.file"), file)
+                : reportsFolder.equals(file.getParent()) ? fileId(config.getString("reviews.data.file"), file)
+                : null;
+    }
+
+    /**
+     * @return true if the file is a product or reviews file of a product of this catalog
+     */
+    private boolean isWatchedFile(Path file) {
+        Integer id = dataFileId(file);
+        return id != null && owns(id);
+    }
+
+    /**
+     * @param pattern of file names with the product id as {@code {0}}
+     * @param file name of a data or reviews file
+     * @return id of the product of the file or null if the file doesn't match the pattern
+     */
+    private static Integer fileId(String pattern, Path file) {
+        String[] parts = pattern.split("\\{0}", 2);
+        String name = file.getFileName().toString();
+        if (parts.length < 2 || name.length() <= parts[0].length() + parts[1].length()
+                || !name.startsWith(parts[0]) || !name.endsWith(parts[1]))
+            return null;
+        try {
+            return Integer.valueOf(name.substring(parts[0].length(), name.length() - parts[1].length())
+                    .replaceAll("\\D", ""));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 
     public static ProductFileManager getInstance() {
-        return pm;
+        return Instance.pm;
+    }
+
+    /**
+     * Creates the catalog of one shard of a {@link ShardedProductManager}, independent
+     * of the catalog returned by {@link #getInstance()}
+     * @param shard index of the shard, from 0 to {@code shards - 1}
+     * @param shards number of shards
+     * @return new catalog of the products of the shard
+     */
+    public static ProductFileManager newShard(int shard, int shards) {
+        return new ProductFileManager(shard, shards);
+    }
+
+    /**
+     * @return true if the product belongs to the catalog of this shard
+     */
+    private boolean owns(int id) {
+        return ring == null || ring.shardOf(id) == shard;
+    }
+
+    LoadStatistics getLoadStatistics() {
+        return lastLoad;
     }
 
     public Product createProduct(int id, String name, BigDecimal price, Rating rating, LocalDate bestBefore) {
+        long start = createProductTimer.start();
         Product product = null;
+        long sequence = 0;
 
         try {
-            writeLock.lock();
+            lock(writeLock, writeLockWait);
             product = new Food(id, name, price, rating, bestBefore);
-            products.putIfAbsent(product, new ArrayList<>());
+            if (addProduct(product) && wal != null)
+                sequence = wal.appendProduct(product);
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Product can't be added " + e.getMessage(), e);
-            return null;
+            product = null;
         } finally {
             writeLock.unlock();
         }
 
+        if (sequence > 0 && !sync(sequence))
+            product = null;
+        createProductTimer.stop(start);
         return product;
     }
 
     public Product createProduct(int id, String name, BigDecimal price, Rating rating) {
+        long start = createProductTimer.start();
         Product product;
+        long sequence = 0;
 
         try {
-            writeLock.lock();
+            lock(writeLock, writeLockWait);
             product = new Drink(id, name, price, rating);
-            products.putIfAbsent(product, new ArrayList<>());
+            if (addProduct(product) && wal != null)
+                sequence = wal.appendProduct(product);
         }catch (Exception e) {
             logger.log(Level.SEVERE, "Product can't be added " + e.getMessage(), e);
-            return null;
+            product = null;
         } finally {
             writeLock.unlock();
         }
 
+        if (sequence > 0 && !sync(sequence))
+            product = null;
+        createProductTimer.stop(start);
+        return product;
+    }
+
+    /**
+     * @return false if there already is a product with the same id
+     */
+    private boolean addProduct(Product product) {
+        if (index.contains(product.getId()))
+            return false;
+        index.put(product, newReviews(product.getId()));
+        secondaryIndexes.add(product);
+        textIndex.add(product, null);
+        discountTotals.add(product);
+        return true;
+    }
+
+    /**
+     * @param id of the product
+     * @return lock of the stripe that guards the product
+     */
+    private ReadWriteLock productLock(int id) {
+        int hash = id * 0x9E3779B9;
+        return productLocks[Math.floorMod(hash ^ (hash >>> 16), productLocks.length)];
+    }
+
+    /**
+     * Finds a product, callers hold the catalog lock
+     */
+    private Product getProduct(int id) throws ProductManagerException {
+        Product product = index.get(id);
+        if (product == null) {
+            productsNotFound.increment();
+            throw new ProductManagerException("Product with id = " + id + " not found!");
+        }
         return product;
     }
 
-    private Product reviewProduct(Product product, Rating rating, String comments) {
-        List <Review> reviews = null;
+    /**
+     * Adds reviews and updates the rating of the product once from the running
+     * aggregate of its reviews, so it takes the same time for any number of reviews.
+     * Callers hold the catalog lock and the lock of the product.
+     */
+    private Product reviewProduct(Product product, List<Review> newReviews) {
+        List <Review> reviews = index.getReviews(product.getId());
 
-        reviews = products.get(product);
-        products.remove(product, reviews);
+        for (Review review : newReviews) {
+            reviews.add(review);
+            if (store != null && wal == null && store.find(product.getId()) >= 0) {
+                try {
+                    store.appendReview(product.getId(), review);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Error appending review to store " + e.getMessage(), e);
+                }
+            }
+            index.addRating(product.getId(), review.getRating());
+        }
+        textIndex.addReviews(product.getId(), newReviews);
+        Product ratedProduct = product.applyRating(index.getAverageRating(product.getId()));
+        index.replace(ratedProduct);
+        if (ratedProduct.getRating() != product.getRating()) {
+            secondaryIndexes.replace(product, ratedProduct);
+            discountTotals.replace(product, ratedProduct);
+        }
+        product = ratedProduct;
+        reportCache.invalidate(product.getId());
 
-        reviews.add(new Review(rating, comments));
-        product = product.applyRating(Rateable.convert((int) Math.round(
-                reviews.stream().mapToInt(p -> p.getRating().ordinal()).average().orElse(0))));
+        return product;
+    }
 
+    public Product reviewProduct(int id, Rating rating, String comments) {
+        long start = reviewProductTimer.start();
+        Lock productLock = productLock(id).writeLock();
+        Product product;
+        long sequence = 0;
         try {
-            writeLock.lock();
-            products.put(product, reviews);
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, "Sth wrong with lock " + e.getMessage(), e);
+            lock(readLock, readLockWait);
+            lock(productLock, productLockWait);
+            Review review = new Review(rating, comments);
+            product = reviewProduct(getProduct(id), List.of(review));
+            if (wal != null)
+                sequence = wal.appendReview(id, index.getReviewCount(id), review);
+        } catch (ProductManagerException ex) {
+            logger.log(Level.INFO, ex.getMessage());
+            product = null;
+        } catch (UncheckedIOException ex) {
+            logger.log(Level.SEVERE, "Error writing review to review log " + ex.getMessage(), ex);
+            product = null;
         } finally {
-            writeLock.unlock();
+            productLock.unlock();
+            readLock.unlock();
         }
 
+        if (sequence > 0 && !sync(sequence))
+            product = null;
+        reviewProductTimer.stop(start);
         return product;
     }
 
-    public Product reviewProduct(int id, Rating rating, String comments) {
+
+    public List<Product> reviewProducts(Collection<ReviewRequest> requests) {
+        return reviewProducts(requests, false);
+    }
+
+    /**
+     * Adds a batch of reviews.
+     * <br>
+     * Reviews are grouped by product, the lock of each product is taken once for all
+     * its reviews and its rating is updated once. In parallel mode the products are
+     * reviewed on the common fork/join pool. With the write ahead log the whole batch
+     * is made durable by one group commit.
+     * @param requests reviews to add
+     * @param parallel whether to review the products of the batch in parallel
+     * @return for each request the product after the batch,
+     * or null if there is no such product or its reviews can't be added
+     */
+    public List<Product> reviewProducts(Collection<ReviewRequest> requests, boolean parallel) {
+        long start = reviewProductsTimer.start();
+        Map<Integer, List<ReviewRequest>> byProduct = new HashMap<>();
+        for (ReviewRequest request : requests)
+            byProduct.computeIfAbsent(request.getId(), id -> new ArrayList<>()).add(request);
+        Map<Integer, Product> reviewed = new ConcurrentHashMap<>(byProduct.size() * 2);
+        LongAccumulator sequence = new LongAccumulator(Math::max, 0);
+
+        try {
+            lock(readLock, readLockWait);
+            Stream<Map.Entry<Integer, List<ReviewRequest>>> products = parallel
+                    ? byProduct.entrySet().parallelStream() : byProduct.entrySet().stream();
+            products.forEach(entry -> {
+                Product product = reviewProduct(entry.getKey(), entry.getValue(), sequence);
+                if (product != null)
+                    reviewed.put(entry.getKey(), product);
+            });
+        } finally {
+            readLock.unlock();
+        }
+
+        if (sequence.get() > 0 && !sync(sequence.get()))
+            reviewed.clear();
+        List<Product> results = new ArrayList<>(requests.size());
+        for (ReviewRequest request : requests)
+            results.add(reviewed.get(request.getId()));
+        reviewProductsTimer.stop(start);
+        return results;
+    }
+
+    /**
+     * Imports a stream of reviews in batches of {@code batchSize} reviews,
+     * so an import of any size holds only one batch in memory
+     * @param requests reviews to add
+     * @param batchSize number of reviews of one batch
+     * @param parallel whether to review the products of a batch in parallel
+     * @return number of added reviews
+     */
+    public long reviewProducts(Stream<ReviewRequest> requests, int batchSize, boolean parallel) {
+        long added = 0;
+        List<ReviewRequest> batch = new ArrayList<>(batchSize);
+        Iterator<ReviewRequest> iterator = requests.iterator();
+        while (iterator.hasNext()) {
+            batch.add(iterator.next());
+            if (batch.size() == batchSize || !iterator.hasNext()) {
+                added += reviewProducts(batch, parallel).stream().filter(Objects::nonNull).count();
+                batch.clear();
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Adds the reviews of one product of a batch under the product lock,
+     * callers hold the catalog lock
+     * @param sequence receives the sequence number of the last logged review
+     */
+    private Product reviewProduct(int id, List<ReviewRequest> requests, LongAccumulator sequence) {
+        Lock productLock = productLock(id).writeLock();
+        lock(productLock, productLockWait);
         try {
-            writeLock.lock();
-            return reviewProduct(findProduct(id), rating, comments);
+            Product product = getProduct(id);
+            int number = index.getReviewCount(id);
+            List<Review> reviews = new ArrayList<>(requests.size());
+            requests.forEach(request -> reviews.add(new Review(request.getRating(), request.getComments())));
+            product = reviewProduct(product, reviews);
+            if (wal != null) {
+                for (Review review : reviews)
+                    sequence.accumulate(wal.appendReview(id, ++number, review));
+            }
+            return product;
         } catch (ProductManagerException ex) {
             logger.log(Level.INFO, ex.getMessage());
             return null;
+        } catch (UncheckedIOException ex) {
+            logger.log(Level.SEVERE, "Error writing review to review log " + ex.getMessage(), ex);
+            return null;
         } finally {
-            writeLock.unlock();
+            productLock.unlock();
         }
     }
 
-
     public Product findProduct(int id) throws ProductManagerException {
+        long start = findProductTimer.start();
         try {
-            readLock.lock();
-            return products.keySet().stream().filter(p -> p.getId() == id).
-                    findFirst().orElseThrow(() -> new ProductManagerException("Product with id = " + id + " not found!"));
+            lock(readLock, readLockWait);
+            return getProduct(id);
         } finally {
             readLock.unlock();
+            findProductTimer.stop(start);
         }
     }
 
-    private void printProductReport(Product product, String languageTag, String client) throws IOException {
+    /**
+     * Renders a report from a snapshot of the product and its reviews
+     */
+    private String renderProductReport(Product product, List<Review> reviews, ResourceFormatter formatter) {
+        StringBuilder report = new StringBuilder();
+        formatter.appendProduct(report, product).append(System.lineSeparator());
 
-        ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("en-GB"));
-        Path productFile = reportsFolder.resolve(MessageFormat.format(config.getString(
-                "report.file"), product.getId(), client));
+        if (reviews.isEmpty()) {
+            report.append(formatter.getText("no.reviews")).append(System.lineSeparator());
+        } else {
+            Collections.sort(reviews);
+            reviews.forEach(r -> formatter.appendReview(report, r).append(System.lineSeparator()));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Prints a report of the product into a file of the client,
+     * the file is written asynchronously by the report writer.
+     */
+    public void printProductReport(int id, String languageTag, String client) {
+        printProductReportAsync(id, languageTag, client);
+    }
+
+    /**
+     * Prints a report of the product into a file of the client.
+     * <br>
+     * The product lock is shared only while the product and a copy of its reviews
+     * are taken, the report is rendered outside of any lock and queued to the
+     * report writer. Rendered reports are cached per product and language until
+     * the product gets a new review or is reloaded.
+     * @return future completed with the report file once it is written,
+     * or with null if there is no such product
+     */
+    public CompletableFuture<Path> printProductReportAsync(int id, String languageTag, String client) {
+        long start = printProductReportTimer.start();
+        String tag = formatters.containsKey(languageTag) ? languageTag : "en-GB";
+        ResourceFormatter formatter = formatters.get(tag);
+        Lock productLock = productLock(id).readLock();
+        Product product;
+        List<Review> reviews = null;
+        long version;
+        String report;
+
+        try {
+            lock(readLock, readLockWait);
+            lock(productLock, productLockWait);
+            product = getProduct(id);
+            version = index.getGeneration(id);
+            report = reportCache.get(id, tag, version);
+            if (report == null)
+                reviews = new ArrayList<>(index.getReviews(id));
+        } catch (ProductManagerException ex) {
+            logger.log(Level.INFO, ex.getMessage());
+            printProductReportTimer.stop(start);
+            return CompletableFuture.completedFuture(null);
+        } finally {
+            productLock.unlock();
+            readLock.unlock();
+        }
 
-        List<Review> reviews = products.get(product);
-        Collections.sort(reviews);
+        if (report == null) {
+            report = renderProductReport(product, reviews, formatter);
+            reportCache.put(id, tag, version, report);
+        }
 
+        CompletableFuture<Path> written = reportWriter.write(reportsFolder.resolve(MessageFormat.format(
+                config.getString("report.file"), id, client)), report);
+        printProductReportTimer.stop(start);
+        return written;
+    }
+
+    /**
+     * Report file written from one cached report body, with the number of its users,
+     * the current file of its product and language counts as one
+     */
+    private static final class ReportFile {
+        private final String report;
+        private final Path path;
+        private final CompletableFuture<Path> file;
+        private int users;
+
+        private ReportFile(String report, Path path, CompletableFuture<Path> file, int users) {
+            this.report = report;
+            this.path = path;
+            this.file = file;
+            this.users = users;
+        }
 
-        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(Files.newOutputStream(productFile, StandardOpenOption.CREATE), "UTF-8"))) {
-            out.append(formatter.formatProduct(product) + System.lineSeparator());
+        /**
+         * @return false if the file is no longer used and is deleted
+         */
+        private synchronized boolean retain() {
+            if (users == 0)
+                return false;
+            users++;
+            return true;
+        }
 
-            if (reviews.isEmpty()) {
-                out.append(formatter.getText("no.reviews") + System.lineSeparator());
-            } else {
-                //the same as up + join this strings together, map: Review into String
-                out.append(reviews.stream().map(r -> formatter.formatReview(r) + System.lineSeparator())
-                        .collect(Collectors.joining()));
-            }
-            System.out.println(out);
+        /**
+         * @return true if this was the last user of the file
+         */
+        private synchronized boolean release() {
+            return users > 0 && --users == 0;
         }
     }
 
-    public void printProductReport(int id, String languageTag, String client) {
+    /**
+     * Finds the report file of the product in a language, for serving the file as it is.
+     * <br>
+     * The file is written again only when the cached report body changes, until then
+     * all callers get the same file. Each new file gets a new name, so a file is never
+     * changed while it is read. A file is used until the caller passes it to
+     * {@link #releaseReportFile(Path)}, a replaced file is deleted once the new one is
+     * written and all its users released it.
+     * @param id of the product
+     * @param languageTag language of the report
+     * @return future completed with the report file once it is written,
+     * or with null if there is no such product
+     */
+    public CompletableFuture<Path> getReportFile(int id, String languageTag) {
+        long start = reportFileTimer.start();
+        String tag = formatters.containsKey(languageTag) ? languageTag : "en-GB";
+        Lock productLock = productLock(id).readLock();
+        Product product;
+        List<Review> reviews = null;
+        long version;
+        String report;
+
         try {
-            writeLock.lock();
-            printProductReport(findProduct(id), languageTag, client);
+            lock(readLock, readLockWait);
+            lock(productLock, productLockWait);
+            product = getProduct(id);
+            version = index.getGeneration(id);
+            report = reportCache.get(id, tag, version);
+            if (report == null)
+                reviews = new ArrayList<>(index.getReviews(id));
         } catch (ProductManagerException ex) {
             logger.log(Level.INFO, ex.getMessage());
-        } catch (IOException ex) {
-            logger.log(Level.SEVERE, "Error printing product report " + ex.getMessage(), ex);
+            reportFileTimer.stop(start);
+            return CompletableFuture.completedFuture(null);
         } finally {
-            writeLock.unlock();
+            productLock.unlock();
+            readLock.unlock();
+        }
+
+        String key = id + "/" + tag;
+        ReportFile current = reportFiles.get(key);
+        if (report != null && current != null && current.report == report && !current.file.isCompletedExceptionally()
+                && current.retain()) {
+            reportFileTimer.stop(start);
+            return use(current);
+        }
+        if (report == null) {
+            report = renderProductReport(product, reviews, formatters.get(tag));
+            reportCache.put(id, tag, version, report);
+        }
+
+        Path path = reportsFolder.resolve(MessageFormat.format(
+                config.getString("report.file"), id, tag + "." + reportFileGeneration.incrementAndGet()));
+        CompletableFuture<Path> written = reportWriter.write(path, report);
+        ReportFile created = new ReportFile(report, path, written, 2);
+        reportFilePaths.put(path, created);
+        ReportFile replaced = reportFiles.put(key, created);
+        if (replaced != null)
+            written.whenComplete((file, e) -> replaced.file.whenComplete((old, oldError) -> release(replaced)));
+        reportFileTimer.stop(start);
+        return use(created);
+    }
+
+    /**
+     * @return the file of a retained report file, released again if it can't be written
+     */
+    private CompletableFuture<Path> use(ReportFile reportFile) {
+        return reportFile.file.whenComplete((file, e) -> {
+            if (e != null)
+                release(reportFile);
+        });
+    }
+
+    /**
+     * Releases a report file returned by {@link #getReportFile(int, String)},
+     * once for each time it was returned
+     * @param file report file that is no longer read
+     */
+    public void releaseReportFile(Path file) {
+        ReportFile reportFile = reportFilePaths.get(file);
+        if (reportFile != null)
+            release(reportFile);
+    }
+
+    private void release(ReportFile reportFile) {
+        if (!reportFile.release())
+            return;
+        reportFilePaths.remove(reportFile.path);
+        try {
+            Files.deleteIfExists(reportFile.path);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Replaced report file not deleted " + e.getMessage());
         }
     }
 
+    /**
+     * @return number of reports waiting for the report writer
+     */
+    public int getReportQueueDepth() {
+        return reportWriter.getQueueDepth();
+    }
+
+    /**
+     * @return average time of writing one report file in milliseconds
+     */
+    public double getReportWriteMillis() {
+        return reportWriter.getAverageWriteMillis();
+    }
+
     public List<Product> findProducts(Predicate<Product> filter) {
+        long start = findProductsTimer.start();
+        try {
+            lock(readLock, readLockWait);
+            List<Product> result = new ArrayList<>();
+            index.forEach(ProductQuery.all().withFilter(filter), result::add);
+            return result;
+        } finally {
+            readLock.unlock();
+            findProductsTimer.stop(start);
+        }
+    }
+
+    /**
+     * Finds products matching a structured query.
+     * <br>
+     * Queries with a rating, price range, type or best before date are answered
+     * from the secondary indexes, only queries with nothing but a filter scan
+     * the whole catalog.
+     * @param query criteria of the products
+     * @return matching products
+     */
+    public List<Product> findProducts(ProductQuery query) {
+        long start = findProductsTimer.start();
         try {
-            readLock.lock();
-            return products.keySet().stream().filter(filter).collect(Collectors.toList());
+            lock(readLock, readLockWait);
+            List<Product> result = new ArrayList<>();
+            if (!query.isIndexed()) {
+                index.forEach(query, result::add);
+                return result;
+            }
+
+            secondaryIndexes.forEachCandidate(query, id -> {
+                Product product = index.get(id);
+                if (product != null && query.test(product))
+                    result.add(product);
+            });
+            return result;
+        } finally {
+            readLock.unlock();
+            findProductsTimer.stop(start);
+        }
+    }
 
+    /**
+     * Searches product names and review comments.
+     * <br>
+     * The query is a list of words a product has to contain, {@code OR} between
+     * words starts another alternative and a word ending with {@code *} matches
+     * all words starting with it, so {@code "green tea OR coffee*"} finds products
+     * with both green and tea or with any word starting with coffee. Words are
+     * matched ignoring case. The query is answered from an inverted index of
+     * all words, kept up to date as products are created and reviewed.
+     * @param query words to search for
+     * @param limit largest number of products to return
+     * @return matching products, those matching more query words and matching them more often first
+     */
+    public List<Product> searchProducts(String query, int limit) {
+        long start = searchProductsTimer.start();
+        try {
+            lock(readLock, readLockWait);
+            List<Product> result = new ArrayList<>();
+            for (int id : textIndex.search(query, limit)) {
+                Product product = index.get(id);
+                if (product != null)
+                    result.add(product);
+            }
+            return result;
         } finally {
             readLock.unlock();
+            searchProductsTimer.stop(start);
         }
     }
 
+    /**
+     * @param id of the product
+     * @return copy of the reviews of the product or null if there is no such product
+     */
     public List<Review> findReviews(int id) {
+        Lock productLock = productLock(id).readLock();
+        long start = findReviewsTimer.start();
         try {
-            Product product = findProduct(id);
-            return loadReviews(product);
-        } catch (Exception e) {
-            return null;
+            lock(readLock, readLockWait);
+            lock(productLock, productLockWait);
+            List<Review> reviews = index.getReviews(id);
+            return (reviews == null) ? null : new ArrayList<>(reviews);
+        } finally {
+            productLock.unlock();
+            readLock.unlock();
+            findReviewsTimer.stop(start);
+        }
+    }
+
+    /**
+     * Streams the reviews a product has when the stream is created.
+     * Reviews kept in the review log are read from the log lazily,
+     * without holding any lock or loading all of them at once.
+     * @param id of the product
+     * @return stream of the reviews, oldest first
+     * @throws ProductManagerException if there is no such product
+     */
+    public Stream<Review> streamReviews(int id) throws ProductManagerException {
+        Lock productLock = productLock(id).readLock();
+        long start = streamReviewsTimer.start();
+        try {
+            lock(readLock, readLockWait);
+            lock(productLock, productLockWait);
+            getProduct(id);
+            List<Review> reviews = index.getReviews(id);
+            return (reviewLog == null) ? new ArrayList<>(reviews).stream() : reviews.stream();
+        } finally {
+            productLock.unlock();
+            readLock.unlock();
+            streamReviewsTimer.stop(start);
         }
     }
 
     public  Map<Rating, BigDecimal> getDiscounts() {
+        long start = getDiscountsTimer.start();
         try {
-            readLock.lock();
+            lock(readLock, readLockWait);
 
-            return products.keySet().stream().collect(
-                    Collectors.groupingBy(
-                            Product::getRating,
-                            Collectors.collectingAndThen(
-                                    Collectors.summingDouble(
-                                            p -> p.getDiscount().doubleValue()),
-                                    BigDecimal::valueOf)));
+            return discountTotals.getTotals(LocalDate.now(), LocalTime.now());
         } finally {
             readLock.unlock();
+            getDiscountsTimer.stop(start);
         }
     }
 
 
     public void printProducts(Predicate<Product> filter, Comparator <Product> sorter, String languageTag) {
         try {
-            readLock.lock();
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out), false);
+            printProducts(filter, sorter, 0, Integer.MAX_VALUE, languageTag, out);
+            out.println();
+            out.flush();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error printing products " + e.getMessage(), e);
+        }
+    }
 
-            ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("en-GB"));
-            StringBuilder txt = new StringBuilder();
-            products.keySet().stream().sorted(sorter).filter(filter).
-                    forEach(p -> txt.append(formatter.formatProduct(p)).append('\n'));
+    /**
+     * Finds a page of products matching a query in the order of a listing.
+     * <br>
+     * Queries answered from the secondary indexes select the page from their
+     * candidates, other queries walk the index of the listing order from its head
+     * and stop after the group of products that completes the page.
+     * Either way only {@code offset + limit} products are kept in a bounded heap.
+     * @param query criteria of the products
+     * @param sort order of the listing
+     * @param offset number of first matching products to skip
+     * @param limit largest number of products on the page
+     * @return products of the page in order
+     */
+    public List<Product> findProducts(ProductQuery query, ProductSort sort, int offset, int limit) {
+        long start = findProductsTimer.start();
+        TopK<Product> page = new TopK<>(pageEnd(offset, limit), sort.getComparator());
+        try {
+            lock(readLock, readLockWait);
+            if (query.isIndexed()) {
+                secondaryIndexes.forEachCandidate(query, id -> {
+                    Product product = index.get(id);
+                    if (product != null && query.test(product))
+                        page.offer(product);
+                });
+            } else {
+                secondaryIndexes.forEachInOrder(sort, id -> {
+                    Product product = index.get(id);
+                    if (product != null && query.test(product))
+                        page.offer(product);
+                }, page::isFull);
+            }
+        } finally {
+            readLock.unlock();
+        }
+        List<Product> products = page.toList(offset);
+        findProductsTimer.stop(start);
+        return products;
+    }
 
-            System.out.println(txt);
+    /**
+     * Finds a page of products matching a filter in any order, the filter is
+     * applied before the products are put in order and only {@code offset + limit}
+     * products are kept in a bounded heap
+     * @param filter of the products
+     * @param sorter order of the listing
+     * @param offset number of first matching products to skip
+     * @param limit largest number of products on the page
+     * @return products of the page in order
+     */
+    public List<Product> findProducts(Predicate<Product> filter, Comparator<Product> sorter, int offset, int limit) {
+        long start = findProductsTimer.start();
+        TopK<Product> page = new TopK<>(pageEnd(offset, limit), sorter);
+        try {
+            lock(readLock, readLockWait);
+            index.forEach(ProductQuery.all().withFilter(filter), page::offer);
         } finally {
             readLock.unlock();
         }
+        List<Product> products = page.toList(offset);
+        findProductsTimer.stop(start);
+        return products;
+    }
+
+    /**
+     * Writes a page of a product listing, one formatted product per line.
+     * The page is selected under the catalog lock and written after it is released.
+     * @param query criteria of the products
+     * @param sort order of the listing
+     * @param offset number of first matching products to skip
+     * @param limit largest number of products on the page
+     * @param languageTag language of the listing
+     * @param out target of the listing
+     * @return number of written products, less than {@code limit} on the last page
+     * @throws IOException if the listing can't be written
+     */
+    public int printProducts(ProductQuery query, ProductSort sort, int offset, int limit,
+                             String languageTag, Writer out) throws IOException {
+        long start = printProductsTimer.start();
+        try {
+            return writeProducts(findProducts(query, sort, offset, limit), languageTag, out);
+        } finally {
+            printProductsTimer.stop(start);
+        }
+    }
+
+    /**
+     * Writes a page of a product listing in any order, one formatted product per line
+     * @param filter of the products
+     * @param sorter order of the listing
+     * @param offset number of first matching products to skip
+     * @param limit largest number of products on the page
+     * @param languageTag language of the listing
+     * @param out target of the listing
+     * @return number of written products, less than {@code limit} on the last page
+     * @throws IOException if the listing can't be written
+     */
+    public int printProducts(Predicate<Product> filter, Comparator<Product> sorter, int offset, int limit,
+                             String languageTag, Writer out) throws IOException {
+        long start = printProductsTimer.start();
+        try {
+            return writeProducts(findProducts(filter, sorter, offset, limit), languageTag, out);
+        } finally {
+            printProductsTimer.stop(start);
+        }
+    }
+
+    private int writeProducts(List<Product> page, String languageTag, Writer out) throws IOException {
+        ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("en-GB"));
+        for (Product product : page)
+            formatter.appendProduct(out, product).append('\n');
+        return page.size();
+    }
+
+    private static int pageEnd(int offset, int limit) {
+        if (offset < 0 || limit < 0)
+            throw new IllegalArgumentException("Offset and limit of a page can't be negative");
+        return (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
     }
 
     /**
@@ -373,19 +1815,18 @@ public class ProductFileManager implements ProductManager {
      * @return value of discount using Streams API
      */
     public Map<String, String> getDiscount(String languageTag) {
+        long start = getDiscountsTimer.start();
         try {
-            readLock.lock();
+            lock(readLock, readLockWait);
             ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("en-GB"));
 
-            return products.keySet().stream().collect(
-                    Collectors.groupingBy(
-                            p -> p.getRating().getStars(),
-                            Collectors.collectingAndThen(
-                                    Collectors.summingDouble(
-                                            p -> p.getDiscount().doubleValue()),
-                                    discount -> formatter.getMoneyFormat().format(discount))));
+            Map<String, String> discounts = new LinkedHashMap<>();
+            discountTotals.getTotals(LocalDate.now(), LocalTime.now()).forEach(
+                    (rating, discount) -> discounts.put(rating.getStars(), formatter.formatMoney(discount)));
+            return discounts;
         } finally {
             readLock.unlock();
+            getDiscountsTimer.stop(start);
         }
     }
 
@@ -0,0 +1,359 @@
+package labs.pm.data;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * {@code ProductIndex} is the primary index of the catalog.
+ * <br>
+ * It maps a product id to the product, its reviews and the running
+ * aggregate of the ratings of the reviews, a count and a sum of ratings.
+ * Each product also has a generation, taken from a counter shared by all
+ * indexes whenever the product or its reviews change, so it only grows.
+ * Ids are kept in an open addressing table of primitive ints that points
+ * to dense rows of the products, so a lookup is O(1) and does not box
+ * the id, and a scan reads the rows without gaps.
+ * <br>
+ * Products are kept either as objects or, in a columnar index, in the
+ * primitive {@link ProductColumns}, where a lookup creates the product
+ * from its columns and queries are checked against the columns before
+ * any product is created.
+ * <br>
+ * The structure of the index is not thread safe, callers add, remove and
+ * resize entries under an exclusive lock. {@link #replace(Product)} may run
+ * concurrently with lookups of the same id, the product row is written
+ * with release and read with acquire semantics, and a row of
+ * {@link ProductColumns} is read again while it is written, so a lookup
+ * always sees a completely constructed product.
+ * @version 1.0
+ * @author Ewa
+ */
+class ProductIndex {
+    private static final int MIN_CAPACITY = 16;
+    private static final VarHandle PRODUCT_ROW = MethodHandles.arrayElementVarHandle(Product[].class);
+    private static final AtomicLong GENERATIONS = new AtomicLong();
+
+    private final boolean columnar;
+    private int[] ids;
+    private int[] rows;
+    private int mask;
+    private int[] rowIds;
+    private Product[] products;
+    private ProductColumns columns;
+    private List<Review>[] reviews;
+    private int[] reviewCounts;
+    private long[] ratingSums;
+    private long[] generations;
+    private int size;
+
+    ProductIndex() {
+        this(MIN_CAPACITY, false);
+    }
+
+    /**
+     * @param expectedSize number of products the index holds without resizing
+     * @param columnar whether products are kept in primitive columns
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ProductIndex(int expectedSize, boolean columnar) {
+        this.columnar = columnar;
+        int capacity = Math.max(expectedSize, MIN_CAPACITY);
+        int tableSize = MIN_CAPACITY;
+        while (tableSize * 3 < capacity * 4)
+            tableSize <<= 1;
+        ids = new int[tableSize];
+        rows = new int[tableSize];
+        mask = tableSize - 1;
+
+        rowIds = new int[capacity];
+        if (columnar)
+            columns = new ProductColumns(capacity);
+        else
+            products = new Product[capacity];
+        reviews = new List[capacity];
+        reviewCounts = new int[capacity];
+        ratingSums = new long[capacity];
+        generations = new long[capacity];
+    }
+
+    private int slot(int id) {
+        int hash = id * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private int findSlot(int id) {
+        for (int i = slot(id); rows[i] != 0; i = (i + 1) & mask) {
+            if (ids[i] == id)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return row of the product or -1 if there is no such product
+     */
+    private int find(int id) {
+        int i = findSlot(id);
+        return (i < 0) ? -1 : rows[i] - 1;
+    }
+
+    private Product productAt(int row) {
+        return columnar ? columns.get(row, rowIds[row]) : (Product) PRODUCT_ROW.getAcquire(products, row);
+    }
+
+    private void setProduct(int row, Product product) {
+        if (columnar)
+            columns.set(row, product);
+        else
+            PRODUCT_ROW.setRelease(products, row, product);
+        generations[row] = GENERATIONS.incrementAndGet();
+    }
+
+    /**
+     * @param id of the product
+     * @return product with given id or null if there is no such product
+     */
+    Product get(int id) {
+        int row = find(id);
+        return (row < 0) ? null : productAt(row);
+    }
+
+    /**
+     * @param id of the product
+     * @return reviews of the product with given id or null if there is no such product
+     */
+    List<Review> getReviews(int id) {
+        int row = find(id);
+        return (row < 0) ? null : reviews[row];
+    }
+
+    /**
+     * @param id of the product
+     * @return number of reviews of the product with given id, 0 if there is no such product
+     */
+    int getReviewCount(int id) {
+        int row = find(id);
+        return (row < 0) ? 0 : reviewCounts[row];
+    }
+
+    /**
+     * @param id of the product
+     * @return generation of the product with given id, 0 if there is no such product
+     */
+    long getGeneration(int id) {
+        int row = find(id);
+        return (row < 0) ? 0 : generations[row];
+    }
+
+    /**
+     * Adds a rating of a new review to the aggregate of the product,
+     * callers hold the lock of the product
+     * @param id of the product
+     * @param rating of the review
+     */
+    void addRating(int id, Rating rating) {
+        int row = find(id);
+        if (row >= 0) {
+            reviewCounts[row]++;
+            ratingSums[row] += rating.ordinal();
+            generations[row] = GENERATIONS.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param id of the product
+     * @return average rating of the reviews of the product rounded to stars
+     */
+    Rating getAverageRating(int id) {
+        int row = find(id);
+        if (row < 0 || reviewCounts[row] == 0)
+            return Rateable.convert(0);
+        return Rateable.convert((int) Math.round((double) ratingSums[row] / reviewCounts[row]));
+    }
+
+    boolean contains(int id) {
+        return findSlot(id) >= 0;
+    }
+
+    /**
+     * Adds the product or replaces the product with the same id,
+     * the aggregate of the reviews is built from the reviews
+     * @param product to index
+     * @param productReviews reviews of the product
+     */
+    void put(Product product, List<Review> productReviews) {
+        int row = find(product.getId());
+        if (row < 0)
+            row = addRow(product.getId());
+
+        setReviews(row, productReviews);
+        setProduct(row, product);
+    }
+
+    /**
+     * Replaces the product with the same id and its reviews,
+     * the aggregate of the reviews is built from the new reviews
+     * @param product new version of an indexed product
+     * @param productReviews new reviews of the product
+     * @return false if there is no product with the same id
+     */
+    boolean replace(Product product, List<Review> productReviews) {
+        int row = find(product.getId());
+        if (row < 0)
+            return false;
+        setReviews(row, productReviews);
+        setProduct(row, product);
+        return true;
+    }
+
+    private void setReviews(int row, List<Review> productReviews) {
+        reviews[row] = productReviews;
+        int[] count = new int[1];
+        long[] sum = new long[1];
+        productReviews.forEach(review -> {
+            count[0]++;
+            sum[0] += review.getRating().ordinal();
+        });
+        reviewCounts[row] = count[0];
+        ratingSums[row] = sum[0];
+    }
+
+    /**
+     * Replaces the product with the same id, its reviews and their aggregate are kept
+     * @param product new version of an indexed product
+     * @return false if there is no product with the same id
+     */
+    boolean replace(Product product) {
+        int row = find(product.getId());
+        if (row < 0)
+            return false;
+        setProduct(row, product);
+        return true;
+    }
+
+    private int addRow(int id) {
+        if ((size + 1) * 4 > ids.length * 3)
+            resizeTable(ids.length << 1);
+        if (size == rowIds.length)
+            resizeRows(rowIds.length + (rowIds.length >> 1));
+
+        int row = size++;
+        rowIds[row] = id;
+        int i = slot(id);
+        while (rows[i] != 0)
+            i = (i + 1) & mask;
+        ids[i] = id;
+        rows[i] = row + 1;
+        return row;
+    }
+
+    /**
+     * Removes the product with given id. Following entries of the probe
+     * sequence are shifted back so no tombstones are left in the table,
+     * the last row is moved into the row of the product, so rows stay dense.
+     * @param id of the product
+     */
+    void remove(int id) {
+        int gap = findSlot(id);
+        if (gap < 0)
+            return;
+        int row = rows[gap] - 1;
+
+        for (int j = (gap + 1) & mask; rows[j] != 0; j = (j + 1) & mask) {
+            int home = slot(ids[j]);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                ids[gap] = ids[j];
+                rows[gap] = rows[j];
+                gap = j;
+            }
+        }
+        rows[gap] = 0;
+
+        int last = --size;
+        if (row != last) {
+            rowIds[row] = rowIds[last];
+            if (columnar)
+                columns.move(last, row);
+            else
+                products[row] = products[last];
+            reviews[row] = reviews[last];
+            reviewCounts[row] = reviewCounts[last];
+            ratingSums[row] = ratingSums[last];
+            generations[row] = generations[last];
+            rows[findSlot(rowIds[row])] = row + 1;
+        }
+        if (!columnar)
+            products[last] = null;
+        reviews[last] = null;
+    }
+
+    private void resizeTable(int tableSize) {
+        ids = new int[tableSize];
+        rows = new int[tableSize];
+        mask = tableSize - 1;
+        for (int row = 0; row < size; row++) {
+            int i = slot(rowIds[row]);
+            while (rows[i] != 0)
+                i = (i + 1) & mask;
+            ids[i] = rowIds[row];
+            rows[i] = row + 1;
+        }
+    }
+
+    private void resizeRows(int capacity) {
+        rowIds = Arrays.copyOf(rowIds, capacity);
+        if (columnar)
+            columns.resize(capacity);
+        else
+            products = Arrays.copyOf(products, capacity);
+        reviews = Arrays.copyOf(reviews, capacity);
+        reviewCounts = Arrays.copyOf(reviewCounts, capacity);
+        ratingSums = Arrays.copyOf(ratingSums, capacity);
+        generations = Arrays.copyOf(generations, capacity);
+    }
+
+    void clear() {
+        Arrays.fill(rows, 0);
+        if (!columnar)
+            Arrays.fill(products, 0, size, null);
+        Arrays.fill(reviews, 0, size, null);
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return all indexed products, in the order they were added
+     */
+    List<Product> products() {
+        List<Product> result = new ArrayList<>(size);
+        for (int row = 0; row < size; row++)
+            result.add(productAt(row));
+        return result;
+    }
+
+    /**
+     * Scans the rows for products matching a query. A columnar index checks
+     * the rating, type, price and best before date in the columns and creates
+     * only the products that pass them.
+     * @param query criteria of the products
+     * @param action receives matching products, in the order they were added
+     */
+    void forEach(ProductQuery query, Consumer<Product> action) {
+        ProductColumns.PriceBounds bounds = query.hasPriceRange() ? new ProductColumns.PriceBounds(query) : null;
+        for (int row = 0; row < size; row++) {
+            if (columnar && !columns.matches(row, query, bounds))
+                continue;
+            Product product = productAt(row);
+            if (query.test(product))
+                action.accept(product);
+        }
+    }
+}
@@ -2,9 +2,11 @@ package labs.pm.data;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 public interface ProductManager {
 
@@ -14,11 +16,19 @@ public interface ProductManager {
 
     Product reviewProduct(int id, Rating rating, String comments) throws ProductManagerException;
 
+    List<Product> reviewProducts(Collection<ReviewRequest> requests) throws ProductManagerException;
+
     Product findProduct(int id) throws ProductManagerException;
 
     List<Product> findProducts(Predicate<Product> filter) throws ProductManagerException;
 
+    List<Product> findProducts(ProductQuery query) throws ProductManagerException;
+
+    List<Product> findProducts(ProductQuery query, ProductSort sort, int offset, int limit) throws ProductManagerException;
+
     List<Review> findReviews(int id) throws ProductManagerException;
 
+    Stream<Review> streamReviews(int id) throws ProductManagerException;
+
     Map<Rating, BigDecimal> getDiscounts() throws ProductManagerException;
 }
@@ -0,0 +1,134 @@
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.function.Predicate;
+
+/**
+ * {@code ProductQuery} describes a search of the catalog.
+ * <br>
+ * A query combines any of a rating, a price range, a product type and
+ * a best before date, which are answered from the secondary indexes of
+ * the catalog, with an optional arbitrary filter checked on each candidate.
+ * A query is immutable, each {@code with} method returns a new query.
+ * <br>
+ * For example all Food with five stars expiring today:
+ * <br>
+ * {@code ProductQuery.all().withType(Food.class).withRating(Rating.FIVE_STARS).withBestBefore(LocalDate.now())}
+ * @version 1.0
+ * @author Ewa
+ */
+public final class ProductQuery {
+    private static final ProductQuery ALL = new ProductQuery(null, null, null, null, null, null);
+
+    private final Rating rating;
+    private final BigDecimal minPrice;
+    private final BigDecimal maxPrice;
+    private final Class<? extends Product> type;
+    private final LocalDate bestBefore;
+    private final Predicate<Product> filter;
+
+    private ProductQuery(Rating rating, BigDecimal minPrice, BigDecimal maxPrice,
+                         Class<? extends Product> type, LocalDate bestBefore, Predicate<Product> filter) {
+        this.rating = rating;
+        this.minPrice = minPrice;
+        this.maxPrice = maxPrice;
+        this.type = type;
+        this.bestBefore = bestBefore;
+        this.filter = filter;
+    }
+
+    /**
+     * @return query matching every product
+     */
+    public static ProductQuery all() {
+        return ALL;
+    }
+
+    public ProductQuery withRating(Rating rating) {
+        return new ProductQuery(rating, minPrice, maxPrice, type, bestBefore, filter);
+    }
+
+    /**
+     * @param minPrice lowest price, inclusive
+     * @param maxPrice highest price, inclusive
+     * @return new query
+     */
+    public ProductQuery withPriceBetween(BigDecimal minPrice, BigDecimal maxPrice) {
+        return new ProductQuery(rating, minPrice, maxPrice, type, bestBefore, filter);
+    }
+
+    /**
+     * @param type {@link Food} or {@link Drink}
+     * @return new query
+     */
+    public ProductQuery withType(Class<? extends Product> type) {
+        return new ProductQuery(rating, minPrice, maxPrice, type, bestBefore, filter);
+    }
+
+    /**
+     * @param bestBefore best before date of {@link Food}, queries with a date match no drinks
+     * @return new query
+     */
+    public ProductQuery withBestBefore(LocalDate bestBefore) {
+        return new ProductQuery(rating, minPrice, maxPrice, type, bestBefore, filter);
+    }
+
+    /**
+     * @param filter arbitrary condition, checked on products matching the other criteria
+     * @return new query
+     */
+    public ProductQuery withFilter(Predicate<Product> filter) {
+        return new ProductQuery(rating, minPrice, maxPrice, type, bestBefore,
+                (this.filter == null) ? filter : this.filter.and(filter));
+    }
+
+    public Rating getRating() {
+        return rating;
+    }
+
+    public BigDecimal getMinPrice() {
+        return minPrice;
+    }
+
+    public BigDecimal getMaxPrice() {
+        return maxPrice;
+    }
+
+    public Class<? extends Product> getType() {
+        return type;
+    }
+
+    public LocalDate getBestBefore() {
+        return bestBefore;
+    }
+
+    public Predicate<Product> getFilter() {
+        return filter;
+    }
+
+    boolean hasPriceRange() {
+        return minPrice != null || maxPrice != null;
+    }
+
+    /**
+     * @return true if at least one criterion can be answered from an index
+     */
+    boolean isIndexed() {
+        return rating != null || hasPriceRange() || type != null || bestBefore != null;
+    }
+
+    /**
+     * Checks all criteria of the query
+     * @param product to check
+     * @return true if the product matches the query
+     */
+    public boolean test(Product product) {
+        return (rating == null || product.getRating() == rating)
+                && (minPrice == null || product.getPrice().compareTo(minPrice) >= 0)
+                && (maxPrice == null || product.getPrice().compareTo(maxPrice) <= 0)
+                && (type == null || type.isInstance(product))
+                && (bestBefore == null || (product instanceof Food && product.getBestBefore().equals(bestBefore)))
+                && (filter == null || filter.test(product));
+    }
+}
@@ -0,0 +1,30 @@
+package labs.pm.data;
+
+import java.util.Comparator;
+
+/**
+ * {@code ProductSort} is an order of a product listing that the secondary
+ * indexes of the catalog keep sorted, so a page of a listing in this order
+ * is read from the head of an index instead of sorting the catalog.
+ * <br>
+ * Products with the same rating or price are listed by id,
+ * so pages of a listing don't overlap.
+ * @version 1.0
+ * @author Ewa
+ */
+public enum ProductSort {
+    RATING_ASCENDING(Comparator.comparing(Product::getRating)),
+    RATING_DESCENDING(Comparator.comparing(Product::getRating).reversed()),
+    PRICE_ASCENDING(Comparator.comparing(Product::getPrice)),
+    PRICE_DESCENDING(Comparator.comparing(Product::getPrice).reversed());
+
+    private final Comparator<Product> comparator;
+
+    ProductSort(Comparator<Product> comparator) {
+        this.comparator = comparator.thenComparingInt(Product::getId);
+    }
+
+    public Comparator<Product> getComparator() {
+        return comparator;
+    }
+}
@@ -0,0 +1,361 @@
+package labs.pm.data;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * {@code ProductStore} is the consolidated binary store of the catalog.
+ * <br>
+ * The store has two files:
+ * <br>
+ *      a product segment with a header followed by fixed width product records
+ *      sorted by id, so the record of an id is found by a binary search over
+ *      the mapped segment,
+ * <br>
+ *      an append only review log of {@code id, rating, length, comments} entries.
+ * <br>
+ * Both headers carry the stamp of the write that created the pair, so a product
+ * segment and a review log of different writes, left by a crash between moving
+ * the two files into place, are not opened together. A torn last review, left
+ * by a crash while it was appended, is cut off the log when the store is opened.
+ * Stores of version 1 have no stamp and are still read.
+ * <br>
+ * The store is a load format, both files are read once through a memory mapped
+ * {@link FileChannel} when the catalog is loaded and the catalog is served from
+ * the heap. Only reviews of products in the segment are appended to the log,
+ * the segment itself changes only when the whole store is written again.
+ * @version 1.0
+ * @author Ewa
+ */
+final class ProductStore implements Closeable {
+    static final int PRODUCTS_MAGIC = 0x504D5354;
+    static final int REVIEWS_MAGIC = 0x504D524C;
+    static final int VERSION = 2;
+
+    static final int HEADER_SIZE = 24;
+    static final int RECORD_SIZE = 128;
+    static final int MAX_NAME_BYTES = RECORD_SIZE - 20;
+    private static final int REVIEW_HEADER_SIZE = 16;
+    private static final int V1_HEADER_SIZE = 16;
+    private static final int V1_REVIEW_HEADER_SIZE = 8;
+
+    /**
+     * Product record layout, offsets inside a record
+     */
+    private static final int ID = 0;
+    private static final int TYPE = 4;
+    private static final int RATING = 5;
+    private static final int SCALE = 6;
+    private static final int NAME_LENGTH = 7;
+    private static final int PRICE = 8;
+    private static final int BEST_BEFORE = 16;
+    private static final int NAME = 20;
+
+    private final MappedByteBuffer productSegment;
+    private final MappedByteBuffer reviewSegment;
+    private final FileChannel reviewLog;
+    private final int size;
+    private final int headerSize;
+    private final int reviewHeaderSize;
+    private final long truncated;
+
+    /**
+     * Receives the reviews of the log
+     */
+    @FunctionalInterface
+    interface ReviewConsumer {
+        void accept(int id, Review review);
+    }
+
+    private ProductStore(MappedByteBuffer productSegment, MappedByteBuffer reviewSegment, FileChannel reviewLog,
+                         long truncated) throws IOException {
+        this.productSegment = productSegment;
+        this.reviewSegment = reviewSegment;
+        this.reviewLog = reviewLog;
+        this.truncated = truncated;
+        productSegment.order(ByteOrder.BIG_ENDIAN);
+        if (productSegment.capacity() < V1_HEADER_SIZE)
+            throw new IOException("Product segment is truncated");
+        int version = productSegment.getInt(4);
+        if (productSegment.getInt(0) != PRODUCTS_MAGIC || (version != 1 && version != VERSION)
+                || productSegment.getInt(12) != RECORD_SIZE)
+            throw new IOException("Not a product segment of version 1 or " + VERSION);
+        if (reviewSegment.getInt(4) != version)
+            throw new IOException("Review log of version " + reviewSegment.getInt(4)
+                    + " doesn't belong to a product segment of version " + version);
+        headerSize = (version == 1) ? V1_HEADER_SIZE : HEADER_SIZE;
+        reviewHeaderSize = (version == 1) ? V1_REVIEW_HEADER_SIZE : REVIEW_HEADER_SIZE;
+        if (productSegment.capacity() < headerSize)
+            throw new IOException("Product segment is truncated");
+        if (version != 1 && productSegment.getLong(16) != reviewSegment.getLong(8))
+            throw new IOException("Product segment and review log were written by different writes");
+        size = productSegment.getInt(8);
+        if ((long) headerSize + (long) size * RECORD_SIZE > productSegment.capacity())
+            throw new IOException("Product segment is truncated");
+    }
+
+    static boolean exists(Path productFile, Path reviewFile) {
+        return Files.exists(productFile) && Files.exists(reviewFile);
+    }
+
+    /**
+     * Opens and maps an existing store, new reviews are appended to its log.
+     * A torn last review is cut off the log before it is mapped.
+     * @param productFile product segment
+     * @param reviewFile review log
+     * @return the opened store
+     * @throws IOException if the files can't be mapped, have a wrong format
+     * or weren't written together
+     */
+    static ProductStore open(Path productFile, Path reviewFile) throws IOException {
+        MappedByteBuffer products;
+        try (FileChannel channel = FileChannel.open(productFile, StandardOpenOption.READ)) {
+            products = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        FileChannel log = FileChannel.open(reviewFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (log.size() > Integer.MAX_VALUE)
+                throw new IOException("Review log is larger than 2 GB");
+            long end = completeLength(log);
+            long truncated = log.size() - end;
+            if (truncated > 0) {
+                log.truncate(end);
+                log.force(true);
+            }
+            MappedByteBuffer reviews = log.map(FileChannel.MapMode.READ_ONLY, 0, log.size());
+            log.position(log.size());
+            return new ProductStore(products, reviews, log, truncated);
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Walks the entries of a review log
+     * @return length of the log up to the end of its last complete entry
+     * @throws IOException if the log can't be read or has no header of a review log
+     */
+    private static long completeLength(FileChannel log) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(log.position(0))));
+        long position;
+        try {
+            int magic = in.readInt();
+            int version = in.readInt();
+            if (magic != REVIEWS_MAGIC || (version != 1 && version != VERSION))
+                throw new IOException("Not a review log of version 1 or " + VERSION);
+            if (version != 1)
+                in.readLong();
+            position = (version == 1) ? V1_REVIEW_HEADER_SIZE : REVIEW_HEADER_SIZE;
+        } catch (EOFException e) {
+            throw new IOException("Review log has no header");
+        }
+        long size = log.size();
+        while (position + 9 <= size) {
+            in.readInt();
+            in.readByte();
+            int length = in.readInt();
+            if (length < 0 || position + 9 + length > size)
+                break;
+            in.skipNBytes(length);
+            position += 9 + length;
+        }
+        return position;
+    }
+
+    /**
+     * Writes a catalog into a new store. Files are written next to the
+     * target files and moved into place, so an existing store is replaced
+     * only by a complete one.
+     * @param productFile product segment
+     * @param reviewFile review log
+     * @param catalog products with their reviews
+     * @throws IOException if the files can't be written or a product doesn't fit a record
+     */
+    static void write(Path productFile, Path reviewFile, Map<Product, List<Review>> catalog) throws IOException {
+        long stamp = ThreadLocalRandom.current().nextLong();
+        Path productTemp = productFile.resolveSibling(productFile.getFileName() + ".new");
+        Path reviewTemp = reviewFile.resolveSibling(reviewFile.getFileName() + ".new");
+        Product[] sorted = catalog.keySet().stream()
+                .sorted(Comparator.comparingInt(Product::getId)).toArray(Product[]::new);
+
+        try (FileChannel products = FileChannel.open(productTemp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             FileChannel reviews = FileChannel.open(reviewTemp, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * 512);
+            buffer.putInt(PRODUCTS_MAGIC).putInt(VERSION).putInt(sorted.length).putInt(RECORD_SIZE).putLong(stamp);
+            for (Product product : sorted) {
+                if (buffer.remaining() < RECORD_SIZE)
+                    drain(buffer, products);
+                putProduct(buffer, product);
+            }
+            drain(buffer, products);
+
+            buffer.putInt(REVIEWS_MAGIC).putInt(VERSION).putLong(stamp);
+            for (Product product : sorted) {
+                for (Review review : catalog.get(product)) {
+                    byte[] comments = review.getComments().getBytes(StandardCharsets.UTF_8);
+                    if (buffer.remaining() < 9 + comments.length)
+                        drain(buffer, reviews);
+                    if (buffer.remaining() < 9 + comments.length) {
+                        reviews.write(encodeReview(product.getId(), review.getRating(), comments));
+                    } else {
+                        buffer.putInt(product.getId()).put((byte) review.getRating().ordinal())
+                                .putInt(comments.length).put(comments);
+                    }
+                }
+            }
+            drain(buffer, reviews);
+            products.force(true);
+            reviews.force(true);
+        }
+        Files.move(productTemp, productFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(reviewTemp, reviewFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    private static void putProduct(ByteBuffer buffer, Product product) throws IOException {
+        byte[] name = product.getName().getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES)
+            throw new IOException("Name of product " + product.getId() + " is longer than " + MAX_NAME_BYTES + " bytes");
+        BigDecimal price = product.getPrice();
+        if (price.scale() < 0 || price.scale() > Byte.MAX_VALUE || price.unscaledValue().bitLength() > 63)
+            throw new IOException("Price of product " + product.getId() + " doesn't fit a record");
+
+        int start = buffer.position();
+        buffer.putInt(product.getId())
+                .put((byte) (product instanceof Food ? 'F' : 'D'))
+                .put((byte) product.getRating().ordinal())
+                .put((byte) price.scale())
+                .put((byte) name.length)
+                .putLong(price.unscaledValue().longValue())
+                .putInt(product instanceof Food ? (int) product.getBestBefore().toEpochDay() : 0)
+                .put(name);
+        buffer.position(start + RECORD_SIZE);
+    }
+
+    private static ByteBuffer encodeReview(int id, Rating rating, byte[] comments) {
+        ByteBuffer entry = ByteBuffer.allocate(9 + comments.length);
+        entry.putInt(id).put((byte) rating.ordinal()).putInt(comments.length).put(comments);
+        return entry.flip();
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Reads a product record
+     * @param record number of the record, from 0 to {@link #size()} - 1
+     * @return a new {@link Food} or {@link Drink}
+     */
+    Product product(int record) {
+        int offset = headerSize + record * RECORD_SIZE;
+        int id = productSegment.getInt(offset + ID);
+        Rating rating = Rateable.convert(productSegment.get(offset + RATING));
+        BigDecimal price = BigDecimal.valueOf(productSegment.getLong(offset + PRICE), productSegment.get(offset + SCALE));
+        byte[] nameBytes = new byte[productSegment.get(offset + NAME_LENGTH) & 0xFF];
+        productSegment.get(offset + NAME, nameBytes);
+        String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+        if (productSegment.get(offset + TYPE) == 'F')
+            return new Food(id, name, price, rating, LocalDate.ofEpochDay(productSegment.getInt(offset + BEST_BEFORE)));
+        return new Drink(id, name, price, rating);
+    }
+
+    /**
+     * Finds the record of a product with a binary search over the sorted segment,
+     * reviews can be appended only for products that have a record
+     * @param id of the product
+     * @return number of the record or -1 if there is no such product
+     */
+    int find(int id) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleId = productSegment.getInt(headerSize + middle * RECORD_SIZE + ID);
+            if (middleId < id)
+                low = middle + 1;
+            else if (middleId > id)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads every review of the log that was written before the store was opened
+     * @param consumer receives the product id and the review
+     * @throws IOException if the log is truncated
+     */
+    void forEachReview(ReviewConsumer consumer) throws IOException {
+        ByteBuffer log = reviewSegment.duplicate();
+        log.position(reviewHeaderSize);
+        while (log.hasRemaining()) {
+            if (log.remaining() < 9)
+                throw new IOException("Review log is truncated at " + log.position());
+            int id = log.getInt();
+            Rating rating = Rateable.convert(log.get());
+            int length = log.getInt();
+            if (length < 0 || length > log.remaining())
+                throw new IOException("Review log is truncated at " + log.position());
+            byte[] comments = new byte[length];
+            log.get(comments);
+            consumer.accept(id, new Review(rating, new String(comments, StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Appends a review to the end of the log and forces it to disk
+     * @param id of the reviewed product
+     * @param review new review
+     * @throws IOException if the review can't be written
+     */
+    synchronized void appendReview(int id, Review review) throws IOException {
+        ByteBuffer entry = encodeReview(id, review.getRating(), review.getComments().getBytes(StandardCharsets.UTF_8));
+        while (entry.hasRemaining())
+            reviewLog.write(entry);
+        reviewLog.force(false);
+    }
+
+    /**
+     * @return number of bytes of a torn last review cut off the log when the store was opened
+     */
+    long getTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        reviewLog.close();
+    }
+}
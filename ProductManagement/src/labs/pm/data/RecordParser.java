@@ -0,0 +1,235 @@
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.function.Consumer;
+
+/**
+ * {@code RecordParser} reads the records of the data files.
+ * <br>
+ * Product records have the layout {@code F/D, id, name, price, rating[, bestBefore]}
+ * and review records have the layout {@code rating, comments}, fields are separated
+ * by a comma and a space. The parser works directly on a {@link CharSequence},
+ * numbers and dates are read from the characters in place, the only strings
+ * created are the product name and the review comments.
+ * Prices are parsed exactly, without going through a double.
+ * @version 1.0
+ * @author Ewa
+ */
+public final class RecordParser {
+    private static final String SEPARATOR = ", ";
+
+    private RecordParser() {
+    }
+
+    /**
+     * Parses a whole product record
+     * @param text record
+     * @return a new {@link Food} or {@link Drink}
+     * @throws ParseException if the record is malformed
+     */
+    public static Product parseProduct(CharSequence text) throws ParseException {
+        return parseProduct(text, 0, text.length());
+    }
+
+    /**
+     * Parses a product record stored in the range of a character sequence
+     * @param text characters of the record
+     * @param start index of the first character of the record
+     * @param end index after the last character of the record
+     * @return a new {@link Food} or {@link Drink}
+     * @throws ParseException if the record is malformed
+     */
+    public static Product parseProduct(CharSequence text, int start, int end) throws ParseException {
+        end = trimEnd(text, start, end);
+        int typeEnd = separator(text, start, end);
+        if (typeEnd - start != 1)
+            throw new ParseException("Unknown product type", start);
+        char type = text.charAt(start);
+
+        int idStart = typeEnd + SEPARATOR.length();
+        int idEnd = separator(text, idStart, end);
+        int id = parseInt(text, idStart, idEnd);
+
+        int nameStart = idEnd + SEPARATOR.length();
+        int nameEnd = separator(text, nameStart, end);
+        String name = text.subSequence(nameStart, nameEnd).toString();
+
+        int priceStart = nameEnd + SEPARATOR.length();
+        int priceEnd = separator(text, priceStart, end);
+        BigDecimal price = parseDecimal(text, priceStart, priceEnd);
+
+        int ratingStart = priceEnd + SEPARATOR.length();
+        int ratingEnd = indexOf(text, ratingStart, end);
+        Rating rating = Rateable.convert(parseInt(text, ratingStart, (ratingEnd < 0) ? end : ratingEnd));
+
+        switch (type) {
+            case 'D':
+                return new Drink(id, name, price, rating);
+            case 'F':
+                if (ratingEnd < 0)
+                    throw new ParseException("Missing best before date", end);
+                return new Food(id, name, price, rating,
+                        parseDate(text, ratingEnd + SEPARATOR.length(), end));
+            default:
+                throw new ParseException("Unknown product type " + type, start);
+        }
+    }
+
+    /**
+     * Parses a whole review record
+     * @param text record
+     * @return a new {@link Review}
+     * @throws ParseException if the record is malformed
+     */
+    public static Review parseReview(CharSequence text) throws ParseException {
+        return parseReview(text, 0, text.length());
+    }
+
+    /**
+     * Parses a review record stored in the range of a character sequence
+     * @param text characters of the record
+     * @param start index of the first character of the record
+     * @param end index after the last character of the record
+     * @return a new {@link Review}
+     * @throws ParseException if the record is malformed
+     */
+    public static Review parseReview(CharSequence text, int start, int end) throws ParseException {
+        end = trimEnd(text, start, end);
+        int ratingEnd = separator(text, start, end);
+        Rating rating = Rateable.convert(parseInt(text, start, ratingEnd));
+        return new Review(rating, text.subSequence(ratingEnd + SEPARATOR.length(), end).toString());
+    }
+
+    /**
+     * Decodes UTF-8 file content into a character buffer
+     * @param bytes content of a file
+     * @return characters of the file
+     */
+    public static CharBuffer decode(byte[] bytes) {
+        return StandardCharsets.UTF_8.decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Parses every line of a reviews file
+     * @param text content of the file
+     * @param reviews receives each parsed review
+     * @param badLines receives the text of each line that can't be parsed
+     */
+    public static void parseReviews(CharSequence text, Consumer<Review> reviews, Consumer<String> badLines) {
+        int length = text.length();
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && text.charAt(end) != '\n')
+                end++;
+            if (trimEnd(text, start, end) > start) {
+                try {
+                    reviews.accept(parseReview(text, start, end));
+                } catch (ParseException e) {
+                    badLines.accept(text.subSequence(start, end) + " " + e.getMessage());
+                }
+            }
+            start = end + 1;
+        }
+    }
+
+    private static int trimEnd(CharSequence text, int start, int end) {
+        while (end > start && (text.charAt(end - 1) == '\n' || text.charAt(end - 1) == '\r'))
+            end--;
+        return end;
+    }
+
+    private static int indexOf(CharSequence text, int start, int end) {
+        for (int i = start; i + 1 < end; i++) {
+            if (text.charAt(i) == ',' && text.charAt(i + 1) == ' ')
+                return i;
+        }
+        return -1;
+    }
+
+    private static int separator(CharSequence text, int start, int end) throws ParseException {
+        int i = indexOf(text, start, end);
+        if (i < 0)
+            throw new ParseException("Missing field separator", end);
+        return i;
+    }
+
+    static int parseInt(CharSequence text, int start, int end) throws ParseException {
+        boolean negative = start < end && text.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end)
+            throw new ParseException("Missing number", start);
+
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9)
+                throw new ParseException("Invalid digit in number", i);
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1)
+                throw new ParseException("Number out of range", start);
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE)
+            throw new ParseException("Number out of range", start);
+        return (int) value;
+    }
+
+    /**
+     * Parses a price, surrounding white space is skipped as by {@link Double#parseDouble(String)}
+     */
+    static BigDecimal parseDecimal(CharSequence text, int start, int end) throws ParseException {
+        while (start < end && text.charAt(start) <= ' ')
+            start++;
+        while (end > start && text.charAt(end - 1) <= ' ')
+            end--;
+        boolean negative = start < end && text.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        long unscaled = 0;
+        int scale = -1;
+        int digits = 0;
+        for (; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '.' && scale < 0) {
+                scale = 0;
+                continue;
+            }
+            if (c < '0' || c > '9')
+                throw new ParseException("Invalid digit in price", i);
+            if (++digits > 18)
+                return parseLongDecimal(text, start, end);
+            unscaled = unscaled * 10 + (c - '0');
+            if (scale >= 0)
+                scale++;
+        }
+        if (digits == 0)
+            throw new ParseException("Missing price", start);
+        return BigDecimal.valueOf(negative ? -unscaled : unscaled, Math.max(scale, 0));
+    }
+
+    private static BigDecimal parseLongDecimal(CharSequence text, int start, int end) throws ParseException {
+        try {
+            return new BigDecimal(text.subSequence(start, end).toString());
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid price " + e.getMessage(), start);
+        }
+    }
+
+    static LocalDate parseDate(CharSequence text, int start, int end) throws ParseException {
+        if (end - start != 10 || text.charAt(start + 4) != '-' || text.charAt(start + 7) != '-')
+            throw new ParseException("Date is not in yyyy-MM-dd format", start);
+        try {
+            return LocalDate.of(parseInt(text, start, start + 4),
+                    parseInt(text, start + 5, start + 7),
+                    parseInt(text, start + 8, start + 10));
+        } catch (DateTimeException e) {
+            throw new ParseException("Invalid date " + e.getMessage(), start);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package labs.pm.data;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@code ReportCache} keeps rendered report bodies per product and language.
+ * <br>
+ * Each cached body is stamped with the generation the product had when the
+ * body was rendered, which grows with every change of the product or its
+ * reviews. A body is returned only for the same generation, so a report
+ * rendered before a review or a reload is never served after it, even when it
+ * is put after the product was invalidated. Reviewing or reloading a product
+ * also drops all its bodies.
+ * <br>
+ * The cache holds bodies of at most {@code maxProducts} products, when it is
+ * full an arbitrary product is evicted.
+ * @version 1.0
+ * @author Ewa
+ */
+class ReportCache {
+    private final Map<Integer, Reports> reports = new ConcurrentHashMap<>();
+    private final int maxProducts;
+
+    private static final class Reports {
+        private final long version;
+        private final Map<String, String> bodies = new ConcurrentHashMap<>();
+
+        private Reports(long version) {
+            this.version = version;
+        }
+    }
+
+    ReportCache(int maxProducts) {
+        this.maxProducts = maxProducts;
+    }
+
+    /**
+     * @param id of the product
+     * @param languageTag language of the report
+     * @param version generation of the product
+     * @return cached body or null
+     */
+    String get(int id, String languageTag, long version) {
+        Reports productReports = reports.get(id);
+        return (productReports == null || productReports.version != version)
+                ? null : productReports.bodies.get(languageTag);
+    }
+
+    void put(int id, String languageTag, long version, String body) {
+        if (maxProducts <= 0)
+            return;
+        if (reports.size() >= maxProducts && !reports.containsKey(id))
+            evict();
+        Reports productReports = reports.compute(id, (key, current) ->
+                (current == null || current.version < version) ? new Reports(version) : current);
+        if (productReports.version == version)
+            productReports.bodies.put(languageTag, body);
+    }
+
+    private void evict() {
+        Iterator<Integer> ids = reports.keySet().iterator();
+        if (ids.hasNext())
+            reports.remove(ids.next());
+    }
+
+    void invalidate(int id) {
+        reports.remove(id);
+    }
+
+    void clear() {
+        reports.clear();
+    }
+}
@@ -0,0 +1,219 @@
+package labs.pm.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@code ReportWriter} writes rendered reports to files on its own threads.
+ * <br>
+ * Callers enqueue reports into a bounded queue and get a future completed
+ * when the file is written, a full queue blocks the caller until a writer
+ * catches up. Each writer has its own queue and the file of a report picks the
+ * queue by its hash, so one file is always written by the same writer, in the
+ * order its reports were enqueued. Each writer takes a batch of queued reports,
+ * writes only the last report of each file in the batch and encodes reports
+ * into a reused direct buffer written through a {@link FileChannel}. Files are
+ * truncated, so a shorter report never leaves bytes of a previous one behind.
+ * <br>
+ * Reports are enqueued under the read lock of a close lock and closing takes its
+ * write lock, so a report is either enqueued before the writers are told to stop,
+ * and written by them, or refused.
+ * @version 1.0
+ * @author Ewa
+ */
+class ReportWriter {
+    private static final Logger logger = Logger.getLogger(ReportWriter.class.getName());
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final List<BlockingQueue<Job>> queues = new ArrayList<>();
+    private final int maxBatch;
+    private final List<Thread> writers = new ArrayList<>();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final AtomicLong maxWriteNanos = new AtomicLong();
+    private final Metrics.Timer writeTimer;
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private volatile boolean running = true;
+
+    private static final class Job {
+        private final Path file;
+        private final String report;
+        private final CompletableFuture<Path> done = new CompletableFuture<>();
+
+        private Job(Path file, String report) {
+            this.file = file;
+            this.report = report;
+        }
+    }
+
+    ReportWriter(int threads, int queueSize, int maxBatch, Metrics.Timer writeTimer) {
+        this.maxBatch = maxBatch;
+        this.writeTimer = writeTimer;
+        for (int i = 0; i < threads; i++) {
+            BlockingQueue<Job> queue = new ArrayBlockingQueue<>(Math.max(1, queueSize / threads));
+            queues.add(queue);
+            Thread writer = new Thread(() -> run(queue), "report-writer-" + i);
+            writer.setDaemon(true);
+            writer.start();
+            writers.add(writer);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "report-writer-shutdown"));
+    }
+
+    /**
+     * Enqueues a report into the queue of the writer of its file, blocks while the queue is full
+     * @param file target file of the report
+     * @param report rendered report
+     * @return future completed with the file once the report is written
+     */
+    CompletableFuture<Path> write(Path file, String report) {
+        Job job = new Job(file, report);
+        closeLock.readLock().lock();
+        try {
+            if (running)
+                queues.get(Math.floorMod(file.hashCode(), queues.size())).put(job);
+            else
+                job.done.completeExceptionally(new IOException("Report writer is closed"));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.done.completeExceptionally(e);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        return job.done;
+    }
+
+    private void run(BlockingQueue<Job> queue) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        List<Job> batch = new ArrayList<>(maxBatch);
+        Map<Path, Job> latest = new LinkedHashMap<>();
+
+        while (running || !queue.isEmpty()) {
+            try {
+                Job first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            for (Job job : batch)
+                latest.put(job.file, job);
+            for (Job job : latest.values()) {
+                try {
+                    long start = System.nanoTime();
+                    writeFile(job.file, job.report, buffer, encoder);
+                    long nanos = System.nanoTime() - start;
+                    written.increment();
+                    writeNanos.add(nanos);
+                    writeTimer.record(nanos);
+                    maxWriteNanos.accumulateAndGet(nanos, Math::max);
+                    job.done.complete(job.file);
+                } catch (IOException | RuntimeException e) {
+                    logger.log(Level.SEVERE, "Error writing report " + job.file + " " + e.getMessage(), e);
+                    job.done.completeExceptionally(e);
+                }
+            }
+            for (Job job : batch) {
+                Job writtenJob = latest.get(job.file);
+                if (writtenJob != job)
+                    writtenJob.done.whenComplete((file, e) -> {
+                        if (e == null)
+                            job.done.complete(file);
+                        else
+                            job.done.completeExceptionally(e);
+                    });
+            }
+            batch.clear();
+            latest.clear();
+        }
+    }
+
+    private static void writeFile(Path file, String report, ByteBuffer buffer, CharsetEncoder encoder) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            CharBuffer chars = CharBuffer.wrap(report);
+            encoder.reset();
+            buffer.clear();
+            CoderResult result;
+            do {
+                result = encoder.encode(chars, buffer, true);
+                if (result.isOverflow() || !chars.hasRemaining()) {
+                    if (!chars.hasRemaining())
+                        encoder.flush(buffer);
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                        channel.write(buffer);
+                    buffer.clear();
+                }
+                if (result.isError())
+                    result.throwException();
+            } while (chars.hasRemaining());
+        }
+    }
+
+    int getQueueDepth() {
+        return queues.stream().mapToInt(BlockingQueue::size).sum();
+    }
+
+    long getWritten() {
+        return written.sum();
+    }
+
+    /**
+     * @return average time of writing one report file in milliseconds
+     */
+    double getAverageWriteMillis() {
+        long count = written.sum();
+        return (count == 0) ? 0 : writeNanos.sum() / 1_000_000.0 / count;
+    }
+
+    double getMaxWriteMillis() {
+        return maxWriteNanos.get() / 1_000_000.0;
+    }
+
+    /**
+     * Stops accepting reports and waits until the queued reports are written,
+     * a caller blocked on a full queue enqueues its report first
+     */
+    void close() {
+        closeLock.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        for (Thread writer : writers) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
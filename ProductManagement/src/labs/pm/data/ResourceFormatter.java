@@ -1,37 +1,189 @@
 package labs.pm.data;
 
-import java.text.MessageFormat;
+import java.io.IOException;
+import java.math.BigDecimal;
 import java.text.NumberFormat;
+import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * {@code ResourceFormatter} formats products and reviews for one locale.
+ * <br>
+ * The {@code product} and {@code review} patterns of the resource bundle are
+ * compiled once, formatting appends their parts straight to a {@link StringBuilder}
+ * or an {@link Appendable} without parsing a pattern per call. Formatted prices and
+ * dates are cached, products with the same price or best before date share them.
+ * <br>
+ * The formatter is thread safe, each thread formats money with its own copy
+ * of the money format, because {@link NumberFormat} is not thread safe.
+ */
 public class ResourceFormatter {
+    private static final int MAX_CACHED_VALUES = 4096;
+
     private Locale locale;
     private ResourceBundle resources;
     private DateTimeFormatter dateFormat;
     private NumberFormat moneyFormat;
+    private volatile Template productTemplate;
+    private volatile Template reviewTemplate;
+    private volatile ThreadLocal<NumberFormat> threadMoneyFormat;
+    private final Map<BigDecimal, String> moneyCache = new ConcurrentHashMap<>();
+    private final Map<LocalDate, String> dateCache = new ConcurrentHashMap<>();
 
     public ResourceFormatter (Locale locale) {
         this.locale = locale;
-        resources = ResourceBundle.getBundle("labs.pm.data.resources", locale);
-        dateFormat =DateTimeFormatter.ofLocalizedDate(FormatStyle.SHORT).localizedBy(locale);
-        moneyFormat = NumberFormat.getCurrencyInstance(locale);
+        setResources(ResourceBundle.getBundle("labs.pm.data.resources", locale));
+        setDateFormat(DateTimeFormatter.ofLocalizedDate(FormatStyle.SHORT).localizedBy(locale));
+        setMoneyFormat(NumberFormat.getCurrencyInstance(locale));
+    }
+
+    /**
+     * A {@link java.text.MessageFormat MessageFormat} pattern with plain
+     * {@code {n}} arguments compiled into literal parts and argument numbers.
+     */
+    static final class Template {
+        private final String[] literals;
+        private final int[] arguments;
+
+        /**
+         * Compiles a pattern, quotes follow the rules of {@code MessageFormat}
+         * @param pattern with {@code {0}} to {@code {9}} arguments
+         * @throws IllegalArgumentException if an argument has a format type or style
+         */
+        Template(String pattern) {
+            List<String> literalParts = new ArrayList<>();
+            List<Integer> argumentNumbers = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '\'') {
+                    if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+                        literal.append('\'');
+                        i++;
+                    } else {
+                        quoted = !quoted;
+                    }
+                } else if (c == '{' && !quoted) {
+                    int close = pattern.indexOf('}', i);
+                    if (close < 0)
+                        throw new IllegalArgumentException("Unmatched braces in pattern " + pattern);
+                    String argument = pattern.substring(i + 1, close).trim();
+                    if (!argument.matches("\\d"))
+                        throw new IllegalArgumentException("Unsupported argument {" + argument + "} in pattern " + pattern);
+                    literalParts.add(literal.toString());
+                    argumentNumbers.add(argument.charAt(0) - '0');
+                    literal.setLength(0);
+                    i = close;
+                } else {
+                    literal.append(c);
+                }
+            }
+            literalParts.add(literal.toString());
+            literals = literalParts.toArray(new String[0]);
+            arguments = argumentNumbers.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        <A extends Appendable> A append(A out, CharSequence a0, CharSequence a1, CharSequence a2, CharSequence a3)
+                throws IOException {
+            out.append(literals[0]);
+            for (int i = 0; i < arguments.length; i++) {
+                switch (arguments[i]) {
+                    case 0: out.append(a0); break;
+                    case 1: out.append(a1); break;
+                    case 2: out.append(a2); break;
+                    case 3: out.append(a3); break;
+                    default: out.append('{').append(String.valueOf(arguments[i])).append('}');
+                }
+                out.append(literals[i + 1]);
+            }
+            return out;
+        }
     }
 
     public String formatProduct (Product product) {
-        return MessageFormat.format(resources.getString("product"),
+        return appendProduct(new StringBuilder(), product).toString();
+    }
+
+    public String formatReview (Review review) {
+        return appendReview(new StringBuilder(), review).toString();
+    }
+
+    /**
+     * Appends a formatted product
+     * @param out target of the text
+     * @param product to format
+     * @return the target
+     */
+    public StringBuilder appendProduct (StringBuilder out, Product product) {
+        try {
+            appendProduct((Appendable) out, product);
+            return out;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Appends a formatted review
+     * @param out target of the text
+     * @param review to format
+     * @return the target
+     */
+    public StringBuilder appendReview (StringBuilder out, Review review) {
+        try {
+            appendReview((Appendable) out, review);
+            return out;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public <A extends Appendable> A appendProduct (A out, Product product) throws IOException {
+        return productTemplate.append(out,
                 product.getName(),
-                moneyFormat.format(product.getPrice()),
+                formatMoney(product.getPrice()),
                 product.getRating().getStars(),
-                dateFormat.format(product.getBestBefore()));
+                formatDate(product.getBestBefore()));
     }
 
-    public String formatReview (Review review) {
-        return MessageFormat.format(resources.getString("review"),
+    public <A extends Appendable> A appendReview (A out, Review review) throws IOException {
+        return reviewTemplate.append(out,
                 review.getRating().getStars(),
-                review.getComments());
+                review.getComments(), "", "");
+    }
+
+    public String formatMoney (BigDecimal amount) {
+        String text = moneyCache.get(amount);
+        if (text == null) {
+            text = threadMoneyFormat.get().format(amount);
+            if (moneyCache.size() >= MAX_CACHED_VALUES)
+                moneyCache.clear();
+            moneyCache.put(amount, text);
+        }
+        return text;
+    }
+
+    public String formatMoney (double amount) {
+        return threadMoneyFormat.get().format(amount);
+    }
+
+    public String formatDate (LocalDate date) {
+        String text = dateCache.get(date);
+        if (text == null) {
+            text = dateFormat.format(date);
+            if (dateCache.size() >= MAX_CACHED_VALUES)
+                dateCache.clear();
+            dateCache.put(date, text);
+        }
+        return text;
     }
 
     public Locale getLocale() {
@@ -48,6 +200,8 @@ public class ResourceFormatter {
 
     public void setResources(ResourceBundle resources) {
         this.resources = resources;
+        productTemplate = new Template(resources.getString("product"));
+        reviewTemplate = new Template(resources.getString("review"));
     }
 
     public DateTimeFormatter getDateFormat() {
@@ -56,6 +210,7 @@ public class ResourceFormatter {
 
     public void setDateFormat(DateTimeFormatter dateFormat) {
         this.dateFormat = dateFormat;
+        dateCache.clear();
     }
 
     public NumberFormat getMoneyFormat() {
@@ -64,6 +219,8 @@ public class ResourceFormatter {
 
     public void setMoneyFormat(NumberFormat moneyFormat) {
         this.moneyFormat = moneyFormat;
+        threadMoneyFormat = ThreadLocal.withInitial(() -> (NumberFormat) moneyFormat.clone());
+        moneyCache.clear();
     }
 
     public String getText (String key) {
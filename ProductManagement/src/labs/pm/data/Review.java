@@ -4,24 +4,28 @@ import java.io.Serializable;
 
 public class Review implements Comparable<Review>, Serializable {
     private Rating rating;
-    private String comments;
+    private Object comments;
 
     public Review (Rating rating, String comments) {
         this.rating = rating;
-        this.comments = comments;
+        this.comments = CommentStore.encode(comments);
     }
 
     public Rating getRating() {
         return rating;
     }
 
+    /**
+     * @return comments of the review, long comments are kept as compressed bytes
+     * and decoded on each call
+     */
     public String getComments() {
-        return comments;
+        return CommentStore.decode(comments);
     }
 
     @Override
     public String toString() {
-        return "Review\n rating: " + rating + ", comments: " + comments;
+        return "Review\n rating: " + rating + ", comments: " + getComments();
     }
 
     @Override
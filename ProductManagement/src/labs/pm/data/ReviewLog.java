@@ -0,0 +1,391 @@
+package labs.pm.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * {@code ReviewLog} keeps review bodies on disk instead of the heap.
+ * <br>
+ * The log is an append only file of {@code id, previous, rating, length, comments}
+ * entries, where {@code previous} is the offset of the previous review of the same
+ * product. On the heap each product keeps only the offset of its last review and the
+ * number of its reviews, the reviews of a product are read by following the chain
+ * back and then reading the entries forward.
+ * <br>
+ * Reviews of recently used products are kept in an LRU cache of at most
+ * {@code maxCachedReviews} reviews. Streams of reviews read the log without filling
+ * the cache, entries never change once written, so a stream is a consistent view
+ * of the reviews a product had when the stream was created.
+ * <br>
+ * When the catalog is cleared the log is cleared too and written again from its
+ * start, so a dumped and restored catalog doesn't leave its old reviews behind.
+ * Reviews of the cleared products can't be read any more, a stream still reading
+ * them fails.
+ * @version 1.0
+ * @author Ewa
+ */
+final class ReviewLog implements Closeable {
+    static final int MAGIC = 0x504D5256;
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int ENTRY_HEADER_SIZE = 17;
+    private static final int READ_SIZE = 256;
+    private static final long NONE = -1;
+
+    private final FileChannel channel;
+    private final ReadWriteLock clearLock = new ReentrantReadWriteLock();
+    private final Map<Integer, CachedReviews> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxCachedReviews;
+    private long cachedReviews;
+    private long end = HEADER_SIZE;
+    private volatile long generation;
+
+    private static final class CachedReviews {
+        private final LoggedReviews owner;
+        private final List<Review> reviews;
+
+        private CachedReviews(LoggedReviews owner, List<Review> reviews) {
+            this.owner = owner;
+            this.reviews = reviews;
+        }
+    }
+
+    private ReviewLog(FileChannel channel, int maxCachedReviews) {
+        this.channel = channel;
+        this.maxCachedReviews = maxCachedReviews;
+    }
+
+    /**
+     * Creates an empty log, an existing file is truncated
+     * @param file of the log
+     * @param maxCachedReviews largest number of reviews kept in the cache
+     * @return the new log
+     * @throws IOException if the file can't be created
+     */
+    static ReviewLog create(Path file, int maxCachedReviews) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            writeFully(channel, ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip(), 0);
+            return new ReviewLog(channel, maxCachedReviews);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param id of a new product
+     * @return empty reviews of the product kept in the log
+     */
+    List<Review> newReviews(int id) {
+        return new LoggedReviews(id);
+    }
+
+    /**
+     * Moves reviews into the log
+     * @param id of the product
+     * @param reviews of the product
+     * @return the same reviews kept in the log
+     * @throws UncheckedIOException if the reviews can't be written
+     */
+    List<Review> keep(int id, List<Review> reviews) {
+        LoggedReviews logged = new LoggedReviews(id);
+        if (!reviews.isEmpty()) {
+            logged.tail = append(logged, NONE, reviews);
+            logged.count = reviews.size();
+        }
+        return logged;
+    }
+
+    /**
+     * Drops all reviews, the file is written again from its start. The log is
+     * cleared even if the file can't be truncated, the old entries past the end
+     * are then overwritten by new ones.
+     * @throws IOException if the file can't be truncated
+     */
+    void clear() throws IOException {
+        clearLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                generation++;
+                cache.clear();
+                cachedReviews = 0;
+                end = HEADER_SIZE;
+                channel.truncate(HEADER_SIZE);
+            }
+        } finally {
+            clearLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends reviews of one product as one write
+     * @return offset of the last appended review
+     * @throws UncheckedIOException if the reviews can't be written or the log was cleared
+     */
+    private synchronized long append(LoggedReviews owner, long previous, List<Review> reviews) {
+        if (owner.generation != generation)
+            throw new UncheckedIOException(cleared(owner.id));
+        int id = owner.id;
+        List<byte[]> comments = new ArrayList<>(reviews.size());
+        int size = 0;
+        for (Review review : reviews) {
+            byte[] bytes = review.getComments().getBytes(StandardCharsets.UTF_8);
+            comments.add(bytes);
+            size += ENTRY_HEADER_SIZE + bytes.length;
+        }
+
+        ByteBuffer entries = ByteBuffer.allocate(size);
+        long offset = previous;
+        for (int i = 0; i < reviews.size(); i++) {
+            long entryOffset = end + entries.position();
+            entries.putInt(id).putLong(offset).put((byte) reviews.get(i).getRating().ordinal())
+                    .putInt(comments.get(i).length).put(comments.get(i));
+            offset = entryOffset;
+        }
+        try {
+            writeFully(channel, entries.flip(), end);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        end += size;
+        return offset;
+    }
+
+    private static IOException cleared(int id) {
+        return new IOException("Reviews of product " + id + " were cleared from the review log");
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                break;
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Reads the offsets of a chain of reviews, oldest first
+     */
+    private long[] chain(long tail, int count) throws IOException {
+        long[] offsets = new long[count];
+        ByteBuffer previous = ByteBuffer.allocate(Long.BYTES);
+        long offset = tail;
+        for (int i = count - 1; i >= 0; i--) {
+            offsets[i] = offset;
+            previous.clear();
+            readFully(previous, offset + Integer.BYTES);
+            offset = previous.getLong();
+        }
+        return offsets;
+    }
+
+    private Review read(long offset, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        readFully(buffer, offset);
+        if (buffer.remaining() < ENTRY_HEADER_SIZE)
+            throw new IOException("Review log is truncated at " + offset);
+        buffer.position(buffer.position() + Integer.BYTES + Long.BYTES);
+        Rating rating = Rateable.convert(buffer.get());
+        byte[] comments = new byte[buffer.getInt()];
+        if (comments.length <= buffer.remaining()) {
+            buffer.get(comments);
+        } else {
+            ByteBuffer rest = ByteBuffer.wrap(comments);
+            readFully(rest, offset + ENTRY_HEADER_SIZE);
+            if (rest.limit() < comments.length)
+                throw new IOException("Review log is truncated at " + offset);
+        }
+        return new Review(rating, new String(comments, StandardCharsets.UTF_8));
+    }
+
+    private synchronized List<Review> cached(LoggedReviews owner) {
+        CachedReviews entry = cache.get(owner.id);
+        return (entry == null || entry.owner != owner) ? null : entry.reviews;
+    }
+
+    private synchronized void cache(LoggedReviews owner, List<Review> reviews) {
+        if (reviews.size() > maxCachedReviews)
+            return;
+        CachedReviews replaced = cache.put(owner.id, new CachedReviews(owner, reviews));
+        if (replaced != null)
+            cachedReviews -= replaced.reviews.size();
+        cachedReviews += reviews.size();
+        evict();
+    }
+
+    private synchronized void cacheAppended(LoggedReviews owner, Review review) {
+        CachedReviews entry = cache.get(owner.id);
+        if (entry != null && entry.owner == owner) {
+            entry.reviews.add(review);
+            cachedReviews++;
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<CachedReviews> eldest = cache.values().iterator();
+        while (cachedReviews > maxCachedReviews && eldest.hasNext()) {
+            cachedReviews -= eldest.next().reviews.size();
+            eldest.remove();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reviews of one product kept in the log. Like in-memory reviews they are
+     * guarded by the lock of the product. Copies, {@code get} and iterators go
+     * through the cache, streams and {@code forEach} read the log directly.
+     */
+    private final class LoggedReviews extends AbstractList<Review> {
+        private final int id;
+        private final long generation = ReviewLog.this.generation;
+        private long tail = NONE;
+        private int count;
+
+        private LoggedReviews(int id) {
+            this.id = id;
+        }
+
+        private List<Review> load() {
+            List<Review> reviews = cached(this);
+            if (reviews == null) {
+                reviews = new ArrayList<>(count);
+                spliterator().forEachRemaining(reviews::add);
+                cache(this, reviews);
+            }
+            return reviews;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public Review get(int index) {
+            return load().get(index);
+        }
+
+        @Override
+        public boolean add(Review review) {
+            tail = append(this, tail, List.of(review));
+            count++;
+            cacheAppended(this, review);
+            return true;
+        }
+
+        @Override
+        public Iterator<Review> iterator() {
+            return Collections.unmodifiableList(load()).iterator();
+        }
+
+        @Override
+        public Object[] toArray() {
+            return load().toArray();
+        }
+
+        @Override
+        public <T> T[] toArray(T[] array) {
+            return load().toArray(array);
+        }
+
+        @Override
+        public void forEach(Consumer<? super Review> action) {
+            spliterator().forEachRemaining(action);
+        }
+
+        @Override
+        public Spliterator<Review> spliterator() {
+            List<Review> reviews = cached(this);
+            return (reviews != null) ? List.copyOf(reviews).spliterator()
+                    : new ReviewSpliterator(id, generation, tail, count);
+        }
+    }
+
+    /**
+     * Reads a chain of reviews from the log, oldest first
+     */
+    private final class ReviewSpliterator implements Spliterator<Review> {
+        private final int id;
+        private final long generation;
+        private final long tail;
+        private final int count;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+        private long[] offsets;
+        private int next;
+
+        private ReviewSpliterator(int id, long generation, long tail, int count) {
+            this.id = id;
+            this.generation = generation;
+            this.tail = tail;
+            this.count = count;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Review> action) {
+            if (next >= count)
+                return false;
+            Review review;
+            clearLock.readLock().lock();
+            try {
+                if (generation != ReviewLog.this.generation)
+                    throw cleared(id);
+                if (offsets == null)
+                    offsets = chain(tail, count);
+                review = read(offsets[next++], buffer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                clearLock.readLock().unlock();
+            }
+            action.accept(review);
+            return true;
+        }
+
+        @Override
+        public Spliterator<Review> trySplit() {
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return count - next;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | NONNULL | IMMUTABLE;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package labs.pm.data;
+
+/**
+ * {@code ReviewRequest} is one review of a bulk review import,
+ * see {@link ProductManager#reviewProducts(java.util.Collection)}.
+ * @version 1.0
+ * @author Ewa
+ */
+public final class ReviewRequest {
+    private final int id;
+    private final Rating rating;
+    private final String comments;
+
+    public ReviewRequest(int id, Rating rating, String comments) {
+        this.id = id;
+        this.rating = rating;
+        this.comments = comments;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Rating getRating() {
+        return rating;
+    }
+
+    public String getComments() {
+        return comments;
+    }
+}
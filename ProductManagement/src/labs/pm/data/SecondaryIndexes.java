@@ -0,0 +1,240 @@
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+
+/**
+ * {@code SecondaryIndexes} map product properties to the ids of products.
+ * <br>
+ * There is an index of ids by {@link Rating}, a sorted index by price,
+ * a sorted index of {@link Food} by best before date and an index by type.
+ * A {@link ProductQuery} is answered by the index with the fewest candidates
+ * for its criteria, each candidate is then checked against the whole query.
+ * <br>
+ * The indexes have their own lock, so products re-rated concurrently under
+ * different product locks can update them safely.
+ * @version 1.0
+ * @author Ewa
+ */
+class SecondaryIndexes {
+    private final Map<Rating, IdSet> byRating = new EnumMap<>(Rating.class);
+    private final NavigableMap<BigDecimal, IdSet> byPrice = new TreeMap<>();
+    private final NavigableMap<LocalDate, IdSet> byBestBefore = new TreeMap<>();
+    private IdSet foods = new IdSet();
+    private IdSet drinks = new IdSet();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Lock writeLock = lock.writeLock();
+    private final Lock readLock = lock.readLock();
+
+    SecondaryIndexes() {
+        for (Rating rating : Rating.values())
+            byRating.put(rating, new IdSet());
+    }
+
+    /**
+     * Builds the indexes of all products of the catalog
+     * @param index primary index of the catalog
+     * @return new indexes
+     */
+    static SecondaryIndexes of(ProductIndex index) {
+        SecondaryIndexes indexes = new SecondaryIndexes();
+        index.products().forEach(indexes::addEntries);
+        return indexes;
+    }
+
+    void add(Product product) {
+        try {
+            writeLock.lock();
+            addEntries(product);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Moves a product to the entries of its new version
+     * @param oldProduct indexed version of the product
+     * @param newProduct new version of the product
+     */
+    void replace(Product oldProduct, Product newProduct) {
+        try {
+            writeLock.lock();
+            removeEntries(oldProduct);
+            addEntries(newProduct);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void remove(Product product) {
+        try {
+            writeLock.lock();
+            removeEntries(product);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void clear() {
+        try {
+            writeLock.lock();
+            byRating.replaceAll((rating, ids) -> new IdSet());
+            byPrice.clear();
+            byBestBefore.clear();
+            foods = new IdSet();
+            drinks = new IdSet();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void addEntries(Product product) {
+        int id = product.getId();
+        byRating.get(product.getRating()).add(id);
+        byPrice.computeIfAbsent(product.getPrice(), price -> new IdSet()).add(id);
+        if (product instanceof Food) {
+            foods.add(id);
+            byBestBefore.computeIfAbsent(product.getBestBefore(), date -> new IdSet()).add(id);
+        } else {
+            drinks.add(id);
+        }
+    }
+
+    private void removeEntries(Product product) {
+        int id = product.getId();
+        byRating.get(product.getRating()).remove(id);
+        removeFrom(byPrice, product.getPrice(), id);
+        if (product instanceof Food) {
+            foods.remove(id);
+            removeFrom(byBestBefore, product.getBestBefore(), id);
+        } else {
+            drinks.remove(id);
+        }
+    }
+
+    private static <K> void removeFrom(Map<K, IdSet> index, K key, int id) {
+        IdSet ids = index.get(key);
+        if (ids != null && ids.remove(id) && ids.isEmpty())
+            index.remove(key);
+    }
+
+    /**
+     * Passes the ids of candidates for a query, taken from the most selective
+     * index of the query criteria. Callers check each candidate against the query.
+     * A type that both {@link Food} and {@link Drink} are, like {@link Product},
+     * matches all products.
+     * @param query with at least one {@link ProductQuery#isIndexed() indexed} criterion
+     * @param candidates receives the ids
+     */
+    void forEachCandidate(ProductQuery query, IntConsumer candidates) {
+        try {
+            readLock.lock();
+            IdSet best = null;
+            NavigableMap<BigDecimal, IdSet> prices = null;
+            long bestSize = Long.MAX_VALUE;
+
+            if (query.getRating() != null) {
+                best = byRating.get(query.getRating());
+                bestSize = best.size();
+            }
+            if (query.getBestBefore() != null) {
+                IdSet ids = byBestBefore.getOrDefault(query.getBestBefore(), new IdSet());
+                if (ids.size() < bestSize) {
+                    best = ids;
+                    bestSize = ids.size();
+                }
+            }
+            Class<? extends Product> type = query.getType();
+            boolean anyFood = type != null && type.isAssignableFrom(Food.class);
+            boolean anyDrink = type != null && type.isAssignableFrom(Drink.class);
+            if (type != null && !(anyFood && anyDrink)) {
+                IdSet ids = anyFood ? foods : anyDrink ? drinks : new IdSet();
+                if (ids.size() < bestSize) {
+                    best = ids;
+                    bestSize = ids.size();
+                }
+            }
+            if (query.hasPriceRange()) {
+                NavigableMap<BigDecimal, IdSet> range = priceRange(query.getMinPrice(), query.getMaxPrice());
+                long rangeSize = 0;
+                for (IdSet ids : range.values()) {
+                    rangeSize += ids.size();
+                    if (rangeSize >= bestSize)
+                        break;
+                }
+                if (rangeSize < bestSize)
+                    prices = range;
+            }
+
+            if (prices != null)
+                prices.values().forEach(ids -> ids.forEach(candidates));
+            else if (best != null)
+                best.forEach(candidates);
+            else if (anyFood && anyDrink) {
+                foods.forEach(candidates);
+                drinks.forEach(candidates);
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Passes the ids of all products group by group in the order of a listing,
+     * products of a group have the same rating or price. Callers sort the
+     * products of each group and stop when they have a whole page.
+     * @param sort order of the listing
+     * @param ids receives the ids
+     * @param done checked after each group, the walk stops when it returns true
+     */
+    void forEachInOrder(ProductSort sort, IntConsumer ids, BooleanSupplier done) {
+        try {
+            readLock.lock();
+            Collection<IdSet> groups;
+            switch (sort) {
+                case RATING_ASCENDING:
+                    groups = byRating.values();
+                    break;
+                case RATING_DESCENDING:
+                    List<IdSet> ratings = new ArrayList<>(byRating.values());
+                    Collections.reverse(ratings);
+                    groups = ratings;
+                    break;
+                case PRICE_ASCENDING:
+                    groups = byPrice.values();
+                    break;
+                default:
+                    groups = byPrice.descendingMap().values();
+            }
+            for (IdSet group : groups) {
+                group.forEach(ids);
+                if (done.getAsBoolean())
+                    return;
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private NavigableMap<BigDecimal, IdSet> priceRange(BigDecimal minPrice, BigDecimal maxPrice) {
+        if (minPrice == null)
+            return byPrice.headMap(maxPrice, true);
+        if (maxPrice == null)
+            return byPrice.tailMap(minPrice, true);
+        if (minPrice.compareTo(maxPrice) > 0)
+            return new TreeMap<>();
+        return byPrice.subMap(minPrice, true, maxPrice, true);
+    }
+}
@@ -0,0 +1,221 @@
+package labs.pm.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * {@code ShardClient} is the catalog of a shard running in another process,
+ * reached through a {@link ShardServer}.
+ * <br>
+ * Idle connections are kept in a pool, a call takes one or opens a new one,
+ * so concurrent calls use their own connections. A connection that fails is
+ * closed and the call fails with a {@link ProductManagerException}. Filters
+ * can't be sent to the shard, a query with a filter fetches the products
+ * matching the rest of the query and filters them here.
+ * @version 1.0
+ * @author Ewa
+ */
+class ShardClient implements ProductManager, Closeable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final InetSocketAddress address;
+    private final Queue<Connection> idle = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    /**
+     * One socket with its buffered streams
+     */
+    private static final class Connection implements Closeable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        private Connection(InetSocketAddress address) throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(address);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Request {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Response<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    ShardClient(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Sends a request and reads its response on a pooled connection
+     * @throws ProductManagerException if the shard failed or can't be reached
+     */
+    private <T> T call(byte operation, Request request, Response<T> response) throws ProductManagerException {
+        if (closed)
+            throw new ProductManagerException("Shard " + address + " is closed");
+        Connection connection = idle.poll();
+        try {
+            if (connection == null)
+                connection = new Connection(address);
+            connection.out.writeByte(operation);
+            request.write(connection.out);
+            connection.out.flush();
+
+            byte status = connection.in.readByte();
+            String message = (status == ShardProtocol.OK) ? null : SnapshotCodec.readString(connection.in);
+            T result = (status == ShardProtocol.OK) ? response.read(connection.in) : null;
+            idle.offer(connection);
+            if (message != null)
+                throw new ProductManagerException(message);
+            return result;
+        } catch (IOException e) {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException closeError) {
+                    e.addSuppressed(closeError);
+                }
+            }
+            throw new ProductManagerException("Shard " + address + " failed " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Product createProduct(int id, String name, BigDecimal price, Rating rating) throws ProductManagerException {
+        Product product = new Drink(id, name, price, rating);
+        return call(ShardProtocol.CREATE_PRODUCT, out -> ShardProtocol.writeProduct(out, product),
+                ShardProtocol::readProduct);
+    }
+
+    @Override
+    public Product createProduct(int id, String name, BigDecimal price, Rating rating, LocalDate bestBefore)
+            throws ProductManagerException {
+        Product product = new Food(id, name, price, rating, bestBefore);
+        return call(ShardProtocol.CREATE_PRODUCT, out -> ShardProtocol.writeProduct(out, product),
+                ShardProtocol::readProduct);
+    }
+
+    @Override
+    public Product reviewProduct(int id, Rating rating, String comments) throws ProductManagerException {
+        return call(ShardProtocol.REVIEW_PRODUCT, out -> {
+            out.writeInt(id);
+            out.writeByte(rating.ordinal());
+            SnapshotCodec.writeString(out, comments);
+        }, ShardProtocol::readProduct);
+    }
+
+    @Override
+    public List<Product> reviewProducts(Collection<ReviewRequest> requests) throws ProductManagerException {
+        return call(ShardProtocol.REVIEW_PRODUCTS, out -> {
+            out.writeInt(requests.size());
+            for (ReviewRequest request : requests) {
+                out.writeInt(request.getId());
+                out.writeByte(request.getRating().ordinal());
+                SnapshotCodec.writeString(out, request.getComments());
+            }
+        }, ShardProtocol::readProducts);
+    }
+
+    @Override
+    public Product findProduct(int id) throws ProductManagerException {
+        return call(ShardProtocol.FIND_PRODUCT, out -> out.writeInt(id), ShardProtocol::readProduct);
+    }
+
+    @Override
+    public List<Product> findProducts(Predicate<Product> filter) throws ProductManagerException {
+        return findProducts(ProductQuery.all().withFilter(filter));
+    }
+
+    @Override
+    public List<Product> findProducts(ProductQuery query) throws ProductManagerException {
+        List<Product> products = call(ShardProtocol.FIND_PRODUCTS, out -> ShardProtocol.writeQuery(out, query),
+                ShardProtocol::readProducts);
+        if (query.getFilter() != null)
+            products.removeIf(query.getFilter().negate());
+        return products;
+    }
+
+    /**
+     * Finds a page on the shard, a page of a query with a filter is selected
+     * here from all products matching the rest of the query
+     */
+    @Override
+    public List<Product> findProducts(ProductQuery query, ProductSort sort, int offset, int limit)
+            throws ProductManagerException {
+        if (query.getFilter() != null) {
+            TopK<Product> page = new TopK<>((int) Math.min(Integer.MAX_VALUE, (long) offset + limit),
+                    sort.getComparator());
+            findProducts(query).forEach(page::offer);
+            return page.toList(offset);
+        }
+        return call(ShardProtocol.FIND_PAGE, out -> {
+            ShardProtocol.writeQuery(out, query);
+            ShardProtocol.writeSort(out, sort);
+            out.writeInt(offset);
+            out.writeInt(limit);
+        }, ShardProtocol::readProducts);
+    }
+
+    @Override
+    public List<Review> findReviews(int id) throws ProductManagerException {
+        return call(ShardProtocol.FIND_REVIEWS, out -> out.writeInt(id), ShardProtocol::readReviews);
+    }
+
+    /**
+     * Streams the reviews fetched from the shard at once
+     */
+    @Override
+    public Stream<Review> streamReviews(int id) throws ProductManagerException {
+        List<Review> reviews = findReviews(id);
+        if (reviews == null)
+            throw new ProductManagerException("Product with id = " + id + " not found!");
+        return reviews.stream();
+    }
+
+    @Override
+    public Map<Rating, BigDecimal> getDiscounts() throws ProductManagerException {
+        return call(ShardProtocol.GET_DISCOUNTS, out -> { }, ShardProtocol::readDiscounts);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        List<Connection> connections = new ArrayList<>(idle);
+        idle.clear();
+        for (Connection connection : connections)
+            connection.close();
+    }
+
+    @Override
+    public String toString() {
+        return "ShardClient " + address;
+    }
+}
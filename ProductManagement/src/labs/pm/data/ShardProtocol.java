@@ -0,0 +1,207 @@
+package labs.pm.data;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@code ShardProtocol} is the binary protocol between a {@link ShardClient}
+ * and a {@link ShardServer}.
+ * <br>
+ * A request is an operation byte followed by its arguments, a response is a
+ * status byte followed by the result or, when the shard failed, by the message
+ * of the failure. A connection carries one request at a time. Products, reviews
+ * and prices are written the same way as in snapshots by {@link SnapshotCodec}.
+ * Filters of queries are code and are not sent, clients apply them to the
+ * products the shard returns.
+ * @version 1.0
+ * @author Ewa
+ */
+final class ShardProtocol {
+    static final byte CREATE_PRODUCT = 1;
+    static final byte REVIEW_PRODUCT = 2;
+    static final byte REVIEW_PRODUCTS = 3;
+    static final byte FIND_PRODUCT = 4;
+    static final byte FIND_PRODUCTS = 5;
+    static final byte FIND_PAGE = 6;
+    static final byte FIND_REVIEWS = 7;
+    static final byte GET_DISCOUNTS = 8;
+
+    static final byte OK = 0;
+    static final byte FAILED = 1;
+
+    private static final byte NONE = 0;
+    private static final byte FOOD = 'F';
+    private static final byte DRINK = 'D';
+    private static final byte ANY = 'P';
+    private static final ProductSort[] SORTS = ProductSort.values();
+
+    private ShardProtocol() {
+    }
+
+    /**
+     * Writes a product or null
+     */
+    static void writeProduct(DataOutputStream out, Product product) throws IOException {
+        if (product == null) {
+            out.writeByte(NONE);
+            return;
+        }
+        out.writeByte(product instanceof Food ? FOOD : DRINK);
+        out.writeInt(product.getId());
+        SnapshotCodec.writeString(out, product.getName());
+        SnapshotCodec.writeDecimal(out, product.getPrice());
+        out.writeByte(product.getRating().ordinal());
+        if (product instanceof Food)
+            out.writeLong(product.getBestBefore().toEpochDay());
+    }
+
+    static Product readProduct(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        if (type == NONE)
+            return null;
+        int id = in.readInt();
+        String name = SnapshotCodec.readString(in);
+        BigDecimal price = SnapshotCodec.readDecimal(in);
+        Rating rating = Rateable.convert(in.readByte());
+        switch (type) {
+            case FOOD:
+                return new Food(id, name, price, rating, LocalDate.ofEpochDay(in.readLong()));
+            case DRINK:
+                return new Drink(id, name, price, rating);
+            default:
+                throw new IOException("Unknown product type " + type + " of product " + id);
+        }
+    }
+
+    /**
+     * Writes a list of products, products of the list may be null
+     */
+    static void writeProducts(DataOutputStream out, List<Product> products) throws IOException {
+        out.writeInt(products.size());
+        for (Product product : products)
+            writeProduct(out, product);
+    }
+
+    static List<Product> readProducts(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Product> products = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            products.add(readProduct(in));
+        return products;
+    }
+
+    /**
+     * Writes a list of reviews or null
+     */
+    static void writeReviews(DataOutputStream out, List<Review> reviews) throws IOException {
+        if (reviews == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(reviews.size());
+        for (Review review : reviews) {
+            out.writeByte(review.getRating().ordinal());
+            SnapshotCodec.writeString(out, review.getComments());
+        }
+    }
+
+    static List<Review> readReviews(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0)
+            return null;
+        List<Review> reviews = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            reviews.add(new Review(Rateable.convert(in.readByte()), SnapshotCodec.readString(in)));
+        return reviews;
+    }
+
+    /**
+     * Writes the criteria of a query, without its filter
+     * @throws IllegalArgumentException if the query has a type other than food, drink or any product
+     */
+    static void writeQuery(DataOutputStream out, ProductQuery query) throws IOException {
+        Class<? extends Product> type = query.getType();
+        byte typeCode = (type == null) ? NONE : (type == Food.class) ? FOOD : (type == Drink.class) ? DRINK
+                : (type == Product.class) ? ANY : -1;
+        if (typeCode < 0)
+            throw new IllegalArgumentException("Query type " + type.getName() + " can't be sent to a shard");
+
+        out.writeByte((query.getRating() == null) ? -1 : query.getRating().ordinal());
+        writeOptionalDecimal(out, query.getMinPrice());
+        writeOptionalDecimal(out, query.getMaxPrice());
+        out.writeByte(typeCode);
+        out.writeBoolean(query.getBestBefore() != null);
+        if (query.getBestBefore() != null)
+            out.writeLong(query.getBestBefore().toEpochDay());
+    }
+
+    static ProductQuery readQuery(DataInputStream in) throws IOException {
+        ProductQuery query = ProductQuery.all();
+        byte rating = in.readByte();
+        if (rating >= 0)
+            query = query.withRating(Rateable.convert(rating));
+        BigDecimal minPrice = readOptionalDecimal(in);
+        BigDecimal maxPrice = readOptionalDecimal(in);
+        if (minPrice != null || maxPrice != null)
+            query = query.withPriceBetween(minPrice, maxPrice);
+        switch (in.readByte()) {
+            case FOOD:
+                query = query.withType(Food.class);
+                break;
+            case DRINK:
+                query = query.withType(Drink.class);
+                break;
+            case ANY:
+                query = query.withType(Product.class);
+                break;
+            default:
+        }
+        if (in.readBoolean())
+            query = query.withBestBefore(LocalDate.ofEpochDay(in.readLong()));
+        return query;
+    }
+
+    static void writeSort(DataOutputStream out, ProductSort sort) throws IOException {
+        out.writeByte(sort.ordinal());
+    }
+
+    static ProductSort readSort(DataInputStream in) throws IOException {
+        int sort = in.readUnsignedByte();
+        if (sort >= SORTS.length)
+            throw new IOException("Unknown sort " + sort);
+        return SORTS[sort];
+    }
+
+    static void writeDiscounts(DataOutputStream out, Map<Rating, BigDecimal> discounts) throws IOException {
+        out.writeInt(discounts.size());
+        for (Map.Entry<Rating, BigDecimal> discount : discounts.entrySet()) {
+            out.writeByte(discount.getKey().ordinal());
+            SnapshotCodec.writeDecimal(out, discount.getValue());
+        }
+    }
+
+    static Map<Rating, BigDecimal> readDiscounts(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<Rating, BigDecimal> discounts = new EnumMap<>(Rating.class);
+        for (int i = 0; i < count; i++)
+            discounts.put(Rateable.convert(in.readByte()), SnapshotCodec.readDecimal(in));
+        return discounts;
+    }
+
+    private static void writeOptionalDecimal(DataOutputStream out, BigDecimal value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            SnapshotCodec.writeDecimal(out, value);
+    }
+
+    private static BigDecimal readOptionalDecimal(DataInputStream in) throws IOException {
+        return in.readBoolean() ? SnapshotCodec.readDecimal(in) : null;
+    }
+}
@@ -0,0 +1,76 @@
+package labs.pm.data;
+
+import java.util.Arrays;
+
+/**
+ * {@code ShardRing} assigns product ids to shards by consistent hashing.
+ * <br>
+ * Each shard owns a number of virtual nodes spread around a ring of 32-bit
+ * hashes, an id belongs to the shard of the first node at or after the hash
+ * of the id. Adding a shard moves only the ids of its new nodes, about one
+ * in {@code shards} ids, the other ids stay where they are. The ring depends
+ * only on the number of shards and virtual nodes, so every process that
+ * builds it with the same numbers routes ids the same way.
+ * @version 1.0
+ * @author Ewa
+ */
+final class ShardRing {
+    private final int shards;
+    private final int[] hashes;
+    private final int[] owners;
+
+    /**
+     * @param shards number of shards
+     * @param virtualNodes number of nodes of each shard on the ring
+     */
+    ShardRing(int shards, int virtualNodes) {
+        if (shards < 1 || virtualNodes < 1)
+            throw new IllegalArgumentException("Ring needs at least one shard and one virtual node");
+        this.shards = shards;
+        long[] nodes = new long[shards * virtualNodes];
+        for (int shard = 0; shard < shards; shard++) {
+            for (int node = 0; node < virtualNodes; node++) {
+                int hash = mix(shard * 0x10001 + node * 0x3F1 + 0x51ED27);
+                nodes[shard * virtualNodes + node] = ((long) hash << 32) | shard;
+            }
+        }
+        Arrays.sort(nodes);
+        hashes = new int[nodes.length];
+        owners = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            hashes[i] = (int) (nodes[i] >> 32);
+            owners[i] = (int) nodes[i];
+        }
+    }
+
+    int getShards() {
+        return shards;
+    }
+
+    /**
+     * @param id of a product
+     * @return shard of the product, from 0 to {@code shards - 1}
+     */
+    int shardOf(int id) {
+        if (shards == 1)
+            return 0;
+        int hash = mix(id);
+        int node = Arrays.binarySearch(hashes, hash);
+        if (node < 0)
+            node = -node - 1;
+        return owners[(node == hashes.length) ? 0 : node];
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads consecutive ids over the whole ring
+     */
+    private static int mix(int value) {
+        int hash = value;
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
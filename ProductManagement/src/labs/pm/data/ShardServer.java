@@ -0,0 +1,187 @@
+package labs.pm.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@code ShardServer} serves the catalog of one shard to {@link ShardClient}s
+ * over {@link ShardProtocol}.
+ * <br>
+ * The server listens on the loopback address, each connection is served by
+ * its own thread that reads a request, calls the catalog and writes the response,
+ * so requests of different connections run concurrently and the catalog locks
+ * decide what can run in parallel.
+ * @version 1.0
+ * @author Ewa
+ */
+public class ShardServer implements Closeable {
+    private static final Logger logger = Logger.getLogger(ShardServer.class.getName());
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_INITIAL_CAPACITY = 1024;
+
+    private final ProductManager catalog;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "shard-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Starts serving the catalog
+     * @param port to listen on, 0 picks a free port
+     * @param catalog catalog of the shard
+     * @throws IOException if the port can't be opened
+     */
+    public ShardServer(int port, ProductManager catalog) throws IOException {
+        this.catalog = catalog;
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "shard-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.log(Level.INFO, "Shard server listening on port " + getPort());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.execute(() -> serve(socket));
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Shard server stopped");
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE))) {
+            while (true) {
+                byte operation;
+                try {
+                    operation = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                handle(operation, in, out);
+                out.flush();
+            }
+        } catch (SocketException e) {
+            logger.log(Level.FINE, "Shard connection closed " + e.getMessage());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error serving shard connection " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the arguments of one request, calls the catalog and writes the response.
+     * A failure of the catalog is sent to the client, the connection stays open.
+     */
+    private void handle(byte operation, DataInputStream in, DataOutputStream out) throws IOException {
+        try {
+            switch (operation) {
+                case ShardProtocol.CREATE_PRODUCT: {
+                    Product product = ShardProtocol.readProduct(in);
+                    Product created = (product instanceof Food)
+                            ? catalog.createProduct(product.getId(), product.getName(), product.getPrice(),
+                                    product.getRating(), product.getBestBefore())
+                            : catalog.createProduct(product.getId(), product.getName(), product.getPrice(),
+                                    product.getRating());
+                    out.writeByte(ShardProtocol.OK);
+                    ShardProtocol.writeProduct(out, created);
+                    break;
+                }
+                case ShardProtocol.REVIEW_PRODUCT: {
+                    int id = in.readInt();
+                    Rating rating = Rateable.convert(in.readByte());
+                    Product product = catalog.reviewProduct(id, rating, SnapshotCodec.readString(in));
+                    out.writeByte(ShardProtocol.OK);
+                    ShardProtocol.writeProduct(out, product);
+                    break;
+                }
+                case ShardProtocol.REVIEW_PRODUCTS: {
+                    int count = in.readInt();
+                    if (count < 0)
+                        throw new IOException("Review of " + count + " products");
+                    List<ReviewRequest> requests = new ArrayList<>(Math.min(count, MAX_INITIAL_CAPACITY));
+                    for (int i = 0; i < count; i++)
+                        requests.add(new ReviewRequest(in.readInt(), Rateable.convert(in.readByte()),
+                                SnapshotCodec.readString(in)));
+                    List<Product> products = catalog.reviewProducts(requests);
+                    out.writeByte(ShardProtocol.OK);
+                    ShardProtocol.writeProducts(out, products);
+                    break;
+                }
+                case ShardProtocol.FIND_PRODUCT: {
+                    Product product = catalog.findProduct(in.readInt());
+                    out.writeByte(ShardProtocol.OK);
+                    ShardProtocol.writeProduct(out, product);
+                    break;
+                }
+                case ShardProtocol.FIND_PRODUCTS: {
+                    List<Product> products = catalog.findProducts(ShardProtocol.readQuery(in));
+                    out.writeByte(ShardProtocol.OK);
+                    ShardProtocol.writeProducts(out, products);
+                    break;
+                }
+                case ShardProtocol.FIND_PAGE: {
+                    ProductQuery query = ShardProtocol.readQuery(in);
+                    ProductSort sort = ShardProtocol.readSort(in);
+                    int offset = in.readInt();
+                    List<Product> products = catalog.findProducts(query, sort, offset, in.readInt());
+                    out.writeByte(ShardProtocol.OK);
+                    ShardProtocol.writeProducts(out, products);
+                    break;
+                }
+                case ShardProtocol.FIND_REVIEWS: {
+                    List<Review> reviews = catalog.findReviews(in.readInt());
+                    out.writeByte(ShardProtocol.OK);
+                    ShardProtocol.writeReviews(out, reviews);
+                    break;
+                }
+                case ShardProtocol.GET_DISCOUNTS: {
+                    Map<Rating, BigDecimal> discounts = catalog.getDiscounts();
+                    out.writeByte(ShardProtocol.OK);
+                    ShardProtocol.writeDiscounts(out, discounts);
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown shard operation " + operation);
+            }
+        } catch (ProductManagerException | RuntimeException e) {
+            if (e instanceof RuntimeException)
+                logger.log(Level.SEVERE, "Error in shard operation " + operation + " " + e.getMessage(), e);
+            out.writeByte(ShardProtocol.FAILED);
+            SnapshotCodec.writeString(out, String.valueOf(e.getMessage()));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+}
@@ -0,0 +1,245 @@
+package labs.pm.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * {@code ShardedProductManager} partitions the catalog by product id over
+ * several shards, each of them a whole catalog of its own.
+ * <br>
+ * Ids are assigned to shards by the {@link ShardRing} of {@code shard.virtual.nodes}
+ * nodes per shard. Operations on one product go to its shard only, operations on
+ * the whole catalog are sent to all shards at once and their results are merged:
+ * products are joined in the order of the shards, pages are merged in the order of
+ * the listing and discounts are added up. Shards run in this process, made by
+ * {@link ProductFileManager#newShard(int, int)}, or in other processes behind a
+ * {@link ShardServer}.
+ * @version 1.0
+ * @author Ewa
+ */
+public class ShardedProductManager implements ProductManager, Closeable {
+    private final List<ProductManager> shards;
+    private final ShardRing ring;
+    private final ExecutorService scatter;
+
+    @FunctionalInterface
+    private interface ShardCall<T> {
+        T call(ProductManager shard, int index) throws ProductManagerException;
+    }
+
+    /**
+     * @param shards catalogs of the shards, shard {@code i} owns the ids
+     *               the ring of {@code shards.size()} shards assigns to {@code i}
+     */
+    public ShardedProductManager(List<? extends ProductManager> shards) {
+        if (shards.isEmpty())
+            throw new IllegalArgumentException("Sharded catalog needs at least one shard");
+        this.shards = List.copyOf(shards);
+        this.ring = newRing(shards.size());
+        this.scatter = Executors.newFixedThreadPool(shards.size(), task -> {
+            Thread thread = new Thread(task, "shard-scatter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static ShardRing newRing(int shards) {
+        ResourceBundle config = ResourceBundle.getBundle("labs.pm.data.config");
+        return new ShardRing(shards, Integer.parseInt(config.getString("shard.virtual.nodes").trim()));
+    }
+
+    /**
+     * Creates a catalog of shards running in this process
+     * @param shards number of shards
+     * @return the sharded catalog
+     */
+    public static ShardedProductManager inProcess(int shards) {
+        List<ProductManager> catalogs = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++)
+            catalogs.add(ProductFileManager.newShard(shard, shards));
+        return new ShardedProductManager(catalogs);
+    }
+
+    /**
+     * Creates a catalog of shards served by {@link ShardServer}s, connections
+     * are opened on first use
+     * @param addresses of the servers, in the order of the shards
+     * @return the sharded catalog
+     */
+    public static ShardedProductManager connect(List<InetSocketAddress> addresses) {
+        List<ProductManager> clients = new ArrayList<>(addresses.size());
+        for (InetSocketAddress address : addresses)
+            clients.add(new ShardClient(address));
+        return new ShardedProductManager(clients);
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * @param id of a product
+     * @return index of the shard that owns the product
+     */
+    public int shardOf(int id) {
+        return ring.shardOf(id);
+    }
+
+    private ProductManager shard(int id) {
+        return shards.get(ring.shardOf(id));
+    }
+
+    /**
+     * Calls all shards at once, the first shard is called on the calling thread
+     * @return results of the shards, in the order of the shards
+     * @throws ProductManagerException if any shard fails
+     */
+    private <T> List<T> scatter(ShardCall<T> call) throws ProductManagerException {
+        List<Future<T>> futures = new ArrayList<>(shards.size() - 1);
+        for (int shard = 1; shard < shards.size(); shard++) {
+            int index = shard;
+            futures.add(scatter.submit(() -> call.call(shards.get(index), index)));
+        }
+
+        List<T> results = new ArrayList<>(shards.size());
+        results.add(call.call(shards.get(0), 0));
+        try {
+            for (Future<T> future : futures)
+                results.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProductManagerException("Interrupted waiting for shards", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ProductManagerException)
+                throw (ProductManagerException) e.getCause();
+            throw new ProductManagerException("Shard failed " + e.getCause().getMessage(), e.getCause());
+        }
+        return results;
+    }
+
+    private static List<Product> join(List<List<Product>> lists) {
+        List<Product> products = new ArrayList<>(lists.stream().mapToInt(List::size).sum());
+        lists.forEach(products::addAll);
+        return products;
+    }
+
+    @Override
+    public Product createProduct(int id, String name, BigDecimal price, Rating rating) throws ProductManagerException {
+        return shard(id).createProduct(id, name, price, rating);
+    }
+
+    @Override
+    public Product createProduct(int id, String name, BigDecimal price, Rating rating, LocalDate bestBefore)
+            throws ProductManagerException {
+        return shard(id).createProduct(id, name, price, rating, bestBefore);
+    }
+
+    @Override
+    public Product reviewProduct(int id, Rating rating, String comments) throws ProductManagerException {
+        return shard(id).reviewProduct(id, rating, comments);
+    }
+
+    /**
+     * Splits the batch by shard, the shards review their parts at once
+     * @return for each request the product after the batch, or null if there is no such product
+     */
+    @Override
+    public List<Product> reviewProducts(Collection<ReviewRequest> requests) throws ProductManagerException {
+        List<List<ReviewRequest>> parts = new ArrayList<>(shards.size());
+        for (int shard = 0; shard < shards.size(); shard++)
+            parts.add(new ArrayList<>());
+        for (ReviewRequest request : requests)
+            parts.get(ring.shardOf(request.getId())).add(request);
+
+        List<List<Product>> reviewed = scatter((shard, index) -> {
+            List<ReviewRequest> part = parts.get(index);
+            return part.isEmpty() ? List.of() : shard.reviewProducts(part);
+        });
+        int[] next = new int[shards.size()];
+        List<Product> results = new ArrayList<>(requests.size());
+        for (ReviewRequest request : requests) {
+            int shard = ring.shardOf(request.getId());
+            results.add(reviewed.get(shard).get(next[shard]++));
+        }
+        return results;
+    }
+
+    @Override
+    public Product findProduct(int id) throws ProductManagerException {
+        return shard(id).findProduct(id);
+    }
+
+    @Override
+    public List<Product> findProducts(Predicate<Product> filter) throws ProductManagerException {
+        return join(scatter((shard, index) -> shard.findProducts(filter)));
+    }
+
+    @Override
+    public List<Product> findProducts(ProductQuery query) throws ProductManagerException {
+        return join(scatter((shard, index) -> shard.findProducts(query)));
+    }
+
+    /**
+     * Each shard selects its first {@code offset + limit} products of the listing,
+     * the page is selected from them
+     */
+    @Override
+    public List<Product> findProducts(ProductQuery query, ProductSort sort, int offset, int limit)
+            throws ProductManagerException {
+        if (offset < 0 || limit < 0)
+            throw new IllegalArgumentException("Offset and limit of a page can't be negative");
+        int pageEnd = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+        TopK<Product> page = new TopK<>(pageEnd, sort.getComparator());
+        for (List<Product> products : scatter((shard, index) -> shard.findProducts(query, sort, 0, pageEnd)))
+            products.forEach(page::offer);
+        return page.toList(offset);
+    }
+
+    @Override
+    public List<Review> findReviews(int id) throws ProductManagerException {
+        return shard(id).findReviews(id);
+    }
+
+    @Override
+    public Stream<Review> streamReviews(int id) throws ProductManagerException {
+        return shard(id).streamReviews(id);
+    }
+
+    /**
+     * @return sum of the discounts of all shards for each rating
+     */
+    @Override
+    public Map<Rating, BigDecimal> getDiscounts() throws ProductManagerException {
+        Map<Rating, BigDecimal> discounts = new EnumMap<>(Rating.class);
+        for (Map<Rating, BigDecimal> shardDiscounts : scatter((shard, index) -> shard.getDiscounts()))
+            shardDiscounts.forEach((rating, discount) -> discounts.merge(rating, discount, BigDecimal::add));
+        return discounts;
+    }
+
+    /**
+     * Stops the scatter threads and closes the connections of remote shards
+     */
+    @Override
+    public void close() throws IOException {
+        scatter.shutdown();
+        for (ProductManager shard : shards) {
+            if (shard instanceof Closeable)
+                ((Closeable) shard).close();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package labs.pm.data;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * {@code SnapshotCodec} writes and reads compact binary snapshots of the catalog.
+ * <br>
+ * A snapshot starts with a magic number and a format version, followed by
+ * one entry per product with the reviews of the product, an end marker and
+ * a CRC32 checksum of everything before it. Entries are written one by one,
+ * so a snapshot can be streamed without holding the whole catalog.
+ * <br>
+ * Since version 2 a review comment written before is replaced by the number of its
+ * first occurrence, the first 65536 distinct comments of up to 512 characters
+ * are numbered. Version 1 snapshots are still read.
+ * @version 1.0
+ * @author Ewa
+ */
+public final class SnapshotCodec {
+    static final int MAGIC = 0x504D534E;
+    static final short VERSION = 2;
+
+    private static final byte ENTRY = 1;
+    private static final byte END = 0;
+    private static final byte FOOD = 'F';
+    private static final byte DRINK = 'D';
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte NEW_COMMENT = 0;
+    private static final byte SHARED_COMMENT = 1;
+    private static final int MAX_SHARED_COMMENTS = 1 << 16;
+    private static final int MAX_SHARED_LENGTH = 512;
+
+    private SnapshotCodec() {
+    }
+
+    /**
+     * {@code Writer} streams catalog entries into a snapshot,
+     * the checksum is written when the writer is closed.
+     */
+    public static final class Writer implements Closeable {
+        private final CheckedOutputStream checked;
+        private final DataOutputStream out;
+        private final Map<String, Integer> comments;
+        private int entries;
+
+        public Writer(OutputStream target) throws IOException {
+            this(target, true);
+        }
+
+        /**
+         * @param target stream of the snapshot
+         * @param shareComments false writes every comment in full into
+         * a version 1 snapshot, which older versions can read
+         * @throws IOException if the header can't be written
+         */
+        public Writer(OutputStream target, boolean shareComments) throws IOException {
+            checked = new CheckedOutputStream(new BufferedOutputStream(target, BUFFER_SIZE), new CRC32());
+            out = new DataOutputStream(checked);
+            comments = shareComments ? new HashMap<>() : null;
+            out.writeInt(MAGIC);
+            out.writeShort(shareComments ? VERSION : 1);
+        }
+
+        /**
+         * Writes one product with its reviews
+         * @param product to write
+         * @param reviews of the product
+         * @throws IOException if the entry can't be written
+         */
+        public void write(Product product, List<Review> reviews) throws IOException {
+            out.writeByte(ENTRY);
+            out.writeByte(product instanceof Food ? FOOD : DRINK);
+            out.writeInt(product.getId());
+            writeString(out, product.getName());
+            writeDecimal(out, product.getPrice());
+            out.writeByte(product.getRating().ordinal());
+            if (product instanceof Food)
+                out.writeLong(product.getBestBefore().toEpochDay());
+
+            out.writeInt(reviews.size());
+            for (Review review : reviews) {
+                out.writeByte(review.getRating().ordinal());
+                writeComments(review.getComments());
+            }
+            entries++;
+        }
+
+        private void writeComments(String text) throws IOException {
+            if (comments == null) {
+                writeString(out, text);
+                return;
+            }
+            Integer number = comments.get(text);
+            if (number != null) {
+                out.writeByte(SHARED_COMMENT);
+                out.writeInt(number);
+                return;
+            }
+            out.writeByte(NEW_COMMENT);
+            writeString(out, text);
+            if (isShared(comments.size(), text))
+                comments.put(text, comments.size());
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.writeByte(END);
+            out.flush();
+            long checksum = checked.getChecksum().getValue();
+            out.writeLong(checksum);
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a whole snapshot and verifies its checksum
+     * @param source stream with the snapshot
+     * @param consumer receives each product with its reviews
+     * @return number of read products
+     * @throws IOException if the snapshot can't be read, has an unknown
+     * version or a wrong checksum
+     */
+    public static int read(InputStream source, BiConsumer<Product, List<Review>> consumer) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(source, BUFFER_SIZE), new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a snapshot file");
+        short version = in.readShort();
+        if (version != 1 && version != VERSION)
+            throw new IOException("Unsupported snapshot version " + version);
+
+        List<String> comments = new ArrayList<>();
+        int entries = 0;
+        for (byte marker = in.readByte(); marker == ENTRY; marker = in.readByte()) {
+            byte type = in.readByte();
+            int id = in.readInt();
+            String name = readString(in);
+            BigDecimal price = readDecimal(in);
+            Rating rating = Rateable.convert(in.readByte());
+            Product product;
+            switch (type) {
+                case FOOD:
+                    product = new Food(id, name, price, rating, LocalDate.ofEpochDay(in.readLong()));
+                    break;
+                case DRINK:
+                    product = new Drink(id, name, price, rating);
+                    break;
+                default:
+                    throw new IOException("Unknown product type " + type + " of product " + id);
+            }
+
+            int count = in.readInt();
+            List<Review> reviews = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Rating reviewRating = Rateable.convert(in.readByte());
+                reviews.add(new Review(reviewRating, (version == 1) ? readString(in) : readComments(in, comments)));
+            }
+            consumer.accept(product, reviews);
+            entries++;
+        }
+
+        long checksum = checked.getChecksum().getValue();
+        if (in.readLong() != checksum)
+            throw new IOException("Snapshot checksum doesn't match");
+        return entries;
+    }
+
+    private static String readComments(DataInputStream in, List<String> comments) throws IOException {
+        byte tag = in.readByte();
+        if (tag == SHARED_COMMENT) {
+            int number = in.readInt();
+            if (number < 0 || number >= comments.size())
+                throw new IOException("Unknown shared comment " + number);
+            return comments.get(number);
+        }
+        if (tag != NEW_COMMENT)
+            throw new IOException("Unknown comment tag " + tag);
+        String text = readString(in);
+        if (isShared(comments.size(), text))
+            comments.add(text);
+        return text;
+    }
+
+    /**
+     * @param shared number of comments shared so far
+     * @return whether a new comment gets a number the same comment can be written as later
+     */
+    private static boolean isShared(int shared, String text) {
+        return shared < MAX_SHARED_COMMENTS && text.length() <= MAX_SHARED_LENGTH;
+    }
+
+    static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return readString(in, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads a string of at most the given number of bytes. The bytes are read
+     * as they arrive, so a corrupt or hostile length can't allocate more memory
+     * than the stream actually holds.
+     * @param limit largest length accepted, the bytes left of a request
+     * @throws IOException if the length is negative, above the limit or the stream ends first
+     */
+    static String readString(DataInputStream in, int limit) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > limit)
+            throw new IOException("String of " + length + " bytes, at most " + limit + " expected");
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length)
+            throw new EOFException("String of " + length + " bytes ends after " + bytes.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeDecimal(DataOutputStream out, BigDecimal value) throws IOException {
+        out.writeInt(value.scale());
+        if (value.unscaledValue().bitLength() < 64) {
+            out.writeByte(0);
+            out.writeLong(value.unscaledValue().longValue());
+        } else {
+            byte[] unscaled = value.unscaledValue().toByteArray();
+            out.writeByte(unscaled.length);
+            out.write(unscaled);
+        }
+    }
+
+    static BigDecimal readDecimal(DataInputStream in) throws IOException {
+        int scale = in.readInt();
+        int length = in.readUnsignedByte();
+        if (length == 0)
+            return BigDecimal.valueOf(in.readLong(), scale);
+        byte[] unscaled = new byte[length];
+        in.readFully(unscaled);
+        return new BigDecimal(new BigInteger(unscaled), scale);
+    }
+}
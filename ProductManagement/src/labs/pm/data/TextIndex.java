@@ -0,0 +1,489 @@
+package labs.pm.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@code TextIndex} is an inverted index of the words of product names
+ * and review comments.
+ * <br>
+ * Text is split into words of letters and digits in lower case. Each word maps
+ * to the ids of the products it appears in, with the number of times it appears,
+ * in a posting list of ascending ids compressed as variable length deltas. Words
+ * added to a product after the list was compressed wait in a sorted buffer of up
+ * to an eighth of the list, merged into the list when it is full, so indexing
+ * a review costs about the same whatever the size of the catalog.
+ * <br>
+ * A query is a list of words that all have to match, {@code OR} between words
+ * starts another alternative and a word ending with {@code *} matches all words
+ * with that prefix. Matching products are ranked by the number of query words
+ * they match and then by the number of times those words appear.
+ * <br>
+ * The index has its own lock, so products reviewed concurrently under
+ * different product locks can update it safely.
+ * @version 1.0
+ * @author Ewa
+ */
+class TextIndex {
+    private static final int PENDING_LIMIT = 32;
+    private static final int MAX_WORD_LENGTH = 64;
+    private static final Comparator<Hit> RANKING = Comparator.<Hit>comparingInt(hit -> hit.words).reversed()
+            .thenComparing(Comparator.<Hit>comparingInt(hit -> hit.occurrences).reversed())
+            .thenComparingInt(hit -> hit.id);
+
+    private final NavigableMap<String, Postings> postings = new TreeMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Lock writeLock = lock.writeLock();
+    private final Lock readLock = lock.readLock();
+
+    static TextIndex of(ProductIndex index) {
+        TextIndex textIndex = new TextIndex();
+        for (Product product : index.products())
+            textIndex.update(product.getId(), words(product, index.getReviews(product.getId())), 1);
+        return textIndex;
+    }
+
+    void add(Product product, List<Review> reviews) {
+        Map<String, Integer> words = words(product, reviews);
+        try {
+            writeLock.lock();
+            update(product.getId(), words, 1);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Adds the comments of new reviews of a product
+     */
+    void addReviews(int id, List<Review> reviews) {
+        Map<String, Integer> words = new HashMap<>();
+        reviews.forEach(review -> split(review.getComments(), words));
+        try {
+            writeLock.lock();
+            update(id, words, 1);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void replace(Product oldProduct, List<Review> oldReviews, Product newProduct, List<Review> newReviews) {
+        Map<String, Integer> oldWords = words(oldProduct, oldReviews);
+        Map<String, Integer> newWords = words(newProduct, newReviews);
+        try {
+            writeLock.lock();
+            update(oldProduct.getId(), oldWords, -1);
+            update(newProduct.getId(), newWords, 1);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void remove(Product product, List<Review> reviews) {
+        Map<String, Integer> words = words(product, reviews);
+        try {
+            writeLock.lock();
+            update(product.getId(), words, -1);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void clear() {
+        try {
+            writeLock.lock();
+            postings.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @param sign 1 to add the words, -1 to remove them
+     */
+    private void update(int id, Map<String, Integer> words, int sign) {
+        words.forEach((word, count) -> {
+            Postings list = (sign > 0) ? postings.computeIfAbsent(word, w -> new Postings()) : postings.get(word);
+            if (list != null && list.add(id, sign * count) && list.isEmpty())
+                postings.remove(word);
+        });
+    }
+
+    /**
+     * Reviews kept in the review log are streamed without filling its cache
+     * @return words of the name of a product and the comments of its reviews with their counts
+     */
+    private static Map<String, Integer> words(Product product, List<Review> reviews) {
+        Map<String, Integer> words = new HashMap<>();
+        split(product.getName(), words);
+        if (reviews != null)
+            reviews.stream().forEach(review -> split(review.getComments(), words));
+        return words;
+    }
+
+    /**
+     * Adds the words of a text to the counts of words
+     */
+    private static void split(String text, Map<String, Integer> words) {
+        if (text == null)
+            return;
+        for (String word : split(text))
+            words.merge(word, 1, Integer::sum);
+    }
+
+    private static List<String> split(String text) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); ) {
+            int codePoint = (i < text.length()) ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (start < 0)
+                    start = i;
+            } else if (start >= 0) {
+                if (i - start <= MAX_WORD_LENGTH)
+                    words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return words;
+    }
+
+    /**
+     * Finds the products matching a query
+     * @param query words to match, see the class comment
+     * @param limit largest number of ids to return
+     * @return ids of the best matching products, best first
+     */
+    int[] search(String query, int limit) {
+        List<List<Word>> alternatives = parse(query);
+        if (alternatives.isEmpty() || limit <= 0)
+            return new int[0];
+
+        TopK<Hit> best = new TopK<>(limit, RANKING);
+        try {
+            readLock.lock();
+            Map<Word, Matches> matches = new HashMap<>();
+            alternatives.forEach(words -> words.forEach(word -> matches.computeIfAbsent(word, this::find)));
+
+            int[] ids = new int[0];
+            for (List<Word> words : alternatives) {
+                Matches[] lists = words.stream().map(matches::get)
+                        .sorted(Comparator.comparingInt(list -> list.ids.length)).toArray(Matches[]::new);
+                int[] all = lists[0].ids;
+                for (int i = 1; i < lists.length && all.length > 0; i++)
+                    all = intersect(all, lists[i].ids);
+                ids = union(ids, all);
+            }
+
+            for (int id : ids) {
+                Hit hit = new Hit(id);
+                for (Matches list : matches.values()) {
+                    int i = Arrays.binarySearch(list.ids, id);
+                    if (i >= 0) {
+                        hit.words++;
+                        hit.occurrences += list.counts[i];
+                    }
+                }
+                best.offer(hit);
+            }
+        } finally {
+            readLock.unlock();
+        }
+        return best.toList(0).stream().mapToInt(hit -> hit.id).toArray();
+    }
+
+    /**
+     * @return alternatives of the query, each a list of words that all have to match
+     */
+    private static List<List<Word>> parse(String query) {
+        List<List<Word>> alternatives = new ArrayList<>();
+        List<Word> words = new ArrayList<>();
+        for (String part : query.trim().split("\\s+")) {
+            if (part.equals("OR")) {
+                if (!words.isEmpty())
+                    alternatives.add(words);
+                words = new ArrayList<>();
+            } else if (!part.equals("AND")) {
+                boolean prefix = part.endsWith("*");
+                List<String> split = split(prefix ? part.substring(0, part.length() - 1) : part);
+                for (int i = 0; i < split.size(); i++)
+                    words.add(new Word(split.get(i), prefix && i == split.size() - 1));
+            }
+        }
+        if (!words.isEmpty())
+            alternatives.add(words);
+        return alternatives;
+    }
+
+    /**
+     * @return ids and counts of the products of a word, or of all words of a prefix
+     */
+    private Matches find(Word word) {
+        if (!word.prefix) {
+            Postings list = postings.get(word.text);
+            return (list == null) ? new Matches(new int[0], new int[0]) : list.decode();
+        }
+        List<Matches> lists = new ArrayList<>();
+        int size = 0;
+        for (Postings list : postings.subMap(word.text, true, word.text + Character.MAX_VALUE, false).values()) {
+            Matches matches = list.decode();
+            lists.add(matches);
+            size += matches.ids.length;
+        }
+        if (lists.size() == 1)
+            return lists.get(0);
+
+        long[] entries = new long[size];
+        int n = 0;
+        for (Matches matches : lists) {
+            for (int i = 0; i < matches.ids.length; i++)
+                entries[n++] = ((long) matches.ids[i] << 32) | (matches.counts[i] & 0xFFFFFFFFL);
+        }
+        Arrays.sort(entries);
+        int[] ids = new int[size];
+        int[] counts = new int[size];
+        int distinct = 0;
+        for (long entry : entries) {
+            int id = (int) (entry >> 32);
+            if (distinct > 0 && ids[distinct - 1] == id) {
+                counts[distinct - 1] += (int) entry;
+            } else {
+                ids[distinct] = id;
+                counts[distinct++] = (int) entry;
+            }
+        }
+        return new Matches(Arrays.copyOf(ids, distinct), Arrays.copyOf(counts, distinct));
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        if (a.length == 0)
+            return b;
+        int[] result = new int[a.length + b.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                result[n++] = a[i++];
+            } else if (a[i] > b[j]) {
+                result[n++] = b[j++];
+            } else {
+                result[n++] = a[i++];
+                j++;
+            }
+        }
+        while (i < a.length)
+            result[n++] = a[i++];
+        while (j < b.length)
+            result[n++] = b[j++];
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * @return number of indexed words
+     */
+    int size() {
+        try {
+            readLock.lock();
+            return postings.size();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @return bytes of the compressed posting lists
+     */
+    long compressedBytes() {
+        try {
+            readLock.lock();
+            return postings.values().stream().mapToLong(list -> list.length).sum();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private static final class Word {
+        private final String text;
+        private final boolean prefix;
+
+        private Word(String text, boolean prefix) {
+            this.text = text;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Word)) return false;
+            Word word = (Word) o;
+            return prefix == word.prefix && text.equals(word.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return text.hashCode() * 31 + (prefix ? 1 : 0);
+        }
+    }
+
+    /**
+     * Ascending ids of the products that contain a word and the counts of the word
+     */
+    private static final class Matches {
+        private final int[] ids;
+        private final int[] counts;
+
+        private Matches(int[] ids, int[] counts) {
+            this.ids = ids;
+            this.counts = counts;
+        }
+    }
+
+    private static final class Hit {
+        private final int id;
+        private int words;
+        private int occurrences;
+
+        private Hit(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Posting list of one word, pairs of an id delta and a count as variable
+     * length ints, followed by a sorted buffer of changes not merged yet
+     */
+    private static final class Postings {
+        private byte[] data = new byte[0];
+        private int length;
+        private int size;
+        private int[] pendingIds = new int[4];
+        private int[] pendingCounts = new int[4];
+        private int pending;
+
+        /**
+         * @param count number of new occurrences, negative to remove occurrences
+         * @return true if the buffer was merged into the list
+         */
+        boolean add(int id, int count) {
+            int i = Arrays.binarySearch(pendingIds, 0, pending, id);
+            if (i >= 0) {
+                pendingCounts[i] += count;
+            } else {
+                i = -i - 1;
+                if (pending == pendingIds.length) {
+                    pendingIds = Arrays.copyOf(pendingIds, pending * 2);
+                    pendingCounts = Arrays.copyOf(pendingCounts, pending * 2);
+                }
+                System.arraycopy(pendingIds, i, pendingIds, i + 1, pending - i);
+                System.arraycopy(pendingCounts, i, pendingCounts, i + 1, pending - i);
+                pendingIds[i] = id;
+                pendingCounts[i] = count;
+                pending++;
+            }
+            if (pending < Math.max(PENDING_LIMIT, size >> 3) && count > 0)
+                return false;
+            Matches merged = decode();
+            encode(merged.ids, merged.counts);
+            return true;
+        }
+
+        boolean isEmpty() {
+            return size == 0 && pending == 0;
+        }
+
+        /**
+         * @return the list merged with its buffer, without ids left with no occurrences
+         */
+        Matches decode() {
+            int[] ids = new int[size + pending];
+            int[] counts = new int[size + pending];
+            int n = 0;
+            int next = 0;
+            int id = 0;
+            for (int position = 0, read = 0; read < size; read++) {
+                int delta = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = data[position++];
+                    delta |= (b & 0x7F) << shift;
+                    if (b >= 0)
+                        break;
+                }
+                int count = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = data[position++];
+                    count |= (b & 0x7F) << shift;
+                    if (b >= 0)
+                        break;
+                }
+                id += delta;
+                for (; next < pending && pendingIds[next] < id; next++)
+                    n = append(ids, counts, n, pendingIds[next], pendingCounts[next]);
+                if (next < pending && pendingIds[next] == id)
+                    count += pendingCounts[next++];
+                n = append(ids, counts, n, id, count);
+            }
+            for (; next < pending; next++)
+                n = append(ids, counts, n, pendingIds[next], pendingCounts[next]);
+            return new Matches(Arrays.copyOf(ids, n), Arrays.copyOf(counts, n));
+        }
+
+        private static int append(int[] ids, int[] counts, int n, int id, int count) {
+            if (count <= 0)
+                return n;
+            ids[n] = id;
+            counts[n] = count;
+            return n + 1;
+        }
+
+        private void encode(int[] ids, int[] counts) {
+            byte[] encoded = new byte[ids.length * 10];
+            int position = 0;
+            int previous = 0;
+            for (int i = 0; i < ids.length; i++) {
+                position = writeInt(encoded, position, ids[i] - previous);
+                position = writeInt(encoded, position, counts[i]);
+                previous = ids[i];
+            }
+            data = Arrays.copyOf(encoded, position);
+            length = position;
+            size = ids.length;
+            pending = 0;
+        }
+
+        private static int writeInt(byte[] data, int position, int value) {
+            while ((value & ~0x7F) != 0) {
+                data[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[position++] = (byte) value;
+            return position;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package labs.pm.data;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * {@code TopK} keeps the first {@code k} elements of an order
+ * in a bounded heap, with the last kept element at its top,
+ * so selecting a page of n elements takes O(n log k) instead of a full sort.
+ * @version 1.0
+ * @author Ewa
+ */
+final class TopK<T> {
+    private final int k;
+    private final Comparator<? super T> order;
+    private final PriorityQueue<T> heap;
+
+    /**
+     * @param k number of elements to keep
+     * @param order of the elements
+     */
+    TopK(int k, Comparator<? super T> order) {
+        this.k = k;
+        this.order = order;
+        this.heap = new PriorityQueue<>(Math.max(1, Math.min(k, 1024)), order.reversed());
+    }
+
+    void offer(T element) {
+        if (heap.size() < k) {
+            heap.add(element);
+        } else if (k > 0 && order.compare(element, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(element);
+        }
+    }
+
+    boolean isFull() {
+        return heap.size() >= k;
+    }
+
+    /**
+     * @param offset number of first kept elements to skip
+     * @return kept elements after the offset, in order
+     */
+    List<T> toList(int offset) {
+        List<T> sorted = new ArrayList<>(heap);
+        sorted.sort(order);
+        return (offset >= sorted.size()) ? new ArrayList<>() : new ArrayList<>(sorted.subList(offset, sorted.size()));
+    }
+}
@@ -0,0 +1,460 @@
+package labs.pm.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * {@code WriteAheadLog} makes new products and reviews durable, as well as
+ * products reloaded from changed files or removed with their files.
+ * <br>
+ * Each change is appended to an in-memory batch as a record with a CRC32
+ * checksum and the caller then waits in {@link #sync(long)} until its record
+ * is on disk. The first waiting caller leads a group commit: it waits up to
+ * the sync window for concurrent callers to append more records, writes the
+ * whole batch and forces it to disk once for all of them.
+ * <br>
+ * A review record carries the number of reviews its product has with the review,
+ * so replaying a record already contained in the catalog is skipped. A reload
+ * record carries the product with all its reviews and replaces both, the review
+ * records appended after it follow in the same or a newer log. That lets a
+ * checkpoint write its snapshot while the catalog changes: the log is rotated
+ * first, the previous log is deleted once the snapshot is complete and a start
+ * after a crash replays both logs on top of the last complete snapshot. When a
+ * previous log is still there, because a checkpoint failed or didn't finish
+ * before a crash, the current log is appended to it instead of replacing it.
+ * <br>
+ * A batch that can't be written is cut off the log, so later batches follow the
+ * last durable one. When the log can't be cut the log is failed and every later
+ * record is reported as not written.
+ * @version 1.0
+ * @author Ewa
+ */
+final class WriteAheadLog implements Closeable {
+    static final int MAGIC = 0x504D574C;
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 8;
+    private static final byte PRODUCT = 'P';
+    private static final byte REVIEW = 'R';
+    private static final byte RELOAD = 'L';
+    private static final byte REMOVE = 'X';
+    private static final byte FOOD = 'F';
+    private static final byte DRINK = 'D';
+
+    private final Path file;
+    private final Path previousFile;
+    private final long windowNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private FileChannel channel;
+    private long appended;
+    private long durable;
+    private long failed;
+    private long durableSize;
+    private boolean broken;
+    private boolean syncing;
+
+    /**
+     * Receives replayed changes
+     */
+    interface Replay {
+        void product(Product product);
+
+        void review(int id, int number, Review review);
+
+        void reload(Product product, List<Review> reviews);
+
+        void remove(int id);
+    }
+
+    private WriteAheadLog(Path file, long windowNanos) {
+        this.file = file;
+        this.previousFile = file.resolveSibling(file.getFileName() + ".previous");
+        this.windowNanos = windowNanos;
+    }
+
+    /**
+     * Replays the previous log left by an unfinished checkpoint and the current log,
+     * then opens the current log for appending after its last complete record
+     * @param file of the log
+     * @param windowMicros how long a group commit waits for more records
+     * @param replay receives the changes of both logs
+     * @return the opened log
+     * @throws IOException if a log can't be read or opened
+     */
+    static WriteAheadLog open(Path file, long windowMicros, Replay replay) throws IOException {
+        WriteAheadLog log = new WriteAheadLog(file, TimeUnit.MICROSECONDS.toNanos(windowMicros));
+        if (Files.exists(log.previousFile)) {
+            long previousEnd = replay(log.previousFile, replay);
+            try (FileChannel previous = FileChannel.open(log.previousFile, StandardOpenOption.WRITE)) {
+                if (previousEnd < HEADER_SIZE) {
+                    previous.truncate(0);
+                    writeFully(previous, header());
+                } else {
+                    previous.truncate(previousEnd);
+                }
+                previous.force(true);
+            }
+        }
+        long end = Files.exists(file) ? replay(file, replay) : 0;
+
+        log.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (end < HEADER_SIZE) {
+            log.channel.truncate(0);
+            writeFully(log.channel, header());
+        } else {
+            log.channel.truncate(end);
+        }
+        log.durableSize = log.channel.size();
+        log.channel.position(log.durableSize);
+        log.channel.force(true);
+        return log;
+    }
+
+    /**
+     * @return length of the valid part of the log, a torn last record is ignored
+     */
+    private static long replay(Path logFile, Replay replay) throws IOException {
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(logFile));
+        if (log.remaining() < HEADER_SIZE)
+            return 0;
+        if (log.getInt() != MAGIC || log.getInt() != VERSION)
+            throw new IOException("Not a write ahead log of version " + VERSION + " " + logFile);
+
+        CRC32 crc = new CRC32();
+        while (log.remaining() >= 2 * Integer.BYTES) {
+            int start = log.position();
+            int length = log.getInt();
+            int checksum = log.getInt();
+            if (length < 0 || length > log.remaining())
+                return start;
+            crc.reset();
+            crc.update(log.array(), log.position(), length);
+            if ((int) crc.getValue() != checksum)
+                return start;
+            decode(new DataInputStream(new ByteArrayInputStream(log.array(), log.position(), length)), replay);
+            log.position(log.position() + length);
+        }
+        return log.position();
+    }
+
+    private static void decode(DataInputStream in, Replay replay) throws IOException {
+        byte type = in.readByte();
+        if (type == PRODUCT) {
+            replay.product(readProduct(in));
+        } else if (type == REVIEW) {
+            int id = in.readInt();
+            int number = in.readInt();
+            Rating rating = Rateable.convert(in.readByte());
+            replay.review(id, number, new Review(rating, SnapshotCodec.readString(in)));
+        } else if (type == RELOAD) {
+            Product product = readProduct(in);
+            int count = in.readInt();
+            List<Review> reviews = new ArrayList<>();
+            for (int i = 0; i < count; i++)
+                reviews.add(new Review(Rateable.convert(in.readByte()), SnapshotCodec.readString(in)));
+            replay.reload(product, reviews);
+        } else if (type == REMOVE) {
+            replay.remove(in.readInt());
+        } else {
+            throw new IOException("Unknown write ahead log record " + type);
+        }
+    }
+
+    private static void writeProduct(DataOutputStream out, Product product) throws IOException {
+        out.writeByte(product instanceof Food ? FOOD : DRINK);
+        out.writeInt(product.getId());
+        SnapshotCodec.writeString(out, product.getName());
+        SnapshotCodec.writeDecimal(out, product.getPrice());
+        out.writeByte(product.getRating().ordinal());
+        if (product instanceof Food)
+            out.writeLong(product.getBestBefore().toEpochDay());
+    }
+
+    private static Product readProduct(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        int id = in.readInt();
+        String name = SnapshotCodec.readString(in);
+        BigDecimal price = SnapshotCodec.readDecimal(in);
+        Rating rating = Rateable.convert(in.readByte());
+        return (kind == FOOD)
+                ? new Food(id, name, price, rating, LocalDate.ofEpochDay(in.readLong()))
+                : new Drink(id, name, price, rating);
+    }
+
+    private static ByteBuffer header() {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip();
+    }
+
+    /**
+     * Appends a new product to the batch of the next group commit
+     * @param product new product
+     * @return sequence number of the record to pass to {@link #sync(long)}
+     */
+    long appendProduct(Product product) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(record)) {
+            out.writeByte(PRODUCT);
+            writeProduct(out, product);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return append(record.toByteArray());
+    }
+
+    /**
+     * Appends a new review to the batch of the next group commit
+     * @param id of the reviewed product
+     * @param number number of reviews of the product with this review
+     * @param review new review
+     * @return sequence number of the record to pass to {@link #sync(long)}
+     */
+    long appendReview(int id, int number, Review review) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(record)) {
+            out.writeByte(REVIEW);
+            out.writeInt(id);
+            out.writeInt(number);
+            out.writeByte(review.getRating().ordinal());
+            SnapshotCodec.writeString(out, review.getComments());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return append(record.toByteArray());
+    }
+
+    /**
+     * Appends a product reloaded from its files, with all its reviews,
+     * to the batch of the next group commit
+     * @param product reloaded or added product
+     * @param reviews all reviews of the product
+     * @return sequence number of the record to pass to {@link #sync(long)}
+     */
+    long appendReload(Product product, List<Review> reviews) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(record)) {
+            out.writeByte(RELOAD);
+            writeProduct(out, product);
+            out.writeInt(reviews.size());
+            for (Review review : reviews) {
+                out.writeByte(review.getRating().ordinal());
+                SnapshotCodec.writeString(out, review.getComments());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return append(record.toByteArray());
+    }
+
+    /**
+     * Appends the removal of a product whose files were deleted
+     * to the batch of the next group commit
+     * @param id of the removed product
+     * @return sequence number of the record to pass to {@link #sync(long)}
+     */
+    long appendRemoval(int id) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(8);
+        try (DataOutputStream out = new DataOutputStream(record)) {
+            out.writeByte(REMOVE);
+            out.writeInt(id);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return append(record.toByteArray());
+    }
+
+    private long append(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES).putInt(record.length).putInt((int) crc.getValue());
+        lock.lock();
+        try {
+            pending.write(header.array(), 0, header.capacity());
+            pending.write(record, 0, record.length);
+            return ++appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a record is on disk, the first waiting caller
+     * writes and forces the batch of all waiting callers
+     * @param sequence number of the record
+     * @throws IOException if the batch of the record can't be written
+     */
+    void sync(long sequence) throws IOException {
+        lock.lock();
+        try {
+            while (durable < sequence) {
+                if (sequence <= failed || broken)
+                    throw new IOException("Write ahead log record " + sequence + " was not written");
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                } else {
+                    syncing = true;
+                    try {
+                        awaitWindow();
+                        flush();
+                    } finally {
+                        syncing = false;
+                        synced.signalAll();
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void awaitWindow() {
+        long remaining = windowNanos;
+        try {
+            while (remaining > 0)
+                remaining = synced.awaitNanos(remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes and forces the pending batch, called by the leader of a group
+     * commit holding the lock, the lock is released while the batch is written.
+     * A batch that fails is truncated away, so it can't hide later batches
+     * from a replay.
+     */
+    private void flush() throws IOException {
+        long batchEnd = appended;
+        ByteBuffer batch = ByteBuffer.wrap(pending.toByteArray());
+        pending.reset();
+        lock.unlock();
+        try {
+            writeFully(channel, batch);
+            channel.force(false);
+        } catch (IOException e) {
+            lock.lock();
+            failed = batchEnd;
+            try {
+                channel.truncate(durableSize);
+                channel.position(durableSize);
+            } catch (IOException truncateFailure) {
+                broken = true;
+                e.addSuppressed(truncateFailure);
+            }
+            throw e;
+        }
+        lock.lock();
+        durable = batchEnd;
+        durableSize = channel.position();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Starts a new log for a checkpoint, the current log becomes the previous log,
+     * or is appended to the previous log that an earlier checkpoint didn't drop.
+     * Records in both logs until the current log is started again are replayed
+     * once, as a replay skips changes the catalog already has.
+     * Callers make sure no records are appended while the log is rotated.
+     * @throws IOException if the log can't be rotated
+     */
+    void rotate() throws IOException {
+        lock.lock();
+        try {
+            while (syncing)
+                synced.awaitUninterruptibly();
+            syncing = true;
+            try {
+                if (durable < appended)
+                    flush();
+                if (Files.exists(previousFile)) {
+                    try (FileChannel previous = FileChannel.open(previousFile, StandardOpenOption.WRITE,
+                            StandardOpenOption.APPEND)) {
+                        for (long position = HEADER_SIZE; position < durableSize; )
+                            position += channel.transferTo(position, durableSize - position, previous);
+                        previous.force(true);
+                    }
+                    channel.close();
+                } else {
+                    channel.close();
+                    Files.move(file, previousFile, StandardCopyOption.ATOMIC_MOVE);
+                }
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                writeFully(channel, header());
+                channel.force(true);
+                durableSize = channel.position();
+            } finally {
+                syncing = false;
+                synced.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the previous log once a checkpoint contains all its changes
+     * @throws IOException if the log can't be deleted
+     */
+    void dropPrevious() throws IOException {
+        Files.deleteIfExists(previousFile);
+    }
+
+    /**
+     * @return true if a previous log has changes no checkpoint contains yet
+     */
+    boolean hasPrevious() {
+        return Files.exists(previousFile);
+    }
+
+    /**
+     * @return size of the current log with its pending records
+     * @throws IOException if the size of the log can't be read
+     */
+    long size() throws IOException {
+        lock.lock();
+        try {
+            return channel.size() + pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            while (syncing)
+                synced.awaitUninterruptibly();
+            if (durable < appended)
+                flush();
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,3 +1,4 @@
 module ProductManagement {
     requires java.logging;
+    requires java.management;
 }
\ No newline at end of file